@@ -0,0 +1,8 @@
+package org.letspeppol.app.dto;
+
+import java.util.List;
+
+public record DocumentChangesDto(
+        String cursor,
+        List<DocumentStatusDto> changes
+) {}
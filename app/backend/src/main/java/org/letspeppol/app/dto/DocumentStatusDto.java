@@ -0,0 +1,13 @@
+package org.letspeppol.app.dto;
+
+import java.time.Instant;
+import java.util.UUID;
+
+public record DocumentStatusDto(
+        UUID id,
+        String event,
+        Instant scheduledOn,
+        Instant processedOn,
+        String processedStatus,
+        Instant changedOn
+) {}
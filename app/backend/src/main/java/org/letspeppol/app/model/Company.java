@@ -37,6 +37,8 @@ public class Company extends GenericEntity{
     private boolean addPdfToSendingInvoice;
     private String emailNotificationCcList; // comma-separated list
 
+    private String proxyChangeCursor; // position in the change feed of the proxy, see DocumentService.synchronizeDocuments
+
 // TODO    private boolean noArchive; //Setting by user that data should not be stored once processed (user is absolute owner & responsible)
 // TODO    private String accountant; //Either email or UUID of accounting system or accountant, flaggable by user what invoices should be sent to accountant
 //CREATE SCHEMA IF NOT EXISTS app;
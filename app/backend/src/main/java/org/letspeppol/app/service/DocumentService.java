@@ -36,6 +36,7 @@ import java.time.LocalDate;
 import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
 
 @Slf4j
@@ -45,6 +46,8 @@ import java.util.UUID;
 public class DocumentService {
 
     static final ZoneId ZONE = ZoneId.of("Europe/Brussels");
+    static final int NEW_DOCUMENTS_STREAM_SIZE = 1000;
+    static final int DOCUMENT_CHANGES_SIZE = 500;
 
     private final CompanyRepository companyRepository;
     private final DocumentRepository documentRepository;
@@ -122,7 +125,7 @@ public class DocumentService {
 
     public void synchronize(String peppolId, String tokenValue) throws InterruptedException {
         companyRepository.findByPeppolId(peppolId).ifPresent(company -> {
-            synchronizeNewDocuments(tokenValue);
+            synchronizeNewDocuments(tokenValue, null);
             synchronizeDocuments(peppolId, tokenValue);
         });
     }
@@ -332,21 +335,18 @@ public class DocumentService {
     }
 
     private Document deliver(Document document, String tokenValue) { //TODO : use boolean noArchive from Company
-        UblDocumentDto ublDocumentDto = ((document.getProxyOn() == null) ? proxyWebClient.post().uri("/sapi/document") : proxyWebClient.put().uri("/sapi/document/"+document.getId()))
+        //The ubl is the body and the other fields are parameters, so the proxy spools it to disk instead of reading it into memory from JSON
+        UblDocumentDto ublDocumentDto = ((document.getProxyOn() == null) ? proxyWebClient.post() : proxyWebClient.put())
+                .uri(uriBuilder -> uriBuilder.path((document.getProxyOn() == null) ? "/sapi/document" : "/sapi/document/" + document.getId())
+                        .queryParamIfPresent("id", Optional.ofNullable(document.getProxyOn() == null ? document.getId() : null))
+                        .queryParamIfPresent("type", Optional.ofNullable(document.getType()))
+                        .queryParam("ownerPeppolId", document.getOwnerPeppolId())
+                        .queryParam("partnerPeppolId", document.getPartnerPeppolId())
+                        .queryParamIfPresent("scheduledOn", Optional.ofNullable(document.getScheduledOn()))
+                        .build())
                 .headers(headers -> headers.setBearerAuth(tokenValue))
-                .contentType(MediaType.APPLICATION_JSON)
-                .bodyValue(new UblDocumentDto(
-                        document.getId(),
-                        document.getDirection(), //DocumentDirection.OUTGOING
-                        document.getType(),
-                        document.getOwnerPeppolId(),
-                        document.getPartnerPeppolId(),
-                        document.getCreatedOn(), //null
-                        document.getScheduledOn(),
-                        document.getProcessedOn(), //null
-                        document.getProcessedStatus(), //null
-                        document.getUbl()
-                ))
+                .contentType(MediaType.APPLICATION_XML)
+                .bodyValue(document.getUbl())
                 .retrieve()
                 .bodyToMono(UblDocumentDto.class)
                 .blockOptional()
@@ -359,8 +359,7 @@ public class DocumentService {
         document.setProxyOn(ublDocumentDto.createdOn());
         document.setScheduledOn(ublDocumentDto.scheduledOn());
         document.setProcessedOn(ublDocumentDto.processedOn());
-        document.setProcessedStatus(ublDocumentDto.processedStatus());
-        document.setUbl(ublDocumentDto.ubl());
+        document.setProcessedStatus(ublDocumentDto.processedStatus()); //The ubl is not returned, it is the one sent
         if (DocumentType.CREDIT_NOTE.equals(document.getType())) {
             document.getCompany().setLastCreditNoteReference(document.getInvoiceReference());
         } else {
@@ -408,49 +407,66 @@ public class DocumentService {
     public void periodicSynchronize() {
         try {
             String appTokenFromKyc = jwtService.getAppTokenFromKyc();
-            List<UblDocumentDto> ublDocumentDtos;
+            int received;
             do {
-                ublDocumentDtos = synchronizeNewDocuments(appTokenFromKyc);
-            } while (ublDocumentDtos.size() >= 100);
+                received = synchronizeNewDocuments(appTokenFromKyc, null);
+            } while (received >= NEW_DOCUMENTS_STREAM_SIZE);
         } catch (Exception e) {
             log.error("Error synchronizing documents", e);
         }
     }
 
-    private List<UblDocumentDto> synchronizeNewDocuments(String tokenValue) {
-        //TODO : record Page<T>(List<T> results, Integer total, Integer page, Integer size) {}
-        //and use :
-        //.bodyToMono(new ParameterizedTypeReference<Page<UblDocumentDto>>() {})
-        //.map(Page::results)
+    /// Pulls only the new documents of one owner, i.e. when the proxy notifies a received document
+    public void synchronizeNewDocumentsOf(String ownerPeppolId) {
+        String appTokenFromKyc = jwtService.getAppTokenFromKyc();
+        int received;
+        do {
+            received = synchronizeNewDocuments(appTokenFromKyc, ownerPeppolId);
+        } while (received >= NEW_DOCUMENTS_STREAM_SIZE);
+    }
 
-        List<UblDocumentDto> ublDocumentDtos = proxyWebClient.get()
-                .uri("/sapi/document")
+    /// Streams the new documents one by one from the proxy and acknowledges the ids of the stored documents at once,
+    /// a document that could not be stored stays new on the proxy and is streamed again on the next synchronization.
+    /// With the App token the stream can be limited to one linked owner.
+    private int synchronizeNewDocuments(String tokenValue, String ownerPeppolId) {
+        Iterable<UblDocumentDto> ublDocumentDtos = proxyWebClient.get()
+                .uri(uriBuilder -> uriBuilder.path("/sapi/document/stream")
+                        .queryParamIfPresent("owner", Optional.ofNullable(ownerPeppolId))
+                        .queryParam("size", NEW_DOCUMENTS_STREAM_SIZE)
+                        .build())
                 .headers(headers -> headers.setBearerAuth(tokenValue))
+                .accept(MediaType.APPLICATION_NDJSON)
                 .retrieve()
                 .bodyToFlux(UblDocumentDto.class)
-                .collectList()
-                .blockOptional()
-                .orElseThrow(() -> new IllegalStateException("Could not synchronize with PROXY")); //TODO : make correct error
+                .toIterable(1);
 
-        List<UUID> ids = new ArrayList<>();
+        int received = 0;
+        List<UUID> stored = new ArrayList<>();
         for (UblDocumentDto ublDocumentDto : ublDocumentDtos) {
+            received++;
             try {
                 create(ublDocumentDto);
-                ids.add(ublDocumentDto.id());
+                stored.add(ublDocumentDto.id());
             } catch (Exception e) {
                 if (documentRepository.existsById(ublDocumentDto.id())) {
-                    ids.add(ublDocumentDto.id());
+                    stored.add(ublDocumentDto.id());
                     log.warn("Received document was already in database", e);
                 } else {
                     log.error("Could not save received document to database", e);
                 }
             }
         }
+        if (!stored.isEmpty()) {
+            acknowledgeNewDocuments(tokenValue, stored);
+        }
+        return received;
+    }
 
+    /// Only the ids that were actually received are acknowledged, a document committed on the proxy meanwhile stays new
+    private void acknowledgeNewDocuments(String tokenValue, List<UUID> ids) {
         proxyWebClient.put()
                 .uri("/sapi/document/downloaded")
                 .headers(headers -> headers.setBearerAuth(tokenValue))
-                .contentType(MediaType.APPLICATION_JSON)
                 .bodyValue(ids)
                 .retrieve()
                 .onStatus(HttpStatusCode::isError, resp ->
@@ -460,10 +476,46 @@ public class DocumentService {
                 )
                 .toBodilessEntity()
                 .block();
-        return ublDocumentDtos;
     }
 
+    /// Applies the status changes on the proxy since the cursor of the company, the cost scales with what changed and not with what is outstanding.
+    /// Without a cursor yet, all outstanding documents are synchronized once as their changes could be older than the change feed.
     private void synchronizeDocuments(String peppolId, String tokenValue) {
+        Company company = companyRepository.findByPeppolId(peppolId).orElseThrow(() -> new NotFoundException("Company does not exist"));
+        String cursor = company.getProxyChangeCursor();
+        if (cursor == null) {
+            synchronizeAllDocuments(peppolId, tokenValue);
+        }
+        DocumentChangesDto documentChangesDto;
+        do {
+            String since = cursor;
+            documentChangesDto = proxyWebClient.get()
+                    .uri(uriBuilder -> uriBuilder.path("/sapi/document/changes")
+                            .queryParamIfPresent("since", Optional.ofNullable(since))
+                            .queryParam("size", DOCUMENT_CHANGES_SIZE)
+                            .build())
+                    .headers(headers -> headers.setBearerAuth(tokenValue))
+                    .retrieve()
+                    .bodyToMono(DocumentChangesDto.class)
+                    .blockOptional()
+                    .orElseThrow(() -> new IllegalStateException("Could not synchronize with PROXY")); //TODO : make correct error
+            for (DocumentStatusDto documentStatusDto : documentChangesDto.changes()) {
+                updateStatus(documentStatusDto);
+            }
+            cursor = documentChangesDto.cursor();
+        } while (documentChangesDto.changes().size() >= DOCUMENT_CHANGES_SIZE);
+        company.setProxyChangeCursor(cursor);
+    }
+
+    private void updateStatus(DocumentStatusDto documentStatusDto) {
+        documentRepository.findById(documentStatusDto.id()).ifPresent(document -> { //Received documents are only known once downloaded
+            document.setScheduledOn(documentStatusDto.scheduledOn());
+            document.setProcessedOn(documentStatusDto.processedOn());
+            document.setProcessedStatus(documentStatusDto.processedStatus());
+        });
+    }
+
+    private void synchronizeAllDocuments(String peppolId, String tokenValue) {
         List<UUID> ids = documentRepository.findIdsWithPossibleStatusUpdatesOnProxy(peppolId, LocalDate.now(ZONE).plusDays(1).atStartOfDay(ZONE).toInstant());
         List<UblDocumentDto> ublDocumentDtos = proxyWebClient.post()
                 .uri("/sapi/document/status")
@@ -476,7 +528,7 @@ public class DocumentService {
                 .blockOptional()
                 .orElseThrow(() -> new IllegalStateException("Could not synchronize with PROXY")); //TODO : make correct error
 
-        for (UblDocumentDto ublDocumentDto : ublDocumentDtos) { //TODO : update to StatusDto !
+        for (UblDocumentDto ublDocumentDto : ublDocumentDtos) {
             updateStatus(ublDocumentDto); //TODO : Could be new NotFoundException, does that make sense ?
         }
     }
@@ -0,0 +1,89 @@
+package org.letspeppol.app.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.util.LinkedHashSet;
+import java.util.Objects;
+
+/// Listens to the server-sent events of the proxy for received documents and pulls the new documents of only those owners,
+/// bursts are coalesced per owner. The hourly periodic synchronization remains the safety net for missed events.
+@Slf4j
+@Service
+public class ProxyNotificationListener {
+
+    private final WebClient proxyWebClient;
+    private final JwtService jwtService;
+    private final DocumentService documentService;
+    private final boolean enabled;
+    private Disposable subscription;
+
+    public ProxyNotificationListener(@Qualifier("proxyWebClient") WebClient proxyWebClient,
+                                     JwtService jwtService,
+                                     DocumentService documentService,
+                                     @Value("${proxy.notifications.enabled:true}") boolean enabled) {
+        this.proxyWebClient = proxyWebClient;
+        this.jwtService = jwtService;
+        this.documentService = documentService;
+        this.enabled = enabled;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        subscription = Flux.defer(this::notifications)
+                .subscribeOn(Schedulers.boundedElastic()) //Fetching the token blocks
+                .repeat() //The proxy completes the stream on timeout
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(5)).maxBackoff(Duration.ofMinutes(5))
+                        .doBeforeRetry(signal -> log.warn("Proxy notifications disconnected, reconnecting", signal.failure())))
+                .bufferTimeout(100, Duration.ofSeconds(2))
+                .map(LinkedHashSet::new)
+                .concatMap(owners -> Mono.fromRunnable(() -> owners.forEach(this::synchronize)).subscribeOn(Schedulers.boundedElastic()))
+                .subscribe();
+    }
+
+    private Flux<String> notifications() {
+        String appTokenFromKyc = jwtService.getAppTokenFromKyc(); //A fresh token for every connection
+        return proxyWebClient.get()
+                .uri("/sapi/document/notifications")
+                .headers(headers -> headers.setBearerAuth(appTokenFromKyc))
+                .accept(MediaType.TEXT_EVENT_STREAM)
+                .retrieve()
+                .bodyToFlux(new ParameterizedTypeReference<ServerSentEvent<String>>() {})
+                .filter(event -> "document".equals(event.event()))
+                .map(ServerSentEvent::data)
+                .filter(Objects::nonNull);
+    }
+
+    private void synchronize(String ownerPeppolId) {
+        try {
+            documentService.synchronizeNewDocumentsOf(ownerPeppolId);
+        } catch (Exception e) {
+            log.error("Error synchronizing new documents of {}", ownerPeppolId, e);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (subscription != null) {
+            subscription.dispose();
+        }
+    }
+}
@@ -0,0 +1 @@
+ALTER TABLE company ADD COLUMN proxy_change_cursor varchar(255);
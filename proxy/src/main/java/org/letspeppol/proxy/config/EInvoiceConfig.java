@@ -8,6 +8,7 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.netty.http.client.HttpClient;
 import java.time.Duration;
@@ -16,7 +17,7 @@ import java.time.Duration;
 public class EInvoiceConfig {
 
     @Bean
-    public WebClient eInvoiceWebClient(@Value("${e-invoice.url}") String apiUrl) {
+    public WebClient eInvoiceWebClient(@Value("${e-invoice.url}") String apiUrl, @Value("${ubl.max-size:32MB}") DataSize maxSize) {
         HttpClient httpClient = HttpClient.create()
                 .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 5000)
                 .responseTimeout(Duration.ofSeconds(30))
@@ -27,7 +28,7 @@ public class EInvoiceConfig {
 
         return WebClient.builder()
                 .baseUrl(apiUrl)
-                .codecs(c -> c.defaultCodecs().maxInMemorySize(32 * 1024 * 1024))
+                .codecs(c -> c.defaultCodecs().maxInMemorySize((int) maxSize.toBytes())) //A received ubl is read as a whole, bounded like an upload
                 .clientConnector(new ReactorClientHttpConnector(httpClient))
                 .build();
     }
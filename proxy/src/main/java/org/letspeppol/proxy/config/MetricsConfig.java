@@ -1,10 +1,16 @@
 package org.letspeppol.proxy.config;
 
 import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
+import org.letspeppol.proxy.model.DocumentDirection;
+import org.letspeppol.proxy.repository.UblDocumentRepository;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.time.Duration;
+import java.time.Instant;
+
 @Configuration
 public class MetricsConfig {
 
@@ -48,4 +54,39 @@ public class MetricsConfig {
                 .register(registry);
     }
 
+    @Bean
+    public Gauge documentSynchronizeBacklogGauge(MeterRegistry registry, UblDocumentRepository ublDocumentRepository) {
+        return Gauge.builder("document_synchronize_backlog", ublDocumentRepository, repository -> repository.countToSynchronize(DocumentDirection.OUTGOING, Instant.now()))
+                .description("Current # outgoing documents due for a status check")
+                .tag("service", "proxy")
+                .register(registry);
+    }
+
+    @Bean
+    public Gauge documentDueGauge(MeterRegistry registry, UblDocumentRepository ublDocumentRepository) {
+        return Gauge.builder("document_due", ublDocumentRepository, repository -> repository.countDue(DocumentDirection.OUTGOING, Instant.now()))
+                .description("Current # outgoing documents due to be sent")
+                .tag("service", "proxy")
+                .register(registry);
+    }
+
+    @Bean
+    public Gauge documentDueLagGauge(MeterRegistry registry, UblDocumentRepository ublDocumentRepository) {
+        return Gauge.builder("document_due_lag", ublDocumentRepository, repository -> repository.findOldestDueScheduledOn(DocumentDirection.OUTGOING, Instant.now())
+                        .map(scheduledOn -> Duration.between(scheduledOn, Instant.now()).toMillis() / 1000.0)
+                        .orElse(0.0))
+                .description("Current delay of the oldest due outgoing document since its scheduledOn")
+                .baseUnit("seconds")
+                .tag("service", "proxy")
+                .register(registry);
+    }
+
+    @Bean
+    public Gauge documentUnsentGauge(MeterRegistry registry, UblDocumentRepository ublDocumentRepository) {
+        return Gauge.builder("document_unsent", ublDocumentRepository, repository -> repository.countByDirectionAndAccessPointIsNull(DocumentDirection.OUTGOING))
+                .description("Current # outgoing documents not yet sent, scheduled later included, to compare with send_budget_tokens")
+                .tag("service", "proxy")
+                .register(registry);
+    }
+
 }
@@ -0,0 +1,28 @@
+package org.letspeppol.proxy.config;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.letspeppol.proxy.service.BackupRestoreService;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+/// Restore command, run the proxy with `--spring.profiles.active=restore` to rebuild the database from the backups, it stops when done
+@Slf4j
+@RequiredArgsConstructor
+@Profile("restore")
+@Component
+public class RestoreRunner implements ApplicationRunner {
+
+    private final BackupRestoreService backupRestoreService;
+    private final ConfigurableApplicationContext applicationContext;
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        boolean complete = backupRestoreService.restore();
+        System.exit(SpringApplication.exit(applicationContext, () -> complete ? 0 : 1));
+    }
+}
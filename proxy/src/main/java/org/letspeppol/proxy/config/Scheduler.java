@@ -1,16 +1,39 @@
 package org.letspeppol.proxy.config;
 
 import lombok.RequiredArgsConstructor;
+import org.letspeppol.proxy.service.BackupService;
+import org.letspeppol.proxy.service.DocumentNotificationService;
 import org.letspeppol.proxy.service.ScradaService;
+import org.letspeppol.proxy.service.SendQuotaService;
+import org.letspeppol.proxy.service.UblDeduplicationService;
+import org.letspeppol.proxy.service.UblDocumentEventService;
 import org.letspeppol.proxy.service.UblDocumentSchedulerService;
+import org.letspeppol.proxy.service.UblDocumentTieringService;
+import org.letspeppol.proxy.service.UblPayloadService;
+import org.letspeppol.proxy.service.UblStorageMigrationService;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import java.time.Instant;
+
 @RequiredArgsConstructor
 @Component
 public class Scheduler {
     private final UblDocumentSchedulerService ublDocumentSchedulerService;
     private final ScradaService scradaService;
+    private final UblStorageMigrationService ublStorageMigrationService;
+    private final UblPayloadService ublPayloadService;
+    private final SendQuotaService sendQuotaService;
+    private final UblDocumentEventService ublDocumentEventService;
+    private final DocumentNotificationService documentNotificationService;
+    private final BackupService backupService;
+    private final UblDocumentTieringService ublDocumentTieringService;
+    private final UblDeduplicationService ublDeduplicationService;
+
+    @Value("${scheduler.receive.safety-net-delay-ms:3600000}")
+    private long receiveSafetyNetDelayMs;
+    private Instant lastReceivedFromScrada = Instant.EPOCH;
 
     @Scheduled(fixedDelayString = "${scheduler.send.delay-ms:1000}")
     public void sendDueDocuments() {
@@ -24,6 +47,65 @@ public class Scheduler {
 
     @Scheduled(fixedDelayString = "${scheduler.receive.delay-ms:300000}")
     public void receiveNewDocumentsFromScrada() {
+        if (scradaService.isWebhookEnabled() && Instant.now().isBefore(lastReceivedFromScrada.plusMillis(receiveSafetyNetDelayMs))) {
+            return; //Webhooks deliver new documents, polling only picks up missed ones
+        }
+        lastReceivedFromScrada = Instant.now();
         scradaService.receiveDocuments();
     }
+
+    @Scheduled(fixedDelayString = "${storage.migration.delay-ms:10000}")
+    public void migrateUblStorage() {
+        ublStorageMigrationService.migrateBatch();
+    }
+
+    @Scheduled(fixedDelayString = "${storage.payload.gc-delay-ms:3600000}")
+    public void collectUnreferencedPayloads() {
+        ublPayloadService.collectGarbage();
+    }
+
+    @Scheduled(cron = "${send-quota.prune-cron:0 30 0 * * *}", zone = "Europe/Brussels")
+    public void pruneSendQuota() {
+        sendQuotaService.prune();
+    }
+
+    @Scheduled(cron = "${document-event.prune-cron:0 45 0 * * *}", zone = "Europe/Brussels")
+    public void pruneDocumentEvents() {
+        ublDocumentEventService.prune();
+    }
+
+    @Scheduled(cron = "${dedup.prune-cron:0 0 1 * * *}", zone = "Europe/Brussels")
+    public void pruneDeduplicationHashes() {
+        ublDeduplicationService.prune();
+    }
+
+    @Scheduled(fixedDelayString = "${sapi.notifications.heartbeat-ms:15000}")
+    public void sendNotificationHeartbeat() {
+        documentNotificationService.heartbeat();
+    }
+
+    @Scheduled(fixedDelayString = "${backup.recover.delay-ms:300000}", initialDelayString = "${backup.recover.delay-ms:300000}")
+    public void recoverPendingBackups() {
+        backupService.recoverPending();
+    }
+
+    @Scheduled(fixedDelayString = "${backup.segment.compact-delay-ms:3600000}", initialDelayString = "${backup.segment.compact-delay-ms:3600000}")
+    public void compactBackups() {
+        backupService.compact();
+    }
+
+    @Scheduled(cron = "${storage.partition.cron:0 15 1 * * *}", zone = "Europe/Brussels")
+    public void ensureDocumentPartitions() {
+        ublDocumentTieringService.ensurePartitions();
+    }
+
+    @Scheduled(fixedDelayString = "${storage.partition.legacy-delay-ms:10000}")
+    public void moveLegacyDocumentPartition() {
+        ublDocumentTieringService.moveLegacyBatch();
+    }
+
+    @Scheduled(fixedDelayString = "${storage.cold.delay-ms:600000}", initialDelayString = "${storage.cold.delay-ms:600000}")
+    public void archiveColdDocuments() {
+        ublDocumentTieringService.archiveBatch();
+    }
 }
@@ -0,0 +1,12 @@
+package org.letspeppol.proxy.config;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+/// The scheduled jobs (see [Scheduler]) do not run while restoring the backups
+@Profile("!restore")
+@EnableScheduling
+@Configuration
+public class SchedulingConfig {
+}
@@ -8,6 +8,7 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.netty.http.client.HttpClient;
 
@@ -17,7 +18,7 @@ import java.time.Duration;
 public class ScradaConfig {
 
     @Bean
-    public WebClient scradaWebClient(@Value("${scrada.url}") String apiUrl, @Value("${scrada.company-id}") String companyId, @Value("${scrada.api-key}") String apiKey, @Value("${scrada.password}") String password) {
+    public WebClient scradaWebClient(@Value("${scrada.url}") String apiUrl, @Value("${scrada.company-id}") String companyId, @Value("${scrada.api-key}") String apiKey, @Value("${scrada.password}") String password, @Value("${ubl.max-size:32MB}") DataSize maxSize) {
         HttpClient httpClient = HttpClient.create()
                 .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 5000)
                 .responseTimeout(Duration.ofSeconds(30))
@@ -31,7 +32,7 @@ public class ScradaConfig {
 
         return WebClient.builder()
                 .baseUrl(apiUrl + "/v1/company/" + companyId + "/peppol")
-                .codecs(c -> c.defaultCodecs().maxInMemorySize(32 * 1024 * 1024))
+                .codecs(c -> c.defaultCodecs().maxInMemorySize((int) maxSize.toBytes())) //A received ubl is read as a whole, bounded like an upload
                 .defaultHeader("X-API-KEY", apiKey)
                 .defaultHeader("X-PASSWORD", password)
                 .clientConnector(new ReactorClientHttpConnector(httpClient))
@@ -1,26 +1,44 @@
 package org.letspeppol.proxy.controller;
 
+import com.helger.io.resource.FileSystemResource;
+import com.helger.io.resource.IReadableResource;
+import com.helger.io.resource.inmemory.ReadableResourceString;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.letspeppol.proxy.dto.ChangeCursor;
+import org.letspeppol.proxy.dto.DocumentChangesDto;
+import org.letspeppol.proxy.dto.DocumentCursor;
 import org.letspeppol.proxy.dto.PeppolParties;
+import org.letspeppol.proxy.dto.SpooledUbl;
+import org.letspeppol.proxy.dto.UblContext;
 import org.letspeppol.proxy.dto.UblDocumentDto;
 import org.letspeppol.proxy.exception.SecurityException;
 import org.letspeppol.proxy.model.AccessPoint;
 import org.letspeppol.proxy.model.AccountType;
+import org.letspeppol.proxy.model.DocumentDirection;
+import org.letspeppol.proxy.model.DocumentType;
 import org.letspeppol.proxy.service.*;
+import org.letspeppol.proxy.util.HashUtil;
 import org.letspeppol.proxy.util.JwtUtil;
 import org.letspeppol.proxy.util.UblParser;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.security.oauth2.jwt.Jwt;
 import org.springframework.security.oauth2.jwt.JwtDecoder;
 import org.springframework.security.oauth2.jwt.JwtException;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import org.xml.sax.SAXException;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPathExpressionException;
+import javax.xml.stream.XMLStreamException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.util.List;
 import java.util.UUID;
 
@@ -31,6 +49,9 @@ import java.util.UUID;
 public class AppController {
 
     public static final String DEFAULT_SIZE = "100";
+    public static final String STREAM_SIZE = "1000";
+    public static final int STREAM_PAGE_SIZE = 20;
+    public static final String CHANGES_SIZE = "500";
     public static final String ACTING_USER_AUTHORIZATION_HEADER = "X-Acting-User-Authorization";
 
     private final UblDocumentService ublDocumentService;
@@ -38,6 +59,8 @@ public class AppController {
     private final UblDocumentReceiverService ublDocumentReceiverService;
     private final RegistryService registryService;
     private final ValidationService validationService;
+    private final DocumentNotificationService documentNotificationService;
+    private final UblSpoolService ublSpoolService;
     private final JwtDecoder jwtDecoder;
 
     @GetMapping()
@@ -52,12 +75,71 @@ public class AppController {
         }
     }
 
+    /// Streams the new documents as NDJSON in keyset order, fetching a page at a time as the client reads.
+    /// Acknowledge the ids of the received documents with `PUT downloaded`, a document stays new until its id is acknowledged.
+    /// The cursor (`<createdOn>_<id>`) only resumes a stream, a document committed behind it is streamed again from the start.
+    /// An App can limit the stream to one linked owner, i.e. the owner of a [#notifications()] event.
+    @GetMapping(value = "stream", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<UblDocumentDto> streamNew(@AuthenticationPrincipal Jwt jwt,
+                                          @RequestParam(required = false) DocumentCursor after,
+                                          @RequestParam(required = false) String owner,
+                                          @RequestParam(defaultValue = STREAM_SIZE) int size) {
+        AccountType accountType = JwtUtil.getAccountType(jwt);
+        String ownerPeppolId;
+        UUID appUid;
+        if (accountType.isUser()) {
+            ownerPeppolId = JwtUtil.getUserPeppolId(jwt);
+            appUid = null;
+        } else if (accountType.isApp()) {
+            ownerPeppolId = owner;
+            appUid = JwtUtil.getAppUid(jwt);
+        } else {
+            throw new SecurityException("Not correct account type");
+        }
+        int pageSize = Math.min(size, STREAM_PAGE_SIZE);
+        return Flux.<List<UblDocumentDto>, DocumentCursor>generate(() -> after != null ? after : DocumentCursor.START, (cursor, sink) -> {
+                    List<UblDocumentDto> page = ublDocumentReceiverService.findNewAfter(ownerPeppolId, appUid, cursor, pageSize);
+                    if (page.isEmpty()) {
+                        sink.complete();
+                        return cursor;
+                    }
+                    sink.next(page);
+                    return DocumentCursor.of(page.getLast());
+                })
+                .takeUntil(page -> page.size() < pageSize)
+                .concatMapIterable(page -> page)
+                .take(size)
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /// Server-sent `document` events with the owner of every received document, for a user its own and for an App those of its linked owners
+    @GetMapping(value = "notifications", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter notifications(@AuthenticationPrincipal Jwt jwt) {
+        AccountType accountType = JwtUtil.getAccountType(jwt);
+        if (accountType.isUser()) {
+            return documentNotificationService.subscribe(JwtUtil.getUserPeppolId(jwt), null);
+        } else if (accountType.isApp()) {
+            return documentNotificationService.subscribe(null, JwtUtil.getAppUid(jwt));
+        } else {
+            throw new SecurityException("Not correct account type");
+        }
+    }
+
     @PostMapping("status")
     public List<UblDocumentDto> getStatusUpdates(@AuthenticationPrincipal Jwt jwt, @RequestBody List<UUID> ids) {
         String peppolId = JwtUtil.getUserPeppolId(jwt);
         return ublDocumentService.findByIds(ids, peppolId); //TODO : map to statusDto !
     }
 
+    /// Lifecycle changes of the documents of the user since the cursor of the previous call, from the start of the retained events without cursor
+    @GetMapping("changes")
+    public DocumentChangesDto getChanges(@AuthenticationPrincipal Jwt jwt,
+                                         @RequestParam(required = false) ChangeCursor since,
+                                         @RequestParam(defaultValue = CHANGES_SIZE) int size) {
+        String peppolId = JwtUtil.getUserPeppolId(jwt);
+        return ublDocumentService.findChanges(peppolId, since, Math.min(size, Integer.parseInt(CHANGES_SIZE)));
+    }
+
     /* *
     Need filtering and quering like
       userId: string;
@@ -85,8 +167,30 @@ public class AppController {
                                                        @RequestBody UblDocumentDto ublDocumentDto,
                                                        @RequestHeader(name = ACTING_USER_AUTHORIZATION_HEADER, required = false) String actingUserAuthorization,
                                                        @RequestParam(defaultValue = "false") boolean noArchive) {
-        validateSender(jwt, ublDocumentDto, actingUserAuthorization);
-        return ResponseEntity.status(HttpStatus.CREATED).body(ublDocumentSenderService.createToSend(ublDocumentDto, noArchive));
+        UblContext ublContext = validateSender(jwt, ublDocumentDto, actingUserAuthorization, true);
+        return ResponseEntity.status(HttpStatus.CREATED).body(ublDocumentSenderService.createToSend(ublDocumentDto, ublContext, noArchive));
+    }
+
+    /// Streaming variant for large documents, the UBL is the request body and the other fields are parameters.
+    /// The body is spooled to a file while hashed, then parsed, validated and compressed from that file, the response has no UBL.
+    @PostMapping(consumes = {MediaType.APPLICATION_XML_VALUE, MediaType.TEXT_XML_VALUE})
+    public ResponseEntity<UblDocumentDto> createToSend(@AuthenticationPrincipal Jwt jwt,
+                                                       InputStream body,
+                                                       @RequestParam(required = false) UUID id,
+                                                       @RequestParam(required = false) DocumentType type,
+                                                       @RequestParam String ownerPeppolId,
+                                                       @RequestParam String partnerPeppolId,
+                                                       @RequestParam(required = false) Instant scheduledOn,
+                                                       @RequestHeader(name = ACTING_USER_AUTHORIZATION_HEADER, required = false) String actingUserAuthorization,
+                                                       @RequestParam(defaultValue = "false") boolean noArchive) throws IOException {
+        UblDocumentDto ublDocumentDto = new UblDocumentDto(id, DocumentDirection.OUTGOING, type, ownerPeppolId, partnerPeppolId, null, scheduledOn, null, null, null);
+        SpooledUbl spooledUbl = ublSpoolService.spool(body);
+        try {
+            UblContext ublContext = validateSender(jwt, ublDocumentDto, spooledUbl, actingUserAuthorization, true);
+            return ResponseEntity.status(HttpStatus.CREATED).body(ublDocumentSenderService.createToSend(ublDocumentDto, ublContext, ublSpoolService.encode(spooledUbl), noArchive));
+        } finally {
+            ublSpoolService.discard(spooledUbl);
+        }
     }
 
     @PutMapping("{id}")
@@ -95,8 +199,29 @@ public class AppController {
                                                  @RequestBody UblDocumentDto ublDocumentDto,
                                                  @RequestHeader(name = ACTING_USER_AUTHORIZATION_HEADER, required = false) String actingUserAuthorization,
                                                  @RequestParam(defaultValue = "false") boolean noArchive) {
-        validateSender(jwt, ublDocumentDto, actingUserAuthorization);
-        return ResponseEntity.status(HttpStatus.OK).body(ublDocumentSenderService.update(id, ublDocumentDto, noArchive));
+        UblContext ublContext = validateSender(jwt, ublDocumentDto, actingUserAuthorization);
+        return ResponseEntity.status(HttpStatus.OK).body(ublDocumentSenderService.update(id, ublDocumentDto, ublContext, noArchive));
+    }
+
+    /// Streaming variant of [#update], see the streaming [#createToSend]
+    @PutMapping(value = "{id}", consumes = {MediaType.APPLICATION_XML_VALUE, MediaType.TEXT_XML_VALUE})
+    public ResponseEntity<UblDocumentDto> update(@AuthenticationPrincipal Jwt jwt,
+                                                 @PathVariable UUID id,
+                                                 InputStream body,
+                                                 @RequestParam(required = false) DocumentType type,
+                                                 @RequestParam String ownerPeppolId,
+                                                 @RequestParam String partnerPeppolId,
+                                                 @RequestParam(required = false) Instant scheduledOn,
+                                                 @RequestHeader(name = ACTING_USER_AUTHORIZATION_HEADER, required = false) String actingUserAuthorization,
+                                                 @RequestParam(defaultValue = "false") boolean noArchive) throws IOException {
+        UblDocumentDto ublDocumentDto = new UblDocumentDto(id, DocumentDirection.OUTGOING, type, ownerPeppolId, partnerPeppolId, null, scheduledOn, null, null, null);
+        SpooledUbl spooledUbl = ublSpoolService.spool(body);
+        try {
+            UblContext ublContext = validateSender(jwt, ublDocumentDto, spooledUbl, actingUserAuthorization, false);
+            return ResponseEntity.status(HttpStatus.OK).body(ublDocumentSenderService.update(id, ublDocumentDto, ublContext, ublSpoolService.encode(spooledUbl), noArchive));
+        } finally {
+            ublSpoolService.discard(spooledUbl);
+        }
     }
 
     @PutMapping("{id}/reschedule")
@@ -141,44 +266,71 @@ public class AppController {
         return ResponseEntity.status(HttpStatus.NO_CONTENT).build();
     }
 
-    private void validateSender(Jwt jwt, UblDocumentDto ublDocumentDto, String actingUserAuthorization) throws SecurityException {
+    private UblContext validateSender(Jwt jwt, UblDocumentDto ublDocumentDto, String actingUserAuthorization) throws SecurityException {
+        return validateSender(jwt, ublDocumentDto, actingUserAuthorization, false);
+    }
+
+    private UblContext validateSender(Jwt jwt, UblDocumentDto ublDocumentDto, String actingUserAuthorization, boolean rejectDuplicate) throws SecurityException {
+        boolean empty = ublDocumentDto.ubl() == null || ublDocumentDto.ubl().isBlank();
+        return validateSender(jwt, ublDocumentDto,
+                empty ? null : new ReadableResourceString(ublDocumentDto.ubl(), StandardCharsets.UTF_8),
+                empty ? null : HashUtil.sha256(ublDocumentDto.ubl()),
+                actingUserAuthorization, rejectDuplicate);
+    }
+
+    private UblContext validateSender(Jwt jwt, UblDocumentDto ublDocumentDto, SpooledUbl spooledUbl, String actingUserAuthorization, boolean rejectDuplicate) throws SecurityException {
+        return validateSender(jwt, ublDocumentDto,
+                spooledUbl.isEmpty() ? null : new FileSystemResource(spooledUbl.path().toFile()),
+                spooledUbl.hash(),
+                actingUserAuthorization, rejectDuplicate);
+    }
+
+    /// Parses the UBL once, the returned context is reused for creating the document.
+    /// A new document that is a known duplicate is rejected before parsing and validating it.
+    private UblContext validateSender(Jwt jwt, UblDocumentDto ublDocumentDto, IReadableResource ubl, String hash, String actingUserAuthorization, boolean rejectDuplicate) throws SecurityException {
         SenderValidation senderValidation = validateSenderAccount(jwt, ublDocumentDto, actingUserAuthorization);
         if (!ublDocumentDto.ownerPeppolId().equals(senderValidation.senderPeppolId())) {
             log.error("Peppol ID {} not the owner {} of document {}", senderValidation.senderPeppolId(), ublDocumentDto.ownerPeppolId(), ublDocumentDto.id());
             throw new SecurityException("Peppol ID not the owner");
         }
-        if (ublDocumentDto.ubl() == null || ublDocumentDto.ubl().isBlank()) {
+        if (ubl == null) {
             log.error("Peppol ID {} sending empty UBL of document {}", senderValidation.senderPeppolId(), ublDocumentDto.id());
             throw new RuntimeException("Missing UBL content");
         }
-        if (!validationService.validateUblXml(ublDocumentDto.ubl()).isValid()) {
+        if (rejectDuplicate) {
+            ublDocumentSenderService.rejectDuplicate(hash);
+        }
+        UblContext ublContext;
+        try {
+            ublContext = UblParser.parseContext(ubl, hash);
+        } catch (ParserConfigurationException | IOException | SAXException | XMLStreamException e) {
+            log.error("Peppol ID {} send bad data of document {}", senderValidation.senderPeppolId(), ublDocumentDto.id(), e);
+            throw new RuntimeException(e);
+        }
+        if (!validationService.validateUblXml(ublContext).isValid()) {
             log.error("Peppol ID {} sending invalid UBL of document {}", senderValidation.senderPeppolId(), ublDocumentDto.id());
             throw new RuntimeException("Invalid UBL content");
         }
-        try {
-            PeppolParties peppolParties = UblParser.parsePeppolParties(ublDocumentDto.ubl());
-            if (!peppolParties.sender().equals(senderValidation.senderPeppolId())) {
-                log.error("Peppol ID {} not the sender {} of document {}", senderValidation.senderPeppolId(), peppolParties.sender(), ublDocumentDto.id());
-                throw new SecurityException("Peppol ID not the owner");
+        PeppolParties peppolParties = ublContext.parties();
+        if (!peppolParties.sender().equals(senderValidation.senderPeppolId())) {
+            log.error("Peppol ID {} not the sender {} of document {}", senderValidation.senderPeppolId(), peppolParties.sender(), ublDocumentDto.id());
+            throw new SecurityException("Peppol ID not the owner");
+        }
+        if (senderValidation.actingUserPeppolId() != null) {
+            if (!senderValidation.actingUserPeppolId().equals(ublDocumentDto.partnerPeppolId())) {
+                log.error("Acting user {} not the partner {} of document {}", senderValidation.actingUserPeppolId(), ublDocumentDto.partnerPeppolId(), ublDocumentDto.id());
+                throw new SecurityException("Acting user not the receiver");
             }
-            if (senderValidation.actingUserPeppolId() != null) {
-                if (!senderValidation.actingUserPeppolId().equals(ublDocumentDto.partnerPeppolId())) {
-                    log.error("Acting user {} not the partner {} of document {}", senderValidation.actingUserPeppolId(), ublDocumentDto.partnerPeppolId(), ublDocumentDto.id());
-                    throw new SecurityException("Acting user not the receiver");
-                }
-                if (!senderValidation.actingUserPeppolId().equals(peppolParties.receiver())) {
-                    log.error("Acting user {} not the receiver {} of document {}", senderValidation.actingUserPeppolId(), peppolParties.receiver(), ublDocumentDto.id());
-                    throw new SecurityException("Acting user not the receiver");
-                }
+            if (!senderValidation.actingUserPeppolId().equals(peppolParties.receiver())) {
+                log.error("Acting user {} not the receiver {} of document {}", senderValidation.actingUserPeppolId(), peppolParties.receiver(), ublDocumentDto.id());
+                throw new SecurityException("Acting user not the receiver");
             }
-        } catch (ParserConfigurationException | IOException | SAXException | XPathExpressionException e) {
-            log.error("Peppol ID {} send bad data of document {}", senderValidation.senderPeppolId(), ublDocumentDto.id(), e);
-            throw new RuntimeException(e);
         }
         if (registryService.getAccessPoint(senderValidation.senderPeppolId()) == AccessPoint.NONE) {
             log.error("Peppol ID {} not activated during send of document {}", senderValidation.senderPeppolId(), ublDocumentDto.id());
             throw new SecurityException("Peppol ID not activated to send");
         }
+        return ublContext;
     }
 
     private SenderValidation validateSenderAccount(Jwt jwt, UblDocumentDto ublDocumentDto, String actingUserAuthorization) {
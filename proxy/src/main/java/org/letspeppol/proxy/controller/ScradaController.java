@@ -0,0 +1,117 @@
+package org.letspeppol.proxy.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.letspeppol.proxy.dto.UblHeader;
+import org.letspeppol.proxy.dto.scrada.OutboundDocument;
+import org.letspeppol.proxy.exception.BadRequestException;
+import org.letspeppol.proxy.exception.NotFoundException;
+import org.letspeppol.proxy.model.DocumentDirection;
+import org.letspeppol.proxy.model.UblDocument;
+import org.letspeppol.proxy.service.ScradaService;
+import org.letspeppol.proxy.util.HashUtil;
+import org.letspeppol.proxy.util.UblParser;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/// Webhooks of Scrada, authenticated with a HMAC-SHA256 signature of the raw body using the shared `scrada.webhook.secret`.
+/// The header is `scrada.webhook.signature-header` as configured for the webhook at Scrada, hex and base64 signatures are both accepted.
+@Slf4j
+@RequiredArgsConstructor
+@RestController
+@RequestMapping("/api/scrada/webhook")
+public class ScradaController {
+
+    public static final String DOCUMENT_ID_HEADER = "x-scrada-document-id";
+    public static final String SENDER_ID_HEADER = "x-scrada-peppol-sender-id";
+    public static final String RECEIVER_ID_HEADER = "x-scrada-peppol-receiver-id";
+    public static final String DOCUMENT_TYPE_VALUE_HEADER = "x-scrada-peppol-document-type-value";
+
+    private final ScradaService scradaService;
+    private final ObjectMapper objectMapper;
+
+    @Value("${scrada.webhook.secret:}")
+    private String webhookSecret;
+    @Value("${scrada.webhook.signature-header:X-Scrada-Signature}")
+    private String signatureHeader;
+
+    /// DOCS : [Scrada : Webhooks](https://www.scrada.be/api-documentation/#tag/Webhooks)
+    @PostMapping("outbound-status")
+    public ResponseEntity<Void> outboundStatus(@RequestHeader HttpHeaders headers, @RequestBody byte[] body) throws IOException {
+        if (!isAuthenticated(headers, body)) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+        }
+        OutboundDocument outboundDocument = objectMapper.readValue(body, OutboundDocument.class);
+        scradaService.updateStatus(outboundDocument.id(), outboundDocument.status());
+        return ResponseEntity.noContent().build();
+    }
+
+    /// Only the body is signed, so the receiver, sender and type in the headers are verified against the signed UBL
+    @PostMapping("inbound-document")
+    public ResponseEntity<Void> inboundDocument(@RequestHeader HttpHeaders headers, @RequestBody byte[] body) {
+        if (!isAuthenticated(headers, body)) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+        }
+        UblHeader ublHeader = extractHeader(body);
+        UblDocument ublDocument = new UblDocument();
+        ublDocument.setDirection(DocumentDirection.INCOMING);
+        ublDocument.setType(scradaService.toDocumentType(requiredHeader(headers, DOCUMENT_TYPE_VALUE_HEADER)));
+        ublDocument.setOwnerPeppolId(verifiedHeader(headers, RECEIVER_ID_HEADER, ublHeader.parties().receiver()));
+        ublDocument.setPartnerPeppolId(verifiedHeader(headers, SENDER_ID_HEADER, ublHeader.parties().sender()));
+        ublDocument.setAccessPointId(requiredHeader(headers, DOCUMENT_ID_HEADER));
+        if (ublDocument.getType() != ublHeader.type()) {
+            log.warn("Scrada inbound document {} rejected, header {} does not match the UBL", ublDocument.getAccessPointId(), DOCUMENT_TYPE_VALUE_HEADER);
+            throw new BadRequestException("Header " + DOCUMENT_TYPE_VALUE_HEADER + " does not match the UBL");
+        }
+        ublDocument.setUbl(new String(body, StandardCharsets.UTF_8));
+        scradaService.receiveDocument(ublDocument);
+        return ResponseEntity.noContent().build();
+    }
+
+    private boolean isAuthenticated(HttpHeaders headers, byte[] body) {
+        if (!scradaService.isWebhookEnabled()) {
+            throw new NotFoundException("Scrada webhooks are not enabled");
+        }
+        boolean authenticated = HashUtil.verifyHmacSha256(webhookSecret, body, headers.getFirst(signatureHeader));
+        if (!authenticated) {
+            log.warn("Scrada webhook with invalid signature rejected");
+        }
+        return authenticated;
+    }
+
+    private UblHeader extractHeader(byte[] body) {
+        try {
+            return UblParser.extractHeader(new ByteArrayInputStream(body));
+        } catch (Exception e) {
+            throw new BadRequestException("Invalid UBL : " + e.getMessage());
+        }
+    }
+
+    /// Peppol ids are compared case-insensitively and without the optional identifier scheme (e.g. `iso6523-actorid-upis::`)
+    private String verifiedHeader(HttpHeaders headers, String name, String ublPeppolId) {
+        String value = requiredHeader(headers, name);
+        int scheme = value.indexOf("::");
+        String peppolId = scheme < 0 ? value : value.substring(scheme + 2);
+        if (!peppolId.equalsIgnoreCase(ublPeppolId)) {
+            log.warn("Scrada inbound document rejected, header {} {} does not match the UBL {}", name, value, ublPeppolId);
+            throw new BadRequestException("Header " + name + " does not match the UBL");
+        }
+        return value;
+    }
+
+    private String requiredHeader(HttpHeaders headers, String name) {
+        String value = headers.getFirst(name);
+        if (value == null || value.isBlank()) {
+            throw new BadRequestException("Missing header " + name);
+        }
+        return value;
+    }
+}
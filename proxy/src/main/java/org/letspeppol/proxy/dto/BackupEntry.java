@@ -0,0 +1,32 @@
+package org.letspeppol.proxy.dto;
+
+import org.letspeppol.proxy.model.DocumentDirection;
+import org.letspeppol.proxy.util.UblCodec;
+
+import java.time.Instant;
+import java.util.UUID;
+
+/// One backup of a document as written to and read from the BackupStore, the data is the ubl encoded by [UblCodec] and null once cleared (no-archive).
+/// The data is the same array as stored in the payload, so a queued backup does not hold another copy of the ubl.
+/// The hash of the content is only known when written, it acknowledges exactly this content and is not stored.
+public record BackupEntry(
+        UUID id,
+        String ownerPeppolId,
+        DocumentDirection direction,
+        Instant createdOn,
+        String hash,
+        byte[] data
+) {
+    public static BackupEntry cleared(BackupReference backupReference) {
+        return new BackupEntry(backupReference.id(), backupReference.ownerPeppolId(), backupReference.direction(), backupReference.createdOn(), null, null);
+    }
+
+    public boolean isCleared() {
+        return data == null;
+    }
+
+    /// Decodes the data, null once cleared
+    public String ubl() {
+        return UblCodec.decode(data);
+    }
+}
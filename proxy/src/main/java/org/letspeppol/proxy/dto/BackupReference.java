@@ -0,0 +1,14 @@
+package org.letspeppol.proxy.dto;
+
+import org.letspeppol.proxy.model.DocumentDirection;
+
+import java.time.Instant;
+import java.util.UUID;
+
+/// The fields that identify the backup of a document, see BackupEntry
+public record BackupReference(
+        UUID id,
+        String ownerPeppolId,
+        DocumentDirection direction,
+        Instant createdOn
+) {}
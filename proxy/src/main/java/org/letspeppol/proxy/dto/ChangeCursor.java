@@ -0,0 +1,26 @@
+package org.letspeppol.proxy.dto;
+
+import org.letspeppol.proxy.exception.BadRequestException;
+
+/// Position in the change feed, ordered by transaction and event id. Written as `<txId>_<eventId>`.
+public record ChangeCursor(
+        long txId,
+        long eventId
+) {
+    public static final ChangeCursor START = new ChangeCursor(0, 0);
+
+    /// Used by Spring to convert request parameters
+    public static ChangeCursor valueOf(String cursor) {
+        int separator = cursor.indexOf('_');
+        try {
+            return new ChangeCursor(Long.parseLong(cursor.substring(0, separator)), Long.parseLong(cursor.substring(separator + 1)));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw new BadRequestException("Invalid cursor " + cursor);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return txId + "_" + eventId;
+    }
+}
@@ -0,0 +1,19 @@
+package org.letspeppol.proxy.dto;
+
+import org.letspeppol.proxy.model.DocumentDirection;
+
+import java.time.Instant;
+import java.util.UUID;
+
+/// A document to move to the cold tier, with the hash of its content to verify the backup against
+public record ColdCandidate(
+        UUID id,
+        String ownerPeppolId,
+        DocumentDirection direction,
+        Instant createdOn,
+        String hash
+) {
+    public BackupReference backupReference() {
+        return new BackupReference(id, ownerPeppolId, direction, createdOn);
+    }
+}
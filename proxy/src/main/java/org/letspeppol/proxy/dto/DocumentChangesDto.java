@@ -0,0 +1,9 @@
+package org.letspeppol.proxy.dto;
+
+import java.util.List;
+
+/// The cursor is the position after the last change, to be passed as `since` for the next changes
+public record DocumentChangesDto(
+        String cursor,
+        List<DocumentStatusDto> changes
+) {}
@@ -0,0 +1,34 @@
+package org.letspeppol.proxy.dto;
+
+import org.letspeppol.proxy.exception.BadRequestException;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.UUID;
+
+/// Keyset position of a document in the new documents, ordered by createdOn and id. Written as `<createdOn>_<id>`.
+public record DocumentCursor(
+        Instant createdOn,
+        UUID id
+) {
+    public static final DocumentCursor START = new DocumentCursor(Instant.EPOCH, new UUID(0, 0));
+
+    public static DocumentCursor of(UblDocumentDto ublDocumentDto) {
+        return new DocumentCursor(ublDocumentDto.createdOn(), ublDocumentDto.id());
+    }
+
+    /// Used by Spring to convert request parameters
+    public static DocumentCursor valueOf(String cursor) {
+        int separator = cursor.lastIndexOf('_');
+        try {
+            return new DocumentCursor(Instant.parse(cursor.substring(0, separator)), UUID.fromString(cursor.substring(separator + 1)));
+        } catch (DateTimeParseException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new BadRequestException("Invalid cursor " + cursor);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return createdOn + "_" + id;
+    }
+}
@@ -0,0 +1,14 @@
+package org.letspeppol.proxy.dto;
+
+import org.letspeppol.proxy.model.DocumentEventType;
+import java.time.Instant;
+import java.util.UUID;
+
+public record DocumentStatusDto(
+        UUID id,
+        DocumentEventType event,
+        Instant scheduledOn,
+        Instant processedOn,
+        String processedStatus,
+        Instant changedOn
+) {}
@@ -0,0 +1,10 @@
+package org.letspeppol.proxy.dto;
+
+import java.util.UUID;
+
+/// Projection of a due outgoing document, interactive when scheduled for (almost) immediately at creation
+public interface DueCandidate {
+    UUID getId();
+    String getOwnerPeppolId();
+    Boolean getInteractive();
+}
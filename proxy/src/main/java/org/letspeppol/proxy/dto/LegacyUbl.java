@@ -0,0 +1,8 @@
+package org.letspeppol.proxy.dto;
+
+import java.util.UUID;
+
+public record LegacyUbl(
+        UUID id,
+        String ubl
+) {}
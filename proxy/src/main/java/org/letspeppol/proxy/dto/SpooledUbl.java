@@ -0,0 +1,14 @@
+package org.letspeppol.proxy.dto;
+
+import java.nio.file.Path;
+
+/// An uploaded ubl spooled to a file while hashed, parsed, stored and backed up from the file instead of a String, see UblSpoolService
+public record SpooledUbl(
+        Path path,
+        String hash,
+        long size
+) {
+    public boolean isEmpty() {
+        return size == 0;
+    }
+}
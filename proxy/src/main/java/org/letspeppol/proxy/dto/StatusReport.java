@@ -2,5 +2,15 @@ package org.letspeppol.proxy.dto;
 
 public record StatusReport(
         boolean success,
-        String statusMessage
-) {}
+        String statusMessage,
+        boolean pending,
+        int attempt
+) {
+    public StatusReport(boolean success, String statusMessage) {
+        this(success, statusMessage, false, 0);
+    }
+
+    public static StatusReport pending(int attempt) {
+        return new StatusReport(false, null, true, attempt);
+    }
+}
@@ -0,0 +1,12 @@
+package org.letspeppol.proxy.dto;
+
+import org.letspeppol.proxy.model.DocumentType;
+import org.w3c.dom.Document;
+
+/// UBL parsed once per request, shared by validation, sender authorization and creation
+public record UblContext(
+        Document document,
+        DocumentType type, //Detected from the root element, null when neither Invoice nor CreditNote
+        PeppolParties parties,
+        String hash
+) {}
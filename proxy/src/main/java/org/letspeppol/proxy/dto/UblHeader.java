@@ -0,0 +1,19 @@
+package org.letspeppol.proxy.dto;
+
+import org.letspeppol.proxy.model.DocumentType;
+
+public record UblHeader(
+        String rootElement, //Local name of the root element, i.e. Invoice or CreditNote
+        PeppolParties parties
+) {
+    public DocumentType type() {
+        if (rootElement == null) {
+            return null;
+        }
+        return switch (rootElement) {
+            case "Invoice" -> DocumentType.INVOICE;
+            case "CreditNote" -> DocumentType.CREDIT_NOTE;
+            default -> null;
+        };
+    }
+}
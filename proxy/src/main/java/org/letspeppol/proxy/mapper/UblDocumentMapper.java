@@ -5,6 +5,11 @@ import org.letspeppol.proxy.model.UblDocument;
 
 public class UblDocumentMapper {
     public static UblDocumentDto toDto(UblDocument ublDocument) {
+        return ublDocument == null ? null : toDto(ublDocument, ublDocument.getUbl());
+    }
+
+    /// Variant with the ubl read elsewhere, e.g. from the BackupStore for an archived document
+    public static UblDocumentDto toDto(UblDocument ublDocument, String ubl) {
         if (ublDocument == null) {
             return null;
         }
@@ -18,7 +23,7 @@ public class UblDocumentMapper {
                 ublDocument.getScheduledOn(),
                 ublDocument.getProcessedOn(),
                 ublDocument.getProcessedStatus(),
-                ublDocument.getUbl()
+                ubl
         );
     }
 }
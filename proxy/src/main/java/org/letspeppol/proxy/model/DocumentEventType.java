@@ -0,0 +1,8 @@
+package org.letspeppol.proxy.model;
+
+public enum DocumentEventType {
+    RECEIVED,
+    PICKED_UP,
+    PROCESSED,
+    STATUS_CHANGED
+}
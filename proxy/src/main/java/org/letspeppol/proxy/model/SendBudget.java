@@ -0,0 +1,30 @@
+package org.letspeppol.proxy.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import java.time.Instant;
+
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Entity
+public class SendBudget {
+
+    @Id
+    private String name; //GLOBAL or the AccessPoint name
+
+    @Column(nullable = false)
+    private Double tokens; //As of refilledOn, can be above capacity after a manual top-up or below zero after forced consumption
+
+    @Column(nullable = false)
+    private Double capacity; //Burst, refilling stops at this amount
+
+    @Column(nullable = false)
+    private Double refillPerSecond;
+
+    @Column(nullable = false)
+    private Instant refilledOn;
+
+}
@@ -0,0 +1,19 @@
+package org.letspeppol.proxy.model;
+
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+import org.letspeppol.proxy.util.UblCodec;
+
+@Converter
+public class UblConverter implements AttributeConverter<String, byte[]> {
+
+    @Override
+    public byte[] convertToDatabaseColumn(String ubl) {
+        return UblCodec.encode(ubl);
+    }
+
+    @Override
+    public String convertToEntityAttribute(byte[] data) {
+        return UblCodec.decode(data);
+    }
+}
@@ -48,7 +48,7 @@ public class UblDocument {
     private String processedStatus; //Useful for feedback from Peppol AP
 
     @Lob
-    private String ubl; //Can be left empty once processed as owner owns the data, i.e. no-archive is enabled and downloadCount > 1, the other field are sufficient to keep the proxy fully operational
+    private String ubl; //Inline ubl of rows from before the payloads, moved to a compressed UblPayload by a background migration. Can be left empty once processed as owner owns the data, i.e. no-archive is enabled and downloadCount > 1, the other field are sufficient to keep the proxy fully operational
 
     ///INTERNAL INFORMATION
 
@@ -67,4 +67,29 @@ public class UblDocument {
 
     private String accessPointId; //Could be a non-unique value when the same docUuid is used for sender and receiver, can be null for outgoing ubl document when not yet send via Peppol AP
 
+    private Instant nextCheckAt; //Next moment the status of an outgoing ubl document is polled at the Peppol AP, postponed with a backoff while it is still pending
+
+    @Column(nullable = false)
+    private Integer checkCount; //Number of status polls that returned pending since the ubl document was picked up by the Peppol AP
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "payload_hash")
+    private UblPayload payload; //Shared content addressed ubl, managed by UblPayloadService, null once released (no-archive)
+
+    private Instant backedUpOn; //Moment the backup file is durably written by the BackupWriter, null while pending
+
+    private Instant archivedOn; //Moment the payload is moved to the cold tier, the content is then only read from the BackupStore, see UblDocumentTieringService
+
+    public String getUbl() {
+        if (payload != null) {
+            return payload.getUbl();
+        }
+        return ubl;
+    }
+
+    /// Inline storage, only for documents that are not persisted (e.g. received by webhook) or rows from before the payloads, persisted documents use UblPayloadService
+    public void setUbl(String ubl) {
+        this.ubl = ubl;
+    }
+
 }
@@ -0,0 +1,44 @@
+package org.letspeppol.proxy.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import org.hibernate.annotations.Immutable;
+import java.time.Instant;
+import java.util.UUID;
+
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Immutable
+@Entity
+public class UblDocumentEvent {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(insertable = false, updatable = false)
+    private Long txId; //Transaction of the event set by the database, the change feed is ordered by (txId, id) so no event of a running transaction can be passed
+
+    @Column(nullable = false)
+    private UUID documentId;
+
+    @Column(nullable = false)
+    private String ownerPeppolId;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false)
+    private DocumentEventType type;
+
+    private Instant scheduledOn; //Snapshot of the document when the event happened
+
+    private Instant processedOn;
+
+    private String processedStatus;
+
+    @Column(nullable = false, updatable = false)
+    private Instant createdOn;
+
+}
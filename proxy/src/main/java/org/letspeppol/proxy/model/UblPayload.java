@@ -0,0 +1,30 @@
+package org.letspeppol.proxy.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import org.hibernate.annotations.Immutable;
+import java.time.Instant;
+
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Immutable
+@Entity
+public class UblPayload {
+
+    @Id
+    private String hash; //SHA-256 of the ubl, the content address shared by all ubl documents with the same content
+
+    @Convert(converter = UblConverter.class)
+    @Column(name = "data", nullable = false)
+    private String ubl; //Stored compressed, see UblCodec
+
+    @Column(nullable = false)
+    private Integer refCount; //Number of ubl documents referencing this payload, only changed by UblPayloadService, garbage collected when 0
+
+    @Column(nullable = false, updatable = false)
+    private Instant createdOn;
+
+}
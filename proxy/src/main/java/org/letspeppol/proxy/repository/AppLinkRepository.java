@@ -2,6 +2,14 @@ package org.letspeppol.proxy.repository;
 
 import org.letspeppol.proxy.model.AppLink;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.Set;
+import java.util.UUID;
 
 public interface AppLinkRepository extends JpaRepository<AppLink, AppLink.AppLinkId>  {
+
+    @Query("select l.id.peppolId from AppLink l where l.id.linkedUid = :linkedUid")
+    Set<String> findAllPeppolIdsByLinkedUid(@Param("linkedUid") UUID linkedUid);
 }
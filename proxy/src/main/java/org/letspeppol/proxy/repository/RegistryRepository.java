@@ -2,9 +2,16 @@ package org.letspeppol.proxy.repository;
 
 import org.letspeppol.proxy.model.Registry;
 import org.letspeppol.proxy.model.AccessPoint;
+import org.letspeppol.proxy.service.RegistryCache;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 
 public interface RegistryRepository extends JpaRepository<Registry, String> {
 
     long countByAccessPointNot(AccessPoint accessPoint);
+
+    /// Delivered to the listeners of all proxy instances when the transaction commits
+    @Query(value = "select count(*) from (select pg_notify('" + RegistryCache.CHANNEL + "', :peppolId)) as notified", nativeQuery = true)
+    long notifyChanged(@Param("peppolId") String peppolId);
 }
@@ -0,0 +1,50 @@
+package org.letspeppol.proxy.repository;
+
+import org.letspeppol.proxy.model.SendBudget;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+public interface SendBudgetRepository extends JpaRepository<SendBudget, String> {
+
+    /// Keeps the tokens of an existing bucket, a new bucket starts full
+    @Modifying
+    @Query(value = """
+        insert into send_budget (name, tokens, capacity, refill_per_second, refilled_on)
+        values (:name, :capacity, :capacity, :refillPerSecond, now())
+        on conflict (name) do update set capacity = excluded.capacity, refill_per_second = excluded.refill_per_second
+    """, nativeQuery = true)
+    int configure(@Param("name") String name, @Param("capacity") double capacity, @Param("refillPerSecond") double refillPerSecond);
+
+    /// Refills and takes up to the requested whole tokens under a row lock, returns the granted amount (null for an unknown bucket)
+    @Query(value = """
+        with bucket as (
+            select name, greatest(tokens, least(capacity, tokens + refill_per_second * extract(epoch from (now() - refilled_on)))) as available
+            from send_budget
+            where name = :name
+            for update
+        ), granted as (
+            select name, available, cast(greatest(least(floor(available), :requested), 0) as integer) as amount
+            from bucket
+        )
+        update send_budget b
+        set tokens = g.available - g.amount, refilled_on = now()
+        from granted g
+        where b.name = g.name
+        returning g.amount
+    """, nativeQuery = true)
+    Integer consume(@Param("name") String name, @Param("requested") int requested);
+
+    /// Top-up, refund or (negative) forced consumption, not limited by the capacity
+    @Modifying
+    @Query(value = "update send_budget set tokens = tokens + :amount where name = :name", nativeQuery = true)
+    int add(@Param("name") String name, @Param("amount") double amount);
+
+    @Query(value = """
+        select greatest(tokens, least(capacity, tokens + refill_per_second * extract(epoch from (now() - refilled_on))))
+        from send_budget
+        where name = :name
+    """, nativeQuery = true)
+    Double available(@Param("name") String name);
+}
@@ -0,0 +1,34 @@
+package org.letspeppol.proxy.repository;
+
+import org.letspeppol.proxy.model.UblDocumentEvent;
+import org.letspeppol.proxy.service.DocumentNotificationService;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.time.Instant;
+import java.util.List;
+
+public interface UblDocumentEventRepository extends JpaRepository<UblDocumentEvent, Long> {
+
+    /// Events after the cursor of transactions that are finished for every reader, see V1.14__ubl_document_event.sql
+    @Query(value = """
+        select e.*
+        from ubl_document_event e
+        where e.owner_peppol_id = :ownerPeppolId
+          and (e.tx_id, e.id) > (:txId, :eventId)
+          and e.tx_id < cast(cast(pg_snapshot_xmin(pg_current_snapshot()) as text) as bigint)
+        order by e.tx_id, e.id
+        limit :limit
+    """, nativeQuery = true)
+    List<UblDocumentEvent> findAllAfter(@Param("ownerPeppolId") String ownerPeppolId, @Param("txId") long txId, @Param("eventId") long eventId, @Param("limit") int limit);
+
+    /// Delivered to the listeners of all proxy instances when the transaction commits
+    @Query(value = "select count(*) from (select pg_notify('" + DocumentNotificationService.CHANNEL + "', :ownerPeppolId)) as notified", nativeQuery = true)
+    long notifyReceived(@Param("ownerPeppolId") String ownerPeppolId);
+
+    @Modifying
+    @Query(value = "delete from ubl_document_event where created_on < :before", nativeQuery = true)
+    int deleteAllCreatedBefore(@Param("before") Instant before);
+}
@@ -1,48 +1,338 @@
 package org.letspeppol.proxy.repository;
 
+import org.letspeppol.proxy.dto.BackupReference;
+import org.letspeppol.proxy.dto.ColdCandidate;
+import org.letspeppol.proxy.dto.DueCandidate;
+import org.letspeppol.proxy.dto.DueDocument;
+import org.letspeppol.proxy.dto.LegacyUbl;
+import org.letspeppol.proxy.model.AccessPoint;
 import org.letspeppol.proxy.model.UblDocument;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Slice;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.domain.Pageable;
 import org.letspeppol.proxy.model.DocumentDirection;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 
 import java.time.Instant;
+import java.time.LocalDate;
 import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.stream.Stream;
 
 public interface UblDocumentRepository extends JpaRepository<UblDocument, UUID> {
-    List<UblDocument> findAllByHash(String hash);
+    /// Claims the hash in the deduplication ledger, returns 0 when it is already seen on or after the cutoff (duplicate)
+    @Modifying
+    @Query(value = """
+        insert into ubl_hash (hash, seen_on) values (:hash, now())
+        on conflict (hash) do update set seen_on = excluded.seen_on
+        where ubl_hash.seen_on < :cutoff
+    """, nativeQuery = true)
+    int claimHash(@Param("hash") byte[] hash, @Param("cutoff") Instant cutoff);
+
+    @Query(value = "select exists (select 1 from ubl_hash where hash = :hash and seen_on >= :cutoff)", nativeQuery = true)
+    boolean existsHash(@Param("hash") byte[] hash, @Param("cutoff") Instant cutoff);
+
+    @Query(value = "select hash from ubl_hash where seen_on >= :cutoff", nativeQuery = true)
+    Stream<byte[]> streamAllHashes(@Param("cutoff") Instant cutoff);
+
+    @Modifying
+    @Query(value = "delete from ubl_hash where seen_on < :before", nativeQuery = true)
+    int deleteAllHashesSeenBefore(@Param("before") Instant before);
 
     Optional<UblDocument> findByIdAndOwnerPeppolId(UUID id, String ownerPeppolId);
 
     List<UblDocument> findByIdInAndOwnerPeppolId(Collection<UUID> ids, String ownerPeppolId);
 
-    List<UblDocument> findAllByDirectionAndScheduledOnBeforeAndAccessPointIsNull(DocumentDirection direction, Instant before, Pageable pageable);
+    /// The oldest due outgoing documents of every owner per lane, at most `perOwner` of each, not leased by another proxy instance
+    @Query(value = """
+        select d.id as "id", o.owner_peppol_id as "ownerPeppolId", o.interactive as "interactive"
+        from (
+            select owner_peppol_id, scheduled_on <= created_on + make_interval(secs => :interactiveSeconds) as interactive, min(scheduled_on) as oldest
+            from ubl_document
+            where direction = 'OUTGOING'
+              and access_point is null
+              and scheduled_on < :now
+              and (lease_until is null or lease_until < :now)
+            group by 1, 2
+        ) o
+        cross join lateral (
+            select c.id, c.scheduled_on, c.created_on
+            from ubl_document c
+            where c.owner_peppol_id = o.owner_peppol_id
+              and c.direction = 'OUTGOING'
+              and c.access_point is null
+              and c.scheduled_on < :now
+              and (c.lease_until is null or c.lease_until < :now)
+              and (c.scheduled_on <= c.created_on + make_interval(secs => :interactiveSeconds)) = o.interactive
+            order by c.scheduled_on, c.created_on
+            limit :perOwner
+        ) d
+        order by o.oldest, d.scheduled_on, d.created_on
+    """, nativeQuery = true)
+    List<DueCandidate> findAllDueCandidates(@Param("now") Instant now, @Param("interactiveSeconds") double interactiveSeconds, @Param("perOwner") int perOwner);
 
-    List<UblDocument> findAllByDirectionAndProcessedOnIsNullAndAccessPointIsNotNull(DocumentDirection documentDirection, Pageable updatedOn);
+    /// Locks the selected due documents, rows locked by a concurrent claim or claimed meanwhile are skipped
+    @Query(value = """
+        select d.id
+        from ubl_document d
+        where d.id in (:ids)
+          and d.access_point is null
+          and (d.lease_until is null or d.lease_until < :now)
+        for update skip locked
+    """, nativeQuery = true)
+    List<UUID> lockAllDue(@Param("ids") Collection<UUID> ids, @Param("now") Instant now);
 
-    Optional<UblDocument> findByAccessPointId(String accessPointId);
+    @Modifying
+    @Query(value = "update ubl_document set claimed_by = :claimedBy, lease_until = :leaseUntil where id in (:ids)", nativeQuery = true)
+    int claim(@Param("ids") Collection<UUID> ids, @Param("claimedBy") String claimedBy, @Param("leaseUntil") Instant leaseUntil);
 
-    long countByOwnerPeppolIdAndDirectionAndProcessedOnIsNullAndAccessPointIsNullAndScheduledOnBetween(
-            String ownerPeppolId,
-            DocumentDirection direction,
-            Instant startInclusive,
-            Instant endExclusive
-    );
+    @Modifying
+    @Query(value = "update ubl_document set claimed_by = null, lease_until = null where id in (:ids) and claimed_by = :claimedBy", nativeQuery = true)
+    int release(@Param("ids") Collection<UUID> ids, @Param("claimedBy") String claimedBy);
+
+    /// Locks the document to send, only while it is still claimed by this instance and not yet sent
+    @Query(value = """
+        select *
+        from ubl_document
+        where id = :id
+          and claimed_by = :claimedBy
+          and lease_until > :now
+          and access_point is null
+        for update
+    """, nativeQuery = true)
+    Optional<UblDocument> findClaimedForUpdate(@Param("id") UUID id, @Param("claimedBy") String claimedBy, @Param("now") Instant now);
+
+    @Query(value = "select * from ubl_document where id = :id for update", nativeQuery = true)
+    Optional<UblDocument> findByIdForUpdate(@Param("id") UUID id);
 
-    long countByOwnerPeppolIdAndPartnerPeppolIdAndDirectionAndProcessedOnIsNullAndAccessPointIsNullAndScheduledOnBetween(
-            String ownerPeppolId,
-            String partnerPeppolId,
-            DocumentDirection direction,
-            Instant startInclusive,
-            Instant endExclusive
+    /// Flags the processed documents among the ids as downloaded in one statement, only those of the owner and/or linked to the App, returns the flagged ids
+    @Query(value = """
+        update ubl_document d
+        set download_count = d.download_count + 1, updated_on = now()
+        where d.id in (:ids)
+          and d.access_point is not null
+          and (cast(:ownerPeppolId as text) is null or d.owner_peppol_id = cast(:ownerPeppolId as text))
+          and (cast(:appUid as uuid) is null or exists (
+              select 1 from app_link l where l.peppol_id = d.owner_peppol_id and l.linked_uid = cast(:appUid as uuid)
+          ))
+        returning d.id
+    """, nativeQuery = true)
+    List<UUID> markDownloaded(@Param("ids") Collection<UUID> ids, @Param("ownerPeppolId") String ownerPeppolId, @Param("appUid") UUID appUid);
+
+    @Query("""
+        select new org.letspeppol.proxy.dto.BackupReference(d.id, d.ownerPeppolId, d.direction, d.createdOn)
+        from UblDocument d
+        where d.id in :ids
+    """)
+    List<BackupReference> findAllBackupReferencesByIdIn(@Param("ids") Collection<UUID> ids);
+
+    @Query("""
+        select new org.letspeppol.proxy.dto.ColdCandidate(d.id, d.ownerPeppolId, d.direction, d.createdOn, d.hash)
+        from UblDocument d
+        where d.id in :ids
+    """)
+    List<ColdCandidate> findAllColdCandidatesByIdIn(@Param("ids") Collection<UUID> ids);
+
+    /// Bulk variant of UblPayloadService.detach, the references of the payloads are to be released first
+    @Modifying
+    @Query(value = "update ubl_document set payload_hash = null, ubl = null where id in (:ids)", nativeQuery = true)
+    int detachAll(@Param("ids") Collection<UUID> ids);
+
+    /// Only while the written content is still attached, a clear or a new content committed after the write stays pending
+    @Modifying
+    @Query(value = "update ubl_document set backed_up_on = now() where id = :id and hash = :hash and payload_hash is not null", nativeQuery = true)
+    int markWriteBackedUp(@Param("id") UUID id, @Param("hash") String hash);
+
+    /// Only once the content is released (no-archive)
+    @Modifying
+    @Query(value = "update ubl_document set backed_up_on = now() where id in (:ids) and payload_hash is null and ubl is null", nativeQuery = true)
+    int markClearBackedUp(@Param("ids") Collection<UUID> ids);
+
+    /// Set together with the release of the content, so the clear is recovered when dropped from the queue
+    @Modifying
+    @Query(value = "update ubl_document set backed_up_on = null where id in (:ids)", nativeQuery = true)
+    int markBackupPending(@Param("ids") Collection<UUID> ids);
+
+    /// Documents of which the backup is not acknowledged in time (e.g. lost from the queue on restart) and the content is still available
+    @Query("""
+        select d
+        from UblDocument d
+        join fetch d.payload
+        where d.backedUpOn is null
+          and d.createdOn < :before
+        order by d.createdOn
+    """)
+    List<UblDocument> findAllBackupPending(@Param("before") Instant before, Pageable pageable);
+
+    /// Documents of which the clear of the backup (no-archive) is not acknowledged in time
+    @Query("""
+        select new org.letspeppol.proxy.dto.BackupReference(d.id, d.ownerPeppolId, d.direction, d.createdOn)
+        from UblDocument d
+        where d.backedUpOn is null
+          and d.payload is null
+          and d.ubl is null
+          and d.createdOn < :before
+        order by d.createdOn
+    """)
+    List<BackupReference> findAllClearPending(@Param("before") Instant before, Pageable pageable);
+
+    /// Creates the missing monthly partitions up to `monthsAhead`, returns the # created partitions
+    @Query(value = "select ensure_ubl_document_partitions(:monthsAhead)", nativeQuery = true)
+    int ensurePartitions(@Param("monthsAhead") int monthsAhead);
+
+    /// One step of moving the legacy partition into monthly partitions, returns 0 once every legacy row is copied
+    @Query(value = "select move_ubl_document_legacy(:batchSize)", nativeQuery = true)
+    int moveLegacyBatch(@Param("batchSize") int batchSize);
+
+    /// Replaces the legacy partition by the monthly partitions, false when the copy is not finished or the table is busy
+    @Query(value = "select swap_ubl_document_legacy(:monthsAhead)", nativeQuery = true)
+    boolean swapLegacy(@Param("monthsAhead") int monthsAhead);
+
+    /// Processed and downloaded documents created before `before` of which the payload can move to the cold tier, only once the backup is acknowledged
+    @Query(value = """
+        select id
+        from ubl_document
+        where created_on < :before
+          and archived_on is null
+          and payload_hash is not null
+          and backed_up_on is not null
+          and processed_on is not null
+          and download_count > 0
+        order by created_on
+        limit :limit
+    """, nativeQuery = true)
+    List<UUID> findAllColdCandidateIds(@Param("before") Instant before, @Param("limit") int limit);
+
+    @Modifying
+    @Query(value = "update ubl_document set archived_on = now() where id in (:ids)", nativeQuery = true)
+    int archiveAll(@Param("ids") Collection<UUID> ids);
+
+    @Query("""
+        select new org.letspeppol.proxy.dto.LegacyUbl(d.id, d.ubl)
+        from UblDocument d
+        where d.payload is null
+          and d.ubl is not null
+    """)
+    List<LegacyUbl> findAllLegacyUbl(Pageable pageable);
+
+    @Modifying
+    @Query(value = "update ubl_document set payload_hash = :payloadHash, ubl = null where id = :id and payload_hash is null and ubl is not null", nativeQuery = true)
+    int migrateToPayload(@Param("id") UUID id, @Param("payloadHash") String payloadHash);
+
+    @Query("""
+        select new org.letspeppol.proxy.dto.DueDocument(d.id, d.ownerPeppolId)
+        from UblDocument d
+        where d.id in :ids
+        order by d.scheduledOn asc, d.createdOn asc
+    """)
+    List<DueDocument> findAllDueByIdIn(@Param("ids") Collection<UUID> ids);
+
+    @Query("""
+        select d
+        from UblDocument d
+        where d.direction = :direction
+          and d.processedOn is null
+          and d.accessPoint is not null
+          and (d.nextCheckAt is null or d.nextCheckAt <= :now)
+        order by d.nextCheckAt asc nulls first
+    """)
+    List<UblDocument> findAllToSynchronize(
+            @Param("direction") DocumentDirection direction,
+            @Param("now") Instant now,
+            Pageable pageable
     );
 
+    @Query("""
+        select count(d)
+        from UblDocument d
+        where d.direction = :direction
+          and d.processedOn is null
+          and d.accessPoint is not null
+          and (d.nextCheckAt is null or d.nextCheckAt <= :now)
+    """)
+    long countToSynchronize(@Param("direction") DocumentDirection direction, @Param("now") Instant now);
+
+    /// Documents not yet picked up by an Access Point and due, leased ones included
+    @Query("""
+        select count(d)
+        from UblDocument d
+        where d.direction = :direction
+          and d.accessPoint is null
+          and d.scheduledOn < :now
+    """)
+    long countDue(@Param("direction") DocumentDirection direction, @Param("now") Instant now);
+
+    @Query("""
+        select min(d.scheduledOn)
+        from UblDocument d
+        where d.direction = :direction
+          and d.accessPoint is null
+          and d.scheduledOn < :now
+    """)
+    Optional<Instant> findOldestDueScheduledOn(@Param("direction") DocumentDirection direction, @Param("now") Instant now);
+
+    long countByDirectionAndAccessPointIsNull(DocumentDirection direction);
+
+    Optional<UblDocument> findByDirectionAndAccessPointAndAccessPointId(DocumentDirection direction, AccessPoint accessPoint, String accessPointId);
+
+    boolean existsByDirectionAndAccessPointAndAccessPointId(DocumentDirection direction, AccessPoint accessPoint, String accessPointId);
+
+    /// Serializes the quota reservations of an owner until the end of the transaction
+    @Query(value = "select count(*) from (select pg_advisory_xact_lock(hashtext(:ownerPeppolId))) as locked", nativeQuery = true)
+    long lockSendQuota(@Param("ownerPeppolId") String ownerPeppolId);
+
+    /// Days after `from` of the first day where both the owner and the pair of parties are under their maximum, only the full days of the owner
+    /// are read from the ledger (in primary key order), the first free day is `from` or the day after a full day that is not full itself
+    @Query(value = """
+        with full_day as (
+            select q.day
+            from send_quota q
+            where q.owner_peppol_id = :ownerPeppolId
+              and q.day between cast(:from as date) and cast(:from as date) + :horizonDays
+            group by q.day
+            having sum(q.count) >= :maximumPerDay
+                or coalesce(sum(q.count) filter (where q.partner_peppol_id = :partnerPeppolId), 0) >= :maximumBetweenParties
+        )
+        select min(c.day) - cast(:from as date)
+        from (
+            select cast(:from as date) as day
+            union all
+            select f.day + 1 from full_day f
+        ) c
+        where c.day <= cast(:from as date) + :horizonDays
+          and not exists (select 1 from full_day f where f.day = c.day)
+    """, nativeQuery = true)
+    Optional<Integer> findFirstFreeSendDay(@Param("ownerPeppolId") String ownerPeppolId,
+                                             @Param("partnerPeppolId") String partnerPeppolId,
+                                             @Param("from") LocalDate from,
+                                             @Param("horizonDays") int horizonDays,
+                                             @Param("maximumPerDay") int maximumPerDay,
+                                             @Param("maximumBetweenParties") int maximumBetweenParties);
+
+    @Modifying
+    @Query(value = """
+        insert into send_quota (owner_peppol_id, day, partner_peppol_id, count)
+        values (:ownerPeppolId, :day, :partnerPeppolId, 1)
+        on conflict (owner_peppol_id, day, partner_peppol_id) do update set count = send_quota.count + 1
+    """, nativeQuery = true)
+    int reserveSendQuota(@Param("ownerPeppolId") String ownerPeppolId, @Param("partnerPeppolId") String partnerPeppolId, @Param("day") LocalDate day);
+
+    @Modifying
+    @Query(value = """
+        update send_quota set count = count - 1
+        where owner_peppol_id = :ownerPeppolId and day = :day and partner_peppol_id = :partnerPeppolId and count > 0
+    """, nativeQuery = true)
+    int releaseSendQuota(@Param("ownerPeppolId") String ownerPeppolId, @Param("partnerPeppolId") String partnerPeppolId, @Param("day") LocalDate day);
+
+    @Modifying
+    @Query(value = "delete from send_quota where day < :today or count <= 0", nativeQuery = true)
+    int deleteSendQuotaBefore(@Param("today") LocalDate today);
+
     @Query("""
         select d
         from UblDocument d
@@ -73,4 +363,44 @@ public interface UblDocumentRepository extends JpaRepository<UblDocument, UUID>
             @Param("directions") Collection<DocumentDirection> directions,
             Pageable pageable
     );
+
+    /// Keyset pages of the new documents, created before `before` so no document still being committed is skipped
+    @Query("""
+        select d
+        from UblDocument d
+        where d.ownerPeppolId = :ownerPeppolId
+          and d.downloadCount = 0
+          and d.direction in :directions
+          and (d.createdOn > :createdOn or (d.createdOn = :createdOn and d.id > :id))
+          and d.createdOn < :before
+        order by d.createdOn asc, d.id asc
+    """)
+    List<UblDocument> findAllNewByOwnerPeppolIdAfter(
+            @Param("ownerPeppolId") String ownerPeppolId,
+            @Param("directions") Collection<DocumentDirection> directions,
+            @Param("createdOn") Instant createdOn,
+            @Param("id") UUID id,
+            @Param("before") Instant before,
+            Pageable pageable
+    );
+
+    @Query("""
+        select d
+        from UblDocument d, AppLink l
+        where l.id.linkedUid = :uid
+          and l.id.peppolId = d.ownerPeppolId
+          and d.downloadCount = 0
+          and d.direction in :directions
+          and (d.createdOn > :createdOn or (d.createdOn = :createdOn and d.id > :id))
+          and d.createdOn < :before
+        order by d.createdOn asc, d.id asc
+    """)
+    List<UblDocument> findAllNewByLinkedUidAfter(
+            @Param("uid") UUID uid,
+            @Param("directions") Collection<DocumentDirection> directions,
+            @Param("createdOn") Instant createdOn,
+            @Param("id") UUID id,
+            @Param("before") Instant before,
+            Pageable pageable
+    );
 }
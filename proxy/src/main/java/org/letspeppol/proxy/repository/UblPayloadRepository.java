@@ -0,0 +1,52 @@
+package org.letspeppol.proxy.repository;
+
+import org.letspeppol.proxy.model.UblPayload;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.Collection;
+import java.util.UUID;
+
+public interface UblPayloadRepository extends JpaRepository<UblPayload, String> {
+
+    @Modifying
+    @Query(value = "update ubl_payload set ref_count = ref_count + 1 where hash = :hash", nativeQuery = true)
+    int increment(@Param("hash") String hash);
+
+    @Modifying
+    @Query(value = """
+        insert into ubl_payload (hash, data, ref_count, created_on)
+        values (:hash, :data, 1, now())
+        on conflict (hash) do update set ref_count = ubl_payload.ref_count + 1
+    """, nativeQuery = true)
+    int insertOrIncrement(@Param("hash") String hash, @Param("data") byte[] data);
+
+    @Modifying
+    @Query(value = "update ubl_payload set ref_count = ref_count - 1 where hash = :hash", nativeQuery = true)
+    int decrement(@Param("hash") String hash);
+
+    /// Releases one reference per document among the ids, before the documents are detached
+    @Modifying
+    @Query(value = """
+        update ubl_payload p
+        set ref_count = p.ref_count - r.released
+        from (
+            select payload_hash, count(*) as released
+            from ubl_document
+            where id in (:ids) and payload_hash is not null
+            group by payload_hash
+        ) r
+        where p.hash = r.payload_hash
+    """, nativeQuery = true)
+    int decrementAllReferencedBy(@Param("ids") Collection<UUID> ids);
+
+    @Modifying
+    @Query(value = """
+        delete from ubl_payload p
+        where p.ref_count <= 0
+          and not exists (select 1 from ubl_document d where d.payload_hash = p.hash)
+    """, nativeQuery = true)
+    int deleteAllUnreferenced();
+}
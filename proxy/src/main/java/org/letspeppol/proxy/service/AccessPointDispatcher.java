@@ -0,0 +1,74 @@
+package org.letspeppol.proxy.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.letspeppol.proxy.model.AccessPoint;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/// Runs blocking Access Point calls on virtual threads, bounded by a concurrency limit per [AccessPoint].
+/// The limit is read from `scheduler.dispatch.concurrency.<access-point>` (e.g. `scheduler.dispatch.concurrency.scrada=8`)
+/// and falls back to `scheduler.dispatch.default-concurrency`. No connection is held while the Access Point is called,
+/// the dispatched tasks only use one for the short transactions before and after the call.
+@Slf4j
+@Component
+public class AccessPointDispatcher {
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<AccessPoint, Semaphore> permits = new ConcurrentHashMap<>();
+    private final Environment environment;
+    private final int defaultConcurrency;
+
+    public AccessPointDispatcher(Environment environment, @Value("${scheduler.dispatch.default-concurrency:4}") int defaultConcurrency) {
+        this.environment = environment;
+        this.defaultConcurrency = defaultConcurrency;
+    }
+
+    public <T> CompletableFuture<T> submit(AccessPoint accessPoint, Supplier<T> task) {
+        Semaphore semaphore = permits.computeIfAbsent(accessPoint, this::createPermits);
+        return CompletableFuture.supplyAsync(() -> {
+            semaphore.acquireUninterruptibly();
+            try {
+                return task.get();
+            } finally {
+                semaphore.release();
+            }
+        }, executor);
+    }
+
+    public CompletableFuture<Void> execute(AccessPoint accessPoint, Runnable task) {
+        return this.<Void>submit(accessPoint, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /// Blocks until every task is finished, failures are expected to be handled by the tasks themselves
+    public static void awaitAll(Collection<? extends CompletableFuture<?>> futures) {
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new))
+                .exceptionally(e -> null)
+                .join();
+    }
+
+    private Semaphore createPermits(AccessPoint accessPoint) {
+        String key = "scheduler.dispatch.concurrency." + accessPoint.name().toLowerCase().replace('_', '-');
+        int concurrency = Math.max(environment.getProperty(key, Integer.class, defaultConcurrency), 1);
+        log.info("Dispatching to Peppol Access Point {} with concurrency {}", accessPoint, concurrency);
+        return new Semaphore(concurrency, true);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
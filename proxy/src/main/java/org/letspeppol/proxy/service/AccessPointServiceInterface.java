@@ -18,6 +18,10 @@ public interface AccessPointServiceInterface {
 
     StatusReport getStatus(UblDocument ublDocument);
 
+    default boolean isWebhookEnabled() { //Polling is only a safety net when the AP pushes updates
+        return false;
+    }
+
     void updateStatus(String id, String status); //For webhooks
 
     void receiveDocument(UblDocument ublDocument); //For webhooks
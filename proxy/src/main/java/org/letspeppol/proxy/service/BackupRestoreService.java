@@ -0,0 +1,318 @@
+package org.letspeppol.proxy.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.letspeppol.proxy.dto.BackupEntry;
+import org.letspeppol.proxy.dto.UblHeader;
+import org.letspeppol.proxy.model.DocumentDirection;
+import org.letspeppol.proxy.util.HashUtil;
+import org.letspeppol.proxy.util.UblCodec;
+import org.letspeppol.proxy.util.UblParser;
+import org.postgresql.PGConnection;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/// Disaster recovery, rebuilds `ubl_document` (with payloads and the deduplication ledger) from the live backups of the [BackupStore].
+/// The parts of the store are restored in parallel, each worker keeps one connection and loads batches into a temporary staging table
+/// with COPY (batched inserts when the driver has no COPY) before merging them. Existing documents are left untouched, so a restore
+/// can run again safely, completed parts are checkpointed in `restore.checkpoint-file` and skipped when resumed.
+/// Hash, parties and type are derived from the ubl again, a restored document is processed (`RESTORED`) and by default downloaded.
+@Slf4j
+@Profile("restore")
+@Service
+public class BackupRestoreService {
+
+    public static final String RESTORED_STATUS = "RESTORED";
+
+    private static final String CREATE_STAGING = """
+        create temporary table if not exists restore_staging (
+            id uuid, direction text, type text, owner_peppol_id text, partner_peppol_id text, created_on timestamp with time zone, hash text, data bytea
+        )
+    """;
+    private static final String COPY_STAGING = "copy restore_staging (id, direction, type, owner_peppol_id, partner_peppol_id, created_on, hash, data) from stdin";
+    private static final String INSERT_STAGING = "insert into restore_staging (id, direction, type, owner_peppol_id, partner_peppol_id, created_on, hash, data) values (?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String MERGE_PAYLOADS = """
+        insert into ubl_payload (hash, data, ref_count, created_on)
+        select distinct on (hash) hash, data, 0, now() from restore_staging
+        on conflict (hash) do nothing
+    """;
+    private static final String MERGE_DOCUMENTS = """
+        with inserted as (
+            insert into ubl_document (id, direction, type, owner_peppol_id, partner_peppol_id, created_on, processed_on, processed_status, hash, download_count, updated_on, payload_hash, backed_up_on)
+            select id, cast(direction as document_direction), cast(type as document_type), owner_peppol_id, partner_peppol_id, created_on, created_on, ?, hash, ?, now(), hash, now()
+            from restore_staging s
+            where not exists (select 1 from ubl_document d where d.id = s.id)
+            on conflict do nothing
+            returning payload_hash
+        ), referenced as (
+            update ubl_payload p
+            set ref_count = p.ref_count + r.restored
+            from (select payload_hash, count(*) as restored from inserted group by payload_hash) r
+            where p.hash = r.payload_hash
+        )
+        select count(*) from inserted
+    """;
+    private static final String MERGE_HASHES = """
+        insert into ubl_hash (hash, seen_on)
+        select decode(hash, 'hex'), max(created_on) from restore_staging group by hash
+        on conflict (hash) do nothing
+    """;
+
+    private final BackupStore backupStore;
+    private final DataSource dataSource;
+    private final int parallelism;
+    private final int batchSize;
+    private final boolean markDownloaded;
+    private final Path checkpointFile;
+    private final Duration reportInterval;
+    private final AtomicLong restored = new AtomicLong();
+    private final AtomicLong existing = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private Instant started;
+    private Instant lastReport;
+
+    public BackupRestoreService(BackupStore backupStore,
+                                DataSource dataSource,
+                                @Value("${backup.data.dir:#{null}}") String dataDirectory,
+                                @Value("${spring.application.name}") String applicationName,
+                                @Value("${restore.parallelism:4}") int parallelism,
+                                @Value("${restore.batch-size:1000}") int batchSize,
+                                @Value("${restore.mark-downloaded:true}") boolean markDownloaded,
+                                @Value("${restore.checkpoint-file:}") String checkpointFile,
+                                @Value("${restore.report-interval:10s}") Duration reportInterval) {
+        this.backupStore = backupStore;
+        this.dataSource = dataSource;
+        this.parallelism = Math.max(parallelism, 1);
+        this.batchSize = Math.max(batchSize, 1);
+        this.markDownloaded = markDownloaded;
+        this.checkpointFile = checkpointFile.isBlank() ? BackupStore.directory(dataDirectory, applicationName).resolve("restore.checkpoint") : Path.of(checkpointFile);
+        this.reportInterval = reportInterval;
+    }
+
+    /// Restores every part that is not yet checkpointed, returns false when a part failed (it is retried on the next run)
+    public boolean restore() throws IOException, InterruptedException {
+        Set<String> completed = readCheckpoint();
+        List<BackupStore.Part> parts = backupStore.parts().stream().filter(part -> !completed.contains(part.name())).toList();
+        log.info("Restoring {} backup parts ({} already completed) with {} workers", parts.size(), completed.size(), parallelism);
+        started = Instant.now();
+        lastReport = started;
+        List<String> failed = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (BackupStore.Part part : parts) {
+                futures.add(executor.submit(() -> {
+                    restore(part);
+                    return null;
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    log.error("Restoring backup part {} failed", parts.get(i).name(), e.getCause());
+                    failed.add(parts.get(i).name());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        report(true);
+        if (!failed.isEmpty()) {
+            log.error("Restore incomplete, {} parts failed and are retried on the next run: {}", failed.size(), failed);
+        }
+        return failed.isEmpty();
+    }
+
+    private void restore(BackupStore.Part part) throws IOException, SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(CREATE_STAGING);
+            }
+            connection.commit();
+            List<Row> batch = new ArrayList<>(batchSize);
+            SQLException[] failure = new SQLException[1];
+            part.read(entry -> {
+                if (failure[0] != null) {
+                    return;
+                }
+                Row row = toRow(entry);
+                if (row == null) {
+                    return;
+                }
+                batch.add(row);
+                if (batch.size() >= batchSize) {
+                    try {
+                        flush(connection, batch);
+                    } catch (SQLException e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            flush(connection, batch);
+        }
+        checkpoint(part.name());
+        log.info("Restored backup part {}", part.name());
+    }
+
+    /// Null when the backup is no ubl the proxy can derive a document from
+    private Row toRow(BackupEntry entry) {
+        try {
+            UblHeader ublHeader;
+            try (InputStream inputStream = UblCodec.inputStream(entry.data())) {
+                ublHeader = UblParser.extractHeader(inputStream);
+            }
+            String hash;
+            try (InputStream inputStream = UblCodec.inputStream(entry.data())) {
+                hash = HashUtil.sha256(inputStream);
+            }
+            boolean outgoing = entry.direction() == DocumentDirection.OUTGOING;
+            return new Row(
+                    entry,
+                    ublHeader.type() == null ? null : ublHeader.type().name(),
+                    outgoing ? ublHeader.parties().sender() : ublHeader.parties().receiver(),
+                    outgoing ? ublHeader.parties().receiver() : ublHeader.parties().sender(),
+                    hash,
+                    entry.data() //Already encoded
+            );
+        } catch (Exception e) {
+            log.warn("Skipping backup of document {}, not a restorable ubl: {}", entry.id(), e.getMessage());
+            skipped.incrementAndGet();
+            return null;
+        }
+    }
+
+    private void flush(Connection connection, List<Row> batch) throws SQLException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            stage(connection, batch);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(MERGE_PAYLOADS);
+            }
+            long inserted;
+            try (PreparedStatement statement = connection.prepareStatement(MERGE_DOCUMENTS)) {
+                statement.setString(1, RESTORED_STATUS);
+                statement.setInt(2, markDownloaded ? 1 : 0);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    resultSet.next();
+                    inserted = resultSet.getLong(1);
+                }
+            }
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(MERGE_HASHES);
+                statement.execute("truncate restore_staging");
+            }
+            connection.commit();
+            restored.addAndGet(inserted);
+            existing.addAndGet(batch.size() - inserted);
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            batch.clear();
+        }
+        report(false);
+    }
+
+    private void stage(Connection connection, List<Row> batch) throws SQLException {
+        if (connection.isWrapperFor(PGConnection.class)) {
+            StringBuilder copy = new StringBuilder(batch.size() * 256);
+            for (Row row : batch) {
+                copy.append(row.entry().id()).append('\t')
+                        .append(row.entry().direction().name()).append('\t')
+                        .append(row.type() == null ? "\\N" : row.type()).append('\t')
+                        .append(escape(row.ownerPeppolId())).append('\t')
+                        .append(escape(row.partnerPeppolId())).append('\t')
+                        .append(createdOn(row.entry())).append('\t')
+                        .append(row.hash()).append('\t')
+                        .append("\\\\x").append(HashUtil.toHex(row.data())).append('\n');
+            }
+            try {
+                connection.unwrap(PGConnection.class).getCopyAPI().copyIn(COPY_STAGING, new StringReader(copy.toString()));
+            } catch (IOException e) {
+                throw new SQLException("Could not copy the restore batch", e);
+            }
+            return;
+        }
+        try (PreparedStatement statement = connection.prepareStatement(INSERT_STAGING)) {
+            for (Row row : batch) {
+                statement.setObject(1, row.entry().id());
+                statement.setString(2, row.entry().direction().name());
+                statement.setString(3, row.type());
+                statement.setString(4, row.ownerPeppolId());
+                statement.setString(5, row.partnerPeppolId());
+                statement.setTimestamp(6, Timestamp.from(createdOn(row.entry())));
+                statement.setString(7, row.hash());
+                statement.setBytes(8, row.data());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    private static Instant createdOn(BackupEntry entry) {
+        return entry.createdOn() != null ? entry.createdOn() : Instant.now();
+    }
+
+    /// Text format of COPY, backslash, tab and line breaks are escaped
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private synchronized void report(boolean last) {
+        Instant now = Instant.now();
+        if (!last && now.isBefore(lastReport.plus(reportInterval))) {
+            return;
+        }
+        lastReport = now;
+        double seconds = Math.max(Duration.between(started, now).toMillis(), 1) / 1000.0;
+        log.info("{} {} documents restored ({} rows/s), {} already present, {} skipped in {}s",
+                last ? "Finished," : "Restoring,", restored.get(), Math.round((restored.get() + existing.get()) / seconds), existing.get(), skipped.get(), Math.round(seconds));
+    }
+
+    private Set<String> readCheckpoint() throws IOException {
+        if (!Files.exists(checkpointFile)) {
+            return Set.of();
+        }
+        return new HashSet<>(Files.readAllLines(checkpointFile, StandardCharsets.UTF_8));
+    }
+
+    private synchronized void checkpoint(String partName) throws IOException {
+        Files.createDirectories(checkpointFile.getParent());
+        Files.writeString(checkpointFile, partName + "\n", StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.SYNC);
+    }
+
+    private record Row(BackupEntry entry, String type, String ownerPeppolId, String partnerPeppolId, String hash, byte[] data) {}
+}
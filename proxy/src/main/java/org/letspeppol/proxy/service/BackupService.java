@@ -1,66 +1,144 @@
 package org.letspeppol.proxy.service;
 
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.letspeppol.proxy.dto.BackupEntry;
+import org.letspeppol.proxy.dto.BackupReference;
 import org.letspeppol.proxy.model.UblDocument;
+import org.letspeppol.proxy.repository.UblDocumentRepository;
+import org.letspeppol.proxy.util.HashUtil;
+import org.letspeppol.proxy.util.UblCodec;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
-import java.time.ZoneId;
-import java.time.ZonedDateTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 
+@Slf4j
 @RequiredArgsConstructor
 @Transactional
 @Service
 public class BackupService {
 
     public static final String DEFAULT_CONTENT_FOR_NO_ARCHIVE = "No Archive";
+    private static final int RECOVER_PAGE_SIZE = 1000;
 
-    @Value("${backup.data.dir:#{null}}")
-    private String dataDirectory;
-    @Value("${spring.application.name}")
-    private String applicationName;
-
-    public Path backupFilePath(UblDocument ublDocument) {
-        ZonedDateTime zonedDateTime = ublDocument.getCreatedOn() == null ? ZonedDateTime.now(ZoneId.systemDefault()) : ublDocument.getCreatedOn().atZone(ZoneId.systemDefault());
-        return Paths.get(
-                (dataDirectory == null || dataDirectory.isBlank()) ? System.getProperty("java.io.tmpdir") : dataDirectory,
-                "backup",
-                applicationName,
-                ublDocument.getOwnerPeppolId().replace(':', '_'),
-                ublDocument.getDirection().toString(),
-                String.valueOf(zonedDateTime.getYear()),
-                String.valueOf(zonedDateTime.getMonthValue()),
-                ublDocument.getId() + ".ubl"
-        );
-    }
+    @Value("${backup.recover.grace:5m}")
+    private Duration recoverGrace;
+
+    private final BackupWriter backupWriter;
+    private final BackupStore backupStore;
+    private final UblDocumentRepository ublDocumentRepository;
 
+    /// Only enqueues the write once the transaction is committed, the backup is written and acknowledged (`backed_up_on`) by the [BackupWriter]
     public void backupFile(UblDocument ublDocument) {
-        Path filePath = backupFilePath(ublDocument);
-        Path parent = filePath.getParent();
-        try {
-            if (parent != null) {
-                System.out.println("Writing backup folder to: " + parent);
-                Files.createDirectories(parent);
+        backupFile(ublDocument, ublDocument.getUbl());
+    }
+
+    /// Variant for the callers that still hold the ubl, so the payload is not read back
+    public void backupFile(UblDocument ublDocument, String ubl) {
+        backupFile(ublDocument, UblCodec.encode(ubl));
+    }
+
+    /// Variant with the ubl already encoded by [UblCodec], e.g. the data of a spooled upload that is shared with its payload
+    public void backupFile(UblDocument ublDocument, byte[] data) {
+        ublDocument.setBackedUpOn(null); //Pending until acknowledged, also when the content is replaced
+        BackupEntry backupEntry = toBackupEntry(ublDocument, data);
+        afterCommit(() -> backupWriter.enqueue(backupEntry));
+    }
+
+    /// The target gets its own backup of the same content, written after the source in queue order
+    public void copyBackupFile(UblDocument source, UblDocument target) {
+        backupFile(target, source.getUbl());
+    }
+
+    /// Pending in the database with the release of the content, so a clear that is dropped from the queue is recovered
+    public void clearBackupFile(UblDocument ublDocument) {
+        ublDocument.setBackedUpOn(null);
+        BackupEntry backupEntry = toBackupEntry(ublDocument, null);
+        afterCommit(() -> backupWriter.enqueue(backupEntry));
+    }
+
+    /// Clears the backups through the same queue as the writes, so a pending write does not restore the content afterwards
+    public void clearBackupFilesAfterCommit(List<BackupReference> backupReferences) {
+        if (backupReferences.isEmpty()) {
+            return;
+        }
+        ublDocumentRepository.markBackupPending(backupReferences.stream().map(BackupReference::id).toList());
+        afterCommit(() -> backupReferences.forEach(backupReference -> backupWriter.enqueue(BackupEntry.cleared(backupReference))));
+    }
+
+    /// Enqueues the writes and clears that are not acknowledged within the grace period again, e.g. dropped by a full queue or a restart.
+    /// Both follow the current state of the document, a write is only pending while the content is attached and a clear once released.
+    @Transactional(readOnly = true)
+    public int recoverPending() {
+        Instant before = Instant.now().minus(recoverGrace);
+        List<BackupEntry> pending = new ArrayList<>();
+        ublDocumentRepository.findAllBackupPending(before, PageRequest.of(0, RECOVER_PAGE_SIZE)).forEach(ublDocument -> pending.add(toBackupEntry(ublDocument, UblCodec.encode(ublDocument.getUbl()))));
+        ublDocumentRepository.findAllClearPending(before, PageRequest.of(0, RECOVER_PAGE_SIZE)).forEach(backupReference -> pending.add(BackupEntry.cleared(backupReference)));
+        int enqueued = 0;
+        for (BackupEntry backupEntry : pending) {
+            if (!backupWriter.enqueue(backupEntry)) {
+                break; //Queue is full, the rest is picked up next time
             }
-            System.out.println("Writing file as backup to: " + filePath);
-            Files.writeString(filePath, ublDocument.getUbl(), StandardCharsets.UTF_8);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+            enqueued++;
         }
+        if (enqueued > 0) {
+            log.info("Enqueued {} pending backups again", enqueued);
+        }
+        return enqueued;
     }
 
-    public void clearBackupFile(UblDocument ublDocument) {
-        Path filePath = backupFilePath(ublDocument);
+    /// The content of a document in the cold tier, null when the backup is cleared meanwhile (no-archive) or cannot be read
+    public String readArchived(UblDocument ublDocument) {
         try {
-            Files.writeString(filePath, DEFAULT_CONTENT_FOR_NO_ARCHIVE, StandardCharsets.UTF_8, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            return backupStore.read(new BackupReference(ublDocument.getId(), ublDocument.getOwnerPeppolId(), ublDocument.getDirection(), ublDocument.getCreatedOn())).orElse(null);
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            log.error("Could not read the archived ubl of {}", ublDocument.getId(), e);
+            return null;
+        }
+    }
+
+    /// Whether the store returns exactly the content with the hash, e.g. to verify the backup before the payload is released
+    public boolean hasBackup(BackupReference backupReference, String hash) {
+        try {
+            return backupStore.read(backupReference)
+                    .map(ubl -> HashUtil.sha256(ubl).equals(hash))
+                    .orElse(false);
+        } catch (IOException e) {
+            log.error("Could not read the backup of {}", backupReference.id(), e);
+            return false;
+        }
+    }
+
+    /// Reclaims the space of superseded and cleared backups, depending on the store
+    public void compact() {
+        try {
+            backupStore.compact();
+        } catch (IOException e) {
+            log.error("Could not compact the backups", e);
+        }
+    }
+
+    private static BackupEntry toBackupEntry(UblDocument ublDocument, byte[] data) {
+        return new BackupEntry(ublDocument.getId(), ublDocument.getOwnerPeppolId(), ublDocument.getDirection(), ublDocument.getCreatedOn(), data == null ? null : ublDocument.getHash(), data);
+    }
+
+    private void afterCommit(Runnable task) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                public void afterCommit() {
+                    task.run();
+                }
+            });
+        } else {
+            task.run();
         }
     }
 }
@@ -0,0 +1,49 @@
+package org.letspeppol.proxy.service;
+
+import org.letspeppol.proxy.dto.BackupEntry;
+import org.letspeppol.proxy.dto.BackupReference;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/// Durable storage of the ubl backups, written in batches by the [BackupWriter] and selected with `backup.store` (`segment` or `file`)
+public interface BackupStore {
+
+    /// Durable once returned, writing the same batch again (retry) is harmless
+    void write(List<BackupEntry> entries) throws IOException;
+
+    /// The live backups (latest content per document, cleared ones excluded) in parts that can be read independently, e.g. in parallel by a restore
+    List<Part> parts() throws IOException;
+
+    /// The latest content of one document, empty when never written or cleared
+    Optional<String> read(BackupReference backupReference) throws IOException;
+
+    /// Reclaims the space of superseded and cleared backups, returns the # rewritten files
+    default int compact() throws IOException {
+        return 0;
+    }
+
+    /// The name is stable as long as the part is not compacted, usable to checkpoint a restore
+    record Part(String name, Reader reader) {
+        public void read(Consumer<BackupEntry> consumer) throws IOException {
+            reader.read(consumer);
+        }
+    }
+
+    @FunctionalInterface
+    interface Reader {
+        void read(Consumer<BackupEntry> consumer) throws IOException;
+    }
+
+    static Path directory(String dataDirectory, String applicationName) {
+        return Paths.get(
+                (dataDirectory == null || dataDirectory.isBlank()) ? System.getProperty("java.io.tmpdir") : dataDirectory,
+                "backup",
+                applicationName
+        );
+    }
+}
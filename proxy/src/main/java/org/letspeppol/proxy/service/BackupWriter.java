@@ -0,0 +1,166 @@
+package org.letspeppol.proxy.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.letspeppol.proxy.dto.BackupEntry;
+import org.letspeppol.proxy.repository.UblDocumentRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/// Write-behind of the backups, a bounded queue drained by one dedicated thread.
+/// Every batch is written to the [BackupStore] and synced to disk at once, then the written documents are acknowledged
+/// with `backed_up_on`. A failed batch is retried in place up to `backup.writer.max-attempts`, so the writes and clears of a
+/// document are always applied in queue order. A write or clear that is dropped (full queue, restart, too many failures) is
+/// still pending in the database and enqueued again by [BackupService#recoverPending()].
+@Slf4j
+@Component
+public class BackupWriter {
+
+    private final BackupStore backupStore;
+    private final UblDocumentRepository ublDocumentRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final BlockingQueue<BackupEntry> queue;
+    private final int batchSize;
+    private final int maxAttempts;
+    private final long retryDelayMs;
+    private final Timer writeTimer;
+    private final Counter failureCounter;
+    private final Thread worker = Thread.ofPlatform().name("backup-writer").daemon().unstarted(this::drain);
+    private volatile boolean running = true;
+
+    public BackupWriter(BackupStore backupStore,
+                        UblDocumentRepository ublDocumentRepository,
+                        TransactionTemplate transactionTemplate,
+                        MeterRegistry meterRegistry,
+                        @Value("${backup.writer.capacity:10000}") int capacity,
+                        @Value("${backup.writer.batch-size:100}") int batchSize,
+                        @Value("${backup.writer.max-attempts:3}") int maxAttempts,
+                        @Value("${backup.writer.retry-delay-ms:1000}") long retryDelayMs) {
+        this.backupStore = backupStore;
+        this.ublDocumentRepository = ublDocumentRepository;
+        this.transactionTemplate = transactionTemplate;
+        this.queue = new ArrayBlockingQueue<>(Math.max(capacity, 1));
+        this.batchSize = Math.max(batchSize, 1);
+        this.maxAttempts = Math.max(maxAttempts, 1);
+        this.retryDelayMs = retryDelayMs;
+        Gauge.builder("backup_queue_depth", queue, BlockingQueue::size)
+                .description("Current # backups waiting to be written")
+                .tag("service", "proxy")
+                .register(meterRegistry);
+        this.writeTimer = Timer.builder("backup_write")
+                .description("Duration of writing and syncing one batch of backups")
+                .tag("service", "proxy")
+                .register(meterRegistry);
+        this.failureCounter = Counter.builder("backup_write_failures_total")
+                .description("Total # failed backup writes")
+                .tag("service", "proxy")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        worker.start();
+    }
+
+    /// Never blocks the caller, returns false when the queue is full and the write is left to the recovery
+    public boolean enqueue(BackupEntry backupEntry) {
+        boolean accepted = queue.offer(backupEntry);
+        if (!accepted) {
+            log.warn("Backup queue is full, backup of document {} is postponed to the recovery", backupEntry.id());
+        }
+        return accepted;
+    }
+
+    private void drain() {
+        List<BackupEntry> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                BackupEntry first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                writeTimer.record(() -> write(batch));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+            } catch (RuntimeException e) {
+                log.error("Backup writer failed on a batch of {} backups", batch.size(), e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /// Blocks the queue while retrying, a later write or clear of the same document must not overtake the failed one
+    private void write(List<BackupEntry> batch) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                backupStore.write(batch);
+                break;
+            } catch (IOException | RuntimeException e) {
+                failureCounter.increment(batch.size());
+                log.warn("Could not write a batch of {} backups (attempt {})", batch.size(), attempt, e);
+                if (attempt >= maxAttempts || !backOff()) {
+                    log.error("Giving up on a batch of {} backups after {} attempts, left to the recovery", batch.size(), attempt);
+                    return;
+                }
+            }
+        }
+        acknowledge(batch);
+    }
+
+    /// Writes and clears are acknowledged separately, a write does not acknowledge a clear that is committed meanwhile (and vice versa).
+    /// A write only acknowledges the content it wrote, matched on its hash, not a newer content of the document that is still queued.
+    private void acknowledge(List<BackupEntry> batch) {
+        List<BackupEntry> written = batch.stream().filter(entry -> !entry.isCleared()).toList();
+        List<UUID> cleared = batch.stream().filter(BackupEntry::isCleared).map(BackupEntry::id).distinct().toList();
+        if (written.isEmpty() && cleared.isEmpty()) {
+            return;
+        }
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                written.forEach(entry -> ublDocumentRepository.markWriteBackedUp(entry.id(), entry.hash()));
+                if (!cleared.isEmpty()) {
+                    ublDocumentRepository.markClearBackedUp(cleared);
+                }
+            });
+        } catch (RuntimeException e) {
+            log.error("Could not acknowledge the backup of {} documents, they are written again by the recovery", written.size() + cleared.size(), e); //Rewriting is harmless
+        }
+    }
+
+    /// Back off, a failing disk is not helped by retrying immediately. False when interrupted by the shutdown
+    private boolean backOff() {
+        try {
+            Thread.sleep(retryDelayMs);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+            return false;
+        }
+    }
+
+    /// Writes what is already queued before the shutdown, anything left is recovered on the next start
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        running = false;
+        worker.join(TimeUnit.SECONDS.toMillis(30));
+    }
+}
@@ -1,26 +1,29 @@
 package org.letspeppol.proxy.service;
 
+import lombok.RequiredArgsConstructor;
 import org.springframework.stereotype.Service;
 
-import java.util.concurrent.atomic.AtomicLong;
-
+/// The global send budget, see [SendBudgetService]
+@RequiredArgsConstructor
 @Service
 public class BalanceService {
-    private final AtomicLong value = new AtomicLong(0);
+    private final SendBudgetService sendBudgetService;
 
     public boolean isPositive() {
-        return value.get() > 0;
+        return sendBudgetService.available(SendBudgetService.GLOBAL) >= 1;
     }
 
     public long get() {
-        return value.get();
+        return (long) Math.floor(sendBudgetService.available(SendBudgetService.GLOBAL));
     }
 
     public long incrementBy(long delta) {
-        return value.addAndGet(delta);
+        sendBudgetService.add(SendBudgetService.GLOBAL, delta);
+        return get();
     }
 
     public long decrement() {
-        return value.decrementAndGet();
+        sendBudgetService.add(SendBudgetService.GLOBAL, -1);
+        return get();
     }
 }
@@ -0,0 +1,56 @@
+package org.letspeppol.proxy.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.RequiredArgsConstructor;
+import org.letspeppol.proxy.model.AccessPoint;
+import org.letspeppol.proxy.model.DocumentDirection;
+import org.springframework.stereotype.Component;
+
+/// Timers and counters of the document hot paths, the timers per [AccessPoint] and outcome (e.g. `sent`, `postponed`, `error`).
+/// The gauges of the queues are registered in MetricsConfig, the meters of the validation in [ValidationService].
+@RequiredArgsConstructor
+@Component
+public class DocumentMetrics {
+
+    public static final String SEND = "document_send";
+    public static final String STATUS_POLL = "document_status_poll";
+    public static final String RECEIVE = "document_receive";
+
+    private final MeterRegistry meterRegistry;
+
+    public Timer.Sample start() {
+        return Timer.start(meterRegistry);
+    }
+
+    /// Meters are registered on first use and looked up afterwards, the tags only take a few values
+    public void stop(Timer.Sample sample, String name, AccessPoint accessPoint, String outcome) {
+        sample.stop(Timer.builder(name)
+                .description("Duration of handling one document with a Peppol Access Point")
+                .tag("service", "proxy")
+                .tag("access_point", accessPoint == null ? "UNKNOWN" : accessPoint.name())
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(meterRegistry));
+    }
+
+    public void duplicate(DocumentDirection direction) {
+        Counter.builder("document_duplicates_total")
+                .description("Total # documents rejected as duplicate")
+                .tag("service", "proxy")
+                .tag("direction", direction.name())
+                .register(meterRegistry)
+                .increment();
+    }
+
+    /// Reason is `throttled` when scheduled later by the send quota, `access_point` when the Access Point did not accept it
+    public void postponed(String reason) {
+        Counter.builder("document_postponed_total")
+                .description("Total # outgoing documents postponed")
+                .tag("service", "proxy")
+                .tag("reason", reason)
+                .register(meterRegistry)
+                .increment();
+    }
+}
@@ -0,0 +1,73 @@
+package org.letspeppol.proxy.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.letspeppol.proxy.repository.AppLinkRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/// Server-sent events to the retrieving apps when a document is received for an owner, so only that owner has to be synchronized.
+/// Received documents are announced with `pg_notify` on [#CHANNEL] when committed, every proxy instance forwards them to its own subscribers.
+/// Events are not persisted, the periodic synchronization of the app remains the safety net. The linked owners of an App are resolved
+/// once at subscription, so the listener thread does not query per notification; a link change applies from the next subscription.
+@Slf4j
+@Service
+public class DocumentNotificationService {
+
+    public static final String CHANNEL = "document_received";
+    public static final String EVENT_NAME = "document";
+
+    private final AppLinkRepository appLinkRepository;
+    private final long timeoutMs;
+    private final Map<SseEmitter, Subscriber> subscribers = new ConcurrentHashMap<>();
+
+    private record Subscriber(String ownerPeppolId, Set<String> linkedPeppolIds) {}
+
+    public DocumentNotificationService(AppLinkRepository appLinkRepository,
+                                       PgNotificationListener pgNotificationListener,
+                                       @Value("${sapi.notifications.timeout-ms:1800000}") long timeoutMs) {
+        this.appLinkRepository = appLinkRepository;
+        this.timeoutMs = timeoutMs;
+        pgNotificationListener.subscribe(CHANNEL, this::received);
+    }
+
+    /// For a user (ownerPeppolId) or an App (appUid) receiving the documents of its linked owners
+    public SseEmitter subscribe(String ownerPeppolId, UUID appUid) {
+        SseEmitter emitter = new SseEmitter(timeoutMs);
+        Set<String> linkedPeppolIds = appUid == null ? Set.of() : appLinkRepository.findAllPeppolIdsByLinkedUid(appUid);
+        subscribers.put(emitter, new Subscriber(ownerPeppolId, linkedPeppolIds));
+        emitter.onCompletion(() -> subscribers.remove(emitter));
+        emitter.onTimeout(() -> subscribers.remove(emitter));
+        emitter.onError(e -> subscribers.remove(emitter));
+        return emitter;
+    }
+
+    private void received(String ownerPeppolId) {
+        subscribers.forEach((emitter, subscriber) -> {
+            boolean interested = ownerPeppolId.equals(subscriber.ownerPeppolId()) || subscriber.linkedPeppolIds().contains(ownerPeppolId);
+            if (interested) {
+                send(emitter, SseEmitter.event().name(EVENT_NAME).data(ownerPeppolId));
+            }
+        });
+    }
+
+    /// Keeps idle connections open through proxies and detects subscribers that are gone
+    public void heartbeat() {
+        subscribers.keySet().forEach(emitter -> send(emitter, SseEmitter.event().comment("heartbeat")));
+    }
+
+    private void send(SseEmitter emitter, SseEmitter.SseEventBuilder event) {
+        try {
+            emitter.send(event);
+        } catch (IOException | IllegalStateException e) {
+            subscribers.remove(emitter);
+            emitter.completeWithError(e);
+        }
+    }
+}
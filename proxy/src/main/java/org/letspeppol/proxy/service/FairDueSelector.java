@@ -0,0 +1,72 @@
+package org.letspeppol.proxy.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.letspeppol.proxy.dto.DueCandidate;
+import org.letspeppol.proxy.util.DeficitRoundRobin;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+
+/// Selects due documents fairly across owners with deficit round robin, so a bulk upload of one owner does not starve the others.
+/// Interactive documents (scheduled immediately at creation) have their own lane with a reserved `scheduler.send.interactive-share`
+/// of every batch, unused capacity of a lane goes to the other. Owners can be weighted with `scheduler.send.weights`,
+/// i.e. `0208:0123456789=4,0208:9876543210=0.5`, the default weight is 1.
+@Slf4j
+@Component
+public class FairDueSelector {
+
+    private final DeficitRoundRobin<String> interactiveLane = new DeficitRoundRobin<>();
+    private final DeficitRoundRobin<String> bulkLane = new DeficitRoundRobin<>();
+    private final Map<String, Double> weights;
+    private final double interactiveShare;
+
+    public FairDueSelector(@Value("${scheduler.send.weights:}") String weights,
+                           @Value("${scheduler.send.interactive-share:0.5}") double interactiveShare) {
+        this.weights = parseWeights(weights);
+        this.interactiveShare = Math.min(Math.max(interactiveShare, 0.0), 1.0);
+    }
+
+    /// Candidates are expected in order per owner, oldest first
+    public List<UUID> select(List<DueCandidate> candidates, int limit) {
+        Map<String, Queue<UUID>> interactive = new LinkedHashMap<>();
+        Map<String, Queue<UUID>> bulk = new LinkedHashMap<>();
+        for (DueCandidate candidate : candidates) {
+            (Boolean.TRUE.equals(candidate.getInteractive()) ? interactive : bulk)
+                    .computeIfAbsent(candidate.getOwnerPeppolId(), owner -> new ArrayDeque<>())
+                    .add(candidate.getId());
+        }
+        List<UUID> selected = new ArrayList<>(limit);
+        selected.addAll(interactiveLane.select(interactive, this::weight, (int) Math.ceil(limit * interactiveShare)));
+        selected.addAll(bulkLane.select(bulk, this::weight, limit - selected.size()));
+        selected.addAll(interactiveLane.select(interactive, this::weight, limit - selected.size()));
+        return selected;
+    }
+
+    private double weight(String ownerPeppolId) {
+        return weights.getOrDefault(ownerPeppolId, 1.0);
+    }
+
+    private static Map<String, Double> parseWeights(String weights) {
+        Map<String, Double> parsed = new HashMap<>();
+        for (String entry : weights.split(",")) {
+            int separator = entry.lastIndexOf('=');
+            if (separator <= 0) {
+                continue;
+            }
+            try {
+                parsed.put(entry.substring(0, separator).trim(), Double.parseDouble(entry.substring(separator + 1).trim()));
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring invalid send weight {}", entry);
+            }
+        }
+        return parsed;
+    }
+}
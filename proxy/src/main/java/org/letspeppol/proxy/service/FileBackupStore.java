@@ -0,0 +1,154 @@
+package org.letspeppol.proxy.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.letspeppol.proxy.dto.BackupEntry;
+import org.letspeppol.proxy.dto.BackupReference;
+import org.letspeppol.proxy.model.DocumentDirection;
+import org.letspeppol.proxy.util.UblCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/// One file per document in `<owner>/<direction>/<year>/<month>/<id>.ubl`, the layout from before the segments (`backup.store=file`).
+/// A cleared document keeps its file with [BackupService#DEFAULT_CONTENT_FOR_NO_ARCHIVE] as content.
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "backup.store", havingValue = "file")
+public class FileBackupStore implements BackupStore {
+
+    private static final String SUFFIX = ".ubl";
+
+    private final Path directory;
+
+    public FileBackupStore(@Value("${backup.data.dir:#{null}}") String dataDirectory, @Value("${spring.application.name}") String applicationName) {
+        this.directory = BackupStore.directory(dataDirectory, applicationName);
+    }
+
+    public Path backupFilePath(BackupEntry backupEntry) {
+        ZonedDateTime zonedDateTime = backupEntry.createdOn() == null ? ZonedDateTime.now(ZoneId.systemDefault()) : backupEntry.createdOn().atZone(ZoneId.systemDefault());
+        return directory.resolve(Paths.get(
+                backupEntry.ownerPeppolId().replace(':', '_'),
+                backupEntry.direction().toString(),
+                String.valueOf(zonedDateTime.getYear()),
+                String.valueOf(zonedDateTime.getMonthValue()),
+                backupEntry.id() + SUFFIX
+        ));
+    }
+
+    /// Writes all files of the batch before syncing them, so the disk can combine the flushes
+    @Override
+    public void write(List<BackupEntry> entries) throws IOException {
+        List<FileChannel> channels = new ArrayList<>(entries.size());
+        List<Path> directories = new ArrayList<>();
+        try {
+            for (BackupEntry entry : entries) {
+                Path filePath = backupFilePath(entry);
+                Files.createDirectories(filePath.getParent());
+                FileChannel channel = FileChannel.open(filePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                channels.add(channel);
+                if (entry.isCleared()) {
+                    ByteBuffer buffer = ByteBuffer.wrap(BackupService.DEFAULT_CONTENT_FOR_NO_ARCHIVE.getBytes(StandardCharsets.UTF_8));
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                } else {
+                    try (InputStream inputStream = UblCodec.inputStream(entry.data())) {
+                        inputStream.transferTo(Channels.newOutputStream(channel)); //Decoded while written, the channel is closed below
+                    }
+                }
+                if (!directories.contains(filePath.getParent())) {
+                    directories.add(filePath.getParent());
+                }
+            }
+            for (FileChannel channel : channels) {
+                channel.force(true);
+            }
+        } finally {
+            for (FileChannel channel : channels) {
+                channel.close();
+            }
+        }
+        directories.forEach(this::syncDirectory);
+    }
+
+    /// One part per owner directory, the owner is derived from the directory name (`:` became `_`)
+    @Override
+    public List<Part> parts() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return List.of();
+        }
+        try (Stream<Path> owners = Files.list(directory)) {
+            return owners.filter(Files::isDirectory)
+                    .filter(owner -> !owner.getFileName().toString().equals("spool") && !owner.getFileName().toString().equals("segments"))
+                    .sorted()
+                    .map(owner -> new Part(owner.getFileName().toString(), consumer -> read(owner, consumer)))
+                    .toList();
+        }
+    }
+
+    @Override
+    public Optional<String> read(BackupReference backupReference) throws IOException {
+        Path filePath = backupFilePath(BackupEntry.cleared(backupReference));
+        if (!Files.exists(filePath)) {
+            return Optional.empty();
+        }
+        String ubl = Files.readString(filePath, StandardCharsets.UTF_8);
+        return ubl.equals(BackupService.DEFAULT_CONTENT_FOR_NO_ARCHIVE) ? Optional.empty() : Optional.of(ubl);
+    }
+
+    private void read(Path ownerDirectory, Consumer<BackupEntry> consumer) throws IOException {
+        String ownerPeppolId = ownerDirectory.getFileName().toString();
+        for (DocumentDirection direction : DocumentDirection.values()) {
+            Path directionDirectory = ownerDirectory.resolve(direction.toString());
+            if (!Files.isDirectory(directionDirectory)) {
+                continue;
+            }
+            List<Path> files;
+            try (Stream<Path> paths = Files.walk(directionDirectory)) {
+                files = paths.filter(path -> path.getFileName().toString().endsWith(SUFFIX)).sorted().toList();
+            }
+            for (Path file : files) {
+                String ubl = Files.readString(file, StandardCharsets.UTF_8);
+                if (ubl.equals(BackupService.DEFAULT_CONTENT_FOR_NO_ARCHIVE)) {
+                    continue;
+                }
+                String name = file.getFileName().toString();
+                UUID id;
+                try {
+                    id = UUID.fromString(name.substring(0, name.length() - SUFFIX.length()));
+                } catch (IllegalArgumentException e) {
+                    log.warn("Skipping backup file {} without a document id", file);
+                    continue;
+                }
+                consumer.accept(new BackupEntry(id, ownerPeppolId, direction, Files.getLastModifiedTime(file).toInstant(), null, UblCodec.encode(ubl)));
+            }
+        }
+    }
+
+    private void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            log.debug("Could not sync backup directory {}", directory, e); //Not supported on every platform
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.letspeppol.proxy.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.letspeppol.proxy.model.AccessPoint;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.function.Function;
+
+/// In-process cache of the Access Point per participant, unknown participants are cached as [AccessPoint#NONE].
+/// Changes are invalidated locally after commit and on all other instances through Postgres LISTEN/NOTIFY on [#CHANNEL],
+/// the TTL only bounds staleness when a notification is missed (i.e. while the listener reconnects).
+@Component
+public class RegistryCache {
+
+    public static final String CHANNEL = "registry_changed";
+
+    private final Cache<String, AccessPoint> cache;
+
+    public RegistryCache(PgNotificationListener pgNotificationListener,
+                         MeterRegistry meterRegistry,
+                         @Value("${registry.cache.maximum-size:100000}") long maximumSize,
+                         @Value("${registry.cache.ttl:10m}") Duration ttl) {
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "registry", "service", "proxy");
+        pgNotificationListener.subscribe(CHANNEL, cache::invalidate);
+        pgNotificationListener.onReconnect(cache::invalidateAll); //Notifications could be missed while not listening
+    }
+
+    public AccessPoint get(String peppolId, Function<String, AccessPoint> loader) {
+        return cache.get(peppolId, loader);
+    }
+
+    public void invalidate(String peppolId) {
+        cache.invalidate(peppolId);
+    }
+}
@@ -12,9 +12,10 @@ import org.letspeppol.proxy.model.Registry;
 import org.letspeppol.proxy.repository.RegistryRepository;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.util.Map;
-import java.util.Optional;
 
 @Slf4j
 @RequiredArgsConstructor
@@ -24,14 +25,32 @@ public class RegistryService {
 
     private final RegistryRepository registryRepository;
     private final AccessPointServiceRegistry accessPointServiceRegistry;
+    private final RegistryCache registryCache;
 
     public RegistryDto get(String peppolId) {
         return RegistryMapper.toDto(registryRepository.findById(peppolId).orElseThrow(() -> new NotFoundException("PeppolId " + peppolId + " is not registered here")));
     }
 
+    /// Cached, is on the hot path of sending and validating senders
     public AccessPoint getAccessPoint(String peppolId) {
-        Optional<Registry> optionalRegistry = registryRepository.findById(peppolId);
-        return optionalRegistry.isPresent() ? optionalRegistry.get().getAccessPoint() : AccessPoint.NONE;
+        return registryCache.get(peppolId, id -> registryRepository.findById(id)
+                .map(Registry::getAccessPoint)
+                .orElse(AccessPoint.NONE));
+    }
+
+    /// Invalidated once committed, so no other transaction can cache the old value meanwhile
+    private void changed(String peppolId) {
+        registryRepository.notifyChanged(peppolId);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    registryCache.invalidate(peppolId);
+                }
+            });
+        } else {
+            registryCache.invalidate(peppolId);
+        }
     }
 
     private void register(RegistrationRequest data, AccessPoint accessPoint, Registry registry) {
@@ -74,18 +93,21 @@ public class RegistryService {
         Registry registry = registryRepository.findById(peppolId).orElse(new Registry(peppolId, AccessPoint.NONE, null));
         unregister(registry, accessPoint);
         register(data, accessPoint, registry);
+        changed(peppolId);
         return RegistryMapper.toDto(registryRepository.save(registry));
     }
 
     public RegistryDto unregister(String peppolId) {
         Registry registry = registryRepository.findById(peppolId).orElseThrow(() -> new NotFoundException("PeppolId " + peppolId + " is not known here"));
         unregister(registry, AccessPoint.NONE);
+        changed(peppolId);
         return RegistryMapper.toDto(registryRepository.save(registry));
     }
 
     public void remove(String peppolId) {
         unregister(peppolId);
         registryRepository.deleteById(peppolId);
+        changed(peppolId);
     }
 
 }
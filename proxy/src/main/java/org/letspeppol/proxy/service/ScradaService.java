@@ -9,17 +9,22 @@ import org.letspeppol.proxy.dto.RegistrationRequest;
 import org.letspeppol.proxy.dto.StatusReport;
 import org.letspeppol.proxy.dto.scrada.*;
 import org.letspeppol.proxy.exception.AlreadyRegisteredException;
+import org.letspeppol.proxy.exception.DuplicateRequestException;
 import org.letspeppol.proxy.exception.ServiceUnavailableException;
 import org.letspeppol.proxy.model.AccessPoint;
 import org.letspeppol.proxy.model.UblDocument;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.web.reactive.function.client.WebClientResponseException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 @Slf4j
 @RequiredArgsConstructor
@@ -36,6 +41,7 @@ public class ScradaService implements AccessPointServiceInterface {
     public static final String PROCESS_VALUE = "urn:fdc:peppol.eu:2017:poacc:billing:01:1.0";
 
     private final UblDocumentReceiverService ublDocumentReceiverService;
+    private final UblDocumentStatusService ublDocumentStatusService;
     @Qualifier("scradaWebClient")
     private final WebClient scradaWebClient;
     private final Counter registerCounter;
@@ -43,6 +49,10 @@ public class ScradaService implements AccessPointServiceInterface {
     private final Counter documentSendCounter;
     private final Counter documentReceivedCounter;
     private final ObjectMapper objectMapper;
+    private final AccessPointDispatcher accessPointDispatcher;
+
+    @Value("${scrada.webhook.secret:}")
+    private String webhookSecret;
 
     @Override
     public AccessPoint getType() {
@@ -189,21 +199,24 @@ public class ScradaService implements AccessPointServiceInterface {
     /// DOCS : [Scrada : Get outbound document status](https://www.scrada.be/api-documentation/#tag/Peppol-outbound/paths/~1v1~1company~1{companyID}~1peppol~1outbound~1document~1{documentID}~1info/get)
     @Override
     public StatusReport getStatus(UblDocument ublDocument) {
-        System.out.print("?");
+        return getStatus(ublDocument.getAccessPointId());
+    }
+
+    private StatusReport getStatus(String documentId) {
         try {
             OutboundDocument outboundDocument = scradaWebClient
                     .get()
-                    .uri("/outbound/document/{documentID}/info", ublDocument.getAccessPointId())
+                    .uri("/outbound/document/{documentID}/info", documentId)
                     .retrieve()
                     .bodyToMono(OutboundDocument.class)
                     .blockOptional()
                     .orElseThrow(() -> new IllegalStateException("Empty response from Scrada get unconfirmed inbound documents"));
             return switch (outboundDocument.status()) {
-                case "Created" -> null;
+                case "Created" -> StatusReport.pending(outboundDocument.attempt());
                 case "Processed" -> new StatusReport(true, null);
                 case "Retry" -> {
                     log.info("Scrada tried {} time(s) to send {} with feedback {}", outboundDocument.attempt(), outboundDocument.externalReference(), outboundDocument.errorMessage());
-                    yield null;
+                    yield StatusReport.pending(outboundDocument.attempt());
                 }
                 case "Error" -> new StatusReport(false, outboundDocument.status() + " : " + outboundDocument.errorMessage());
                 default -> new StatusReport(false, outboundDocument.status());
@@ -218,58 +231,57 @@ public class ScradaService implements AccessPointServiceInterface {
     }
 
     @Override
-    public void updateStatus(String id, String status) {
+    public boolean isWebhookEnabled() {
+        return webhookSecret != null && !webhookSecret.isBlank();
+    }
 
+    /// Webhook for outbound document status, the status is fetched again from Scrada as the webhook only triggers the update
+    @Override
+    public void updateStatus(String id, String status) {
+        if ("Created".equals(status) || "Retry".equals(status)) {
+            return; //Still pending, synchronization will back off
+        }
+        ublDocumentStatusService.updateStatus(AccessPoint.SCRADA, id, getStatus(id));
     }
 
+    /// Webhook for inbound document, runs without transaction so a duplicate (already received by polling or an earlier webhook) only rolls back its own transaction
     @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public void receiveDocument(UblDocument ublDocument) {
-
+        try {
+            ublDocumentReceiverService.createAsReceived(
+                    ublDocument.getType(),
+                    ublDocument.getPartnerPeppolId(),
+                    ublDocument.getOwnerPeppolId(),
+                    ublDocument.getUbl(),
+                    AccessPoint.SCRADA,
+                    ublDocument.getAccessPointId(),
+                    () -> confirm(ublDocument.getAccessPointId())
+            );
+        } catch (DuplicateRequestException e) {
+            log.info("Scrada inbound document {} was already received", ublDocument.getAccessPointId());
+        } catch (DataIntegrityViolationException e) { //Received at the same time by webhook and polling, the other one confirms
+            log.info("Scrada inbound document {} was received concurrently", ublDocument.getAccessPointId());
+        }
     }
 
     /// DOCS : [Scrada : Get unconfirmed inbound documents](https://www.scrada.be/api-documentation/#tag/Peppol-inbound/paths/~1v1~1company~1{companyID}~1peppol~1inbound~1document~1unconfirmed/get)
     /// DOCS : [Scrada : Get inbound document](https://www.scrada.be/api-documentation/#tag/Peppol-inbound/paths/~1v1~1company~1{companyID}~1peppol~1inbound~1document~1{documentID}/get)
     /// DOCS : [Scrada : Confirm inbound document](https://www.scrada.be/api-documentation/#tag/Peppol-inbound/paths/~1v1~1company~1%7BcompanyID%7D~1peppol~1inbound~1document~1%7BdocumentID%7D~1confirm/put)
+    /// Every unconfirmed document is fetched, stored and confirmed in its own transaction, dispatched concurrently so a large backlog drains in parallel.
+    /// A failing document is logged and stays unconfirmed at Scrada, it is retried on the next poll without aborting the others.
     @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public void receiveDocuments() {
-        System.out.print("?");
+        UnconfirmedInboundDocuments unconfirmedInboundDocuments;
         try {
-            UnconfirmedInboundDocuments unconfirmedInboundDocuments = scradaWebClient
+            unconfirmedInboundDocuments = scradaWebClient
                     .get()
                     .uri("/inbound/document/unconfirmed")
                     .retrieve()
                     .bodyToMono(UnconfirmedInboundDocuments.class)
                     .blockOptional()
                     .orElseThrow(() -> new IllegalStateException("Empty response from Scrada get unconfirmed inbound documents"));
-
-            for (InboundDocument inboundDocument : unconfirmedInboundDocuments.results()) {
-                log.debug("Received document {} from {} to {}", inboundDocument.id(), inboundDocument.peppolSenderID(), inboundDocument.peppolReceiverID());
-                documentReceivedCounter.increment();
-                String ubl = scradaWebClient
-                        .get()
-                        .uri("/inbound/document/{documentID}", inboundDocument.id())
-                        .retrieve()
-                        .bodyToMono(String.class)
-                        .blockOptional()
-                        .orElseThrow(() -> new IllegalStateException("Empty response from Scrada get inbound document"));
-
-                ublDocumentReceiverService.createAsReceived(
-                        inboundDocument.peppolDocumentTypeValue().equals(INVOICES_VALUE) ? org.letspeppol.proxy.model.DocumentType.INVOICE : org.letspeppol.proxy.model.DocumentType.CREDIT_NOTE,
-                        inboundDocument.peppolSenderID(),
-                        inboundDocument.peppolReceiverID(),
-                        ubl,
-                        AccessPoint.SCRADA,
-                        inboundDocument.id(),
-                        () -> {
-                            scradaWebClient
-                                    .put()
-                                    .uri("/inbound/document/{documentID}/confirm", inboundDocument.id())
-                                    .retrieve()
-                                    .toBodilessEntity()
-                                    .block();
-                        }
-                );
-            }
         } catch (WebClientResponseException e) { // HTTP error (non-2xx)
             log.error("Scrada inbound API error {} {}: {}", e.getRawStatusCode(), e.getStatusText(), e.getResponseBodyAsString(), e);
             throw new RuntimeException("Scrada API error: " + e.getStatusCode(), e);
@@ -277,6 +289,49 @@ public class ScradaService implements AccessPointServiceInterface {
             log.error("Scrada inbound API call error {}", e.toString(), e);
             throw new RuntimeException("Failed to call Scrada API", e);
         }
+        List<CompletableFuture<Void>> futures = unconfirmedInboundDocuments.results().stream()
+                .map(inboundDocument -> accessPointDispatcher.execute(AccessPoint.SCRADA, () -> receive(inboundDocument)))
+                .toList();
+        AccessPointDispatcher.awaitAll(futures);
+    }
+
+    private void receive(InboundDocument inboundDocument) {
+        log.debug("Received document {} from {} to {}", inboundDocument.id(), inboundDocument.peppolSenderID(), inboundDocument.peppolReceiverID());
+        try {
+            String ubl = scradaWebClient
+                    .get()
+                    .uri("/inbound/document/{documentID}", inboundDocument.id())
+                    .retrieve()
+                    .bodyToMono(String.class)
+                    .blockOptional()
+                    .orElseThrow(() -> new IllegalStateException("Empty response from Scrada get inbound document"));
+            documentReceivedCounter.increment();
+
+            UblDocument ublDocument = new UblDocument();
+            ublDocument.setType(toDocumentType(inboundDocument.peppolDocumentTypeValue()));
+            ublDocument.setOwnerPeppolId(inboundDocument.peppolReceiverID());
+            ublDocument.setPartnerPeppolId(inboundDocument.peppolSenderID());
+            ublDocument.setAccessPointId(inboundDocument.id());
+            ublDocument.setUbl(ubl);
+            receiveDocument(ublDocument);
+        } catch (WebClientResponseException e) { // HTTP error (non-2xx)
+            log.error("Scrada inbound document {} API error {} {}: {}", inboundDocument.id(), e.getRawStatusCode(), e.getStatusText(), e.getResponseBodyAsString(), e);
+        } catch (Exception e) {
+            log.error("Scrada inbound document {} could not be received, retrying on next poll", inboundDocument.id(), e);
+        }
+    }
+
+    private void confirm(String documentId) {
+        scradaWebClient
+                .put()
+                .uri("/inbound/document/{documentID}/confirm", documentId)
+                .retrieve()
+                .toBodilessEntity()
+                .block();
+    }
+
+    public org.letspeppol.proxy.model.DocumentType toDocumentType(String documentTypeValue) {
+        return INVOICES_VALUE.equals(documentTypeValue) ? org.letspeppol.proxy.model.DocumentType.INVOICE : org.letspeppol.proxy.model.DocumentType.CREDIT_NOTE;
     }
 
     /// NOT IMPLEMENTED
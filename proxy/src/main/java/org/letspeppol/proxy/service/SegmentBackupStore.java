@@ -0,0 +1,179 @@
+package org.letspeppol.proxy.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.letspeppol.proxy.dto.BackupEntry;
+import org.letspeppol.proxy.dto.BackupReference;
+import org.letspeppol.proxy.model.DocumentDirection;
+import org.letspeppol.proxy.util.SegmentLog;
+import org.letspeppol.proxy.util.UblCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/// Backups appended to a [SegmentLog] in `<backup>/segments`, sequential writes instead of a file per document (`backup.store=segment`, default).
+/// The value of a record is the owner, direction and creation followed by the [UblCodec] encoded ubl, a cleared document is a tombstone
+/// without ubl. Compaction rewrites the sealed segments of which less than `backup.segment.compact-ratio` is still live.
+/// The files of the [FileBackupStore] are imported once when the segments are opened the first time, see [#importFiles].
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "backup.store", havingValue = "segment", matchIfMissing = true)
+public class SegmentBackupStore implements BackupStore {
+
+    private static final String IMPORTED_MARKER = "segments.imported";
+    private static final int IMPORT_BATCH_SIZE = 500;
+
+    private final SegmentLog segmentLog;
+    private final double compactRatio;
+
+    public SegmentBackupStore(@Value("${backup.data.dir:#{null}}") String dataDirectory,
+                              @Value("${spring.application.name}") String applicationName,
+                              @Value("${backup.segment.max-bytes:268435456}") long maxSegmentBytes,
+                              @Value("${backup.segment.compact-ratio:0.5}") double compactRatio) throws IOException {
+        Path directory = BackupStore.directory(dataDirectory, applicationName);
+        this.segmentLog = SegmentLog.open(directory.resolve("segments"), maxSegmentBytes);
+        this.compactRatio = compactRatio;
+        importFiles(new FileBackupStore(dataDirectory, applicationName), directory.resolve(IMPORTED_MARKER));
+        log.info("Opened backup segments with {} documents", segmentLog.size());
+    }
+
+    /// Appends the live files of the per document layout (`backup.store=file`), so the backups from before the segments stay readable
+    /// and restorable. A document that already has a record in the segments is newer there and skipped. The marker is only written once
+    /// all files are imported, an interrupted import continues with the documents that are not in the segments yet. The files are left in place.
+    private void importFiles(FileBackupStore fileBackupStore, Path marker) throws IOException {
+        if (Files.exists(marker)) {
+            return;
+        }
+        List<BackupEntry> batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+        AtomicLong imported = new AtomicLong();
+        try {
+            for (Part part : fileBackupStore.parts()) {
+                part.read(entry -> {
+                    if (!segmentLog.contains(entry.id())) {
+                        batch.add(entry);
+                        imported.incrementAndGet();
+                    }
+                    if (batch.size() >= IMPORT_BATCH_SIZE) {
+                        appendImported(batch);
+                    }
+                });
+                appendImported(batch);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        Files.writeString(marker, Instant.now().toString());
+        if (imported.get() > 0) {
+            log.info("Imported the backup files into the segments, {} documents", imported);
+        }
+    }
+
+    private void appendImported(List<BackupEntry> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            write(batch);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        batch.clear();
+    }
+
+    /// Synchronized with the compaction, the log has one writer at a time
+    @Override
+    public synchronized void write(List<BackupEntry> entries) throws IOException {
+        segmentLog.append(entries.stream()
+                .map(entry -> entry.isCleared() ? SegmentLog.Entry.tombstone(entry.id(), encode(entry)) : SegmentLog.Entry.put(entry.id(), encode(entry)))
+                .toList());
+    }
+
+    /// One part per segment
+    @Override
+    public List<Part> parts() {
+        return segmentLog.segments().stream()
+                .map(segment -> new Part("segment-" + segment, consumer -> segmentLog.readLive(segment, entry -> consumer.accept(decode(entry)))))
+                .toList();
+    }
+
+    /// Not synchronized, a segment removed by a concurrent compaction is read again at its new location
+    @Override
+    public Optional<String> read(BackupReference backupReference) throws IOException {
+        Optional<SegmentLog.Entry> entry;
+        try {
+            entry = segmentLog.get(backupReference.id());
+        } catch (NoSuchFileException e) {
+            entry = segmentLog.get(backupReference.id());
+        }
+        return entry
+                .map(SegmentBackupStore::decode)
+                .filter(backupEntry -> !backupEntry.isCleared())
+                .map(BackupEntry::ubl);
+    }
+
+    @Override
+    public synchronized int compact() throws IOException {
+        int compacted = segmentLog.compact(compactRatio);
+        if (compacted > 0) {
+            log.info("Compacted {} backup segments", compacted);
+        }
+        return compacted;
+    }
+
+    private static byte[] encode(BackupEntry entry) {
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+            dataOutputStream.writeUTF(entry.ownerPeppolId());
+            dataOutputStream.writeUTF(entry.direction().name());
+            dataOutputStream.writeLong(entry.createdOn() == null ? Long.MIN_VALUE : entry.createdOn().toEpochMilli());
+            if (!entry.isCleared()) {
+                dataOutputStream.write(entry.data()); //Already encoded
+            }
+            dataOutputStream.flush();
+            return outputStream.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static BackupEntry decode(SegmentLog.Entry entry) {
+        try {
+            DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(entry.value()));
+            String ownerPeppolId = inputStream.readUTF();
+            DocumentDirection direction = DocumentDirection.valueOf(inputStream.readUTF());
+            long createdOn = inputStream.readLong();
+            byte[] data = inputStream.readAllBytes();
+            return new BackupEntry(
+                    entry.key(),
+                    ownerPeppolId,
+                    direction,
+                    createdOn == Long.MIN_VALUE ? null : Instant.ofEpochMilli(createdOn),
+                    null,
+                    entry.type() == SegmentLog.TOMBSTONE || data.length == 0 ? null : data
+            );
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        segmentLog.close();
+    }
+}
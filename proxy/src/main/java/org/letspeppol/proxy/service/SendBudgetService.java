@@ -0,0 +1,85 @@
+package org.letspeppol.proxy.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.letspeppol.proxy.model.AccessPoint;
+import org.letspeppol.proxy.repository.SendBudgetRepository;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Optional;
+
+/// Token buckets in the `send_budget` table throttling outgoing documents across restarts and proxy instances.
+/// The [#GLOBAL] bucket is configured by `send-budget.global.*`, a bucket per [AccessPoint] by `send-budget.<access-point>.*`
+/// falling back to `send-budget.default.*`, each with a `capacity` (burst) and a `refill-per-second` rate.
+@Slf4j
+@RequiredArgsConstructor
+@Transactional
+@Service
+public class SendBudgetService {
+
+    public static final String GLOBAL = "GLOBAL";
+
+    private final SendBudgetRepository sendBudgetRepository;
+    private final Environment environment;
+    private final MeterRegistry meterRegistry;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void configure() {
+        configure(GLOBAL, "global");
+        for (AccessPoint accessPoint : AccessPoint.values()) {
+            if (accessPoint != AccessPoint.NONE && accessPoint != AccessPoint.LOOPBACK) {
+                configure(accessPoint.name(), accessPoint.name().toLowerCase().replace('_', '-'));
+            }
+        }
+    }
+
+    private void configure(String name, String key) {
+        double capacity = property(key, "capacity");
+        double refillPerSecond = property(key, "refill-per-second");
+        sendBudgetRepository.configure(name, capacity, refillPerSecond);
+        log.info("Send budget {} with capacity {} and refill of {} per second", name, capacity, refillPerSecond);
+        Gauge.builder("send_budget_tokens", sendBudgetRepository, repository -> Optional.ofNullable(repository.available(name)).orElse(0.0))
+                .description("Current # tokens available to send documents")
+                .tag("service", "proxy")
+                .tag("bucket", name)
+                .register(meterRegistry);
+    }
+
+    private double property(String key, String property) {
+        return environment.getProperty("send-budget." + key + "." + property, Double.class,
+                environment.getProperty("send-budget.default." + property, Double.class, 0.0));
+    }
+
+    /// Takes at most the requested tokens, granting fewer when the bucket runs low
+    public int tryConsume(String name, int requested) {
+        if (requested <= 0) {
+            return 0;
+        }
+        return Optional.ofNullable(sendBudgetRepository.consume(name, requested)).orElse(0);
+    }
+
+    public int tryConsume(AccessPoint accessPoint, int requested) {
+        return tryConsume(accessPoint.name(), requested);
+    }
+
+    public void refund(String name, int amount) {
+        if (amount > 0) {
+            sendBudgetRepository.add(name, amount);
+        }
+    }
+
+    public void add(String name, double amount) {
+        sendBudgetRepository.add(name, amount);
+    }
+
+    @Transactional(readOnly = true)
+    public double available(String name) {
+        return Optional.ofNullable(sendBudgetRepository.available(name)).orElse(0.0);
+    }
+}
@@ -0,0 +1,73 @@
+package org.letspeppol.proxy.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.letspeppol.proxy.repository.UblDocumentRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+
+/// Daily quota of throttled outgoing documents on the `send_quota` ledger (owner, day, partner, count).
+/// Only documents scheduled on a later day are counted, documents scheduled for today are sent immediately.
+@Slf4j
+@RequiredArgsConstructor
+@Transactional
+@Service
+public class SendQuotaService {
+
+    public static final ZoneId ZONE = ZoneId.of("Europe/Brussels");
+    public static final int MAXIMUM_RATE_PER_DAY = 8;
+    public static final int MAXIMUM_RATE_BETWEEN_PARTIES = 4;
+
+    private final UblDocumentRepository ublDocumentRepository;
+
+    @Value("${send-quota.horizon-days:3650}")
+    private int horizonDays;
+
+    /// Takes a slot on the first day from `from` on with room for the owner and the pair of parties, reservations of an owner are serialized
+    public LocalDate reserve(String ownerPeppolId, String partnerPeppolId, LocalDate from) {
+        ublDocumentRepository.lockSendQuota(ownerPeppolId);
+        LocalDate day = ublDocumentRepository.findFirstFreeSendDay(ownerPeppolId, partnerPeppolId, from, horizonDays, MAXIMUM_RATE_PER_DAY, MAXIMUM_RATE_BETWEEN_PARTIES)
+                .map(from::plusDays)
+                .orElseGet(() -> {
+                    log.warn("No free send day for {} within {} days", ownerPeppolId, horizonDays);
+                    return from.plusDays(horizonDays + 1);
+                });
+        ublDocumentRepository.reserveSendQuota(ownerPeppolId, partnerPeppolId, day);
+        return day;
+    }
+
+    /// Gives back the slot of a document that is rescheduled or cancelled, when it was scheduled on a later day
+    public void release(String ownerPeppolId, String partnerPeppolId, Instant scheduledOn) {
+        if (scheduledOn == null) {
+            return;
+        }
+        LocalDate day = scheduledOn.atZone(ZONE).toLocalDate();
+        if (day.isAfter(LocalDate.now(ZONE))) {
+            ublDocumentRepository.releaseSendQuota(ownerPeppolId, partnerPeppolId, day);
+        }
+    }
+
+    /// Moves the slot of a document that is postponed without being throttled again, so a later release gives back the right day
+    public void move(String ownerPeppolId, String partnerPeppolId, Instant scheduledOn, Instant postponedOn) {
+        LocalDate day = postponedOn.atZone(ZONE).toLocalDate();
+        if (scheduledOn != null && scheduledOn.atZone(ZONE).toLocalDate().equals(day)) {
+            return;
+        }
+        release(ownerPeppolId, partnerPeppolId, scheduledOn);
+        if (day.isAfter(LocalDate.now(ZONE))) {
+            ublDocumentRepository.reserveSendQuota(ownerPeppolId, partnerPeppolId, day);
+        }
+    }
+
+    public void prune() {
+        int pruned = ublDocumentRepository.deleteSendQuotaBefore(LocalDate.now(ZONE));
+        if (pruned > 0) {
+            log.info("Pruned {} send quota entries", pruned);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.letspeppol.proxy.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.letspeppol.proxy.repository.UblDocumentRepository;
+import org.letspeppol.proxy.util.BloomFilter;
+import org.letspeppol.proxy.util.HashUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/// Duplicate detection of ubl content on the `ubl_hash` ledger, which stores every seen hash as 32 bytes with a primary key.
+/// The ledger claim of [#register(String)] is the authority (also for hashes seen by other proxy instances) and a single round trip.
+/// An in-memory Bloom filter lets [#isDuplicate(String)] answer the common "new document" case without a query, so callers can
+/// reject a duplicate before doing work. With `dedup.window` set, a hash is only a duplicate within that period and older hashes are pruned.
+@Slf4j
+@Transactional
+@Service
+public class UblDeduplicationService {
+
+    private final UblDocumentRepository ublDocumentRepository;
+    private final BloomFilter bloomFilter;
+    private final Duration window;
+    private volatile boolean bloomFilterReady = false;
+
+    public UblDeduplicationService(UblDocumentRepository ublDocumentRepository,
+                                   @Value("${dedup.window:#{null}}") Duration window,
+                                   @Value("${dedup.bloom.expected-insertions:1000000}") long expectedInsertions,
+                                   @Value("${dedup.bloom.false-positive-rate:0.01}") double falsePositiveRate) {
+        this.ublDocumentRepository = ublDocumentRepository;
+        this.window = window;
+        this.bloomFilter = new BloomFilter(expectedInsertions, falsePositiveRate);
+    }
+
+    /// Existence check only, fails fast before any work is done for a duplicate, e.g. parsing and validating the ubl
+    @Transactional(readOnly = true)
+    public boolean isDuplicate(String hash) {
+        byte[] binaryHash = HashUtil.fromHex(hash);
+        if (bloomFilterReady && !bloomFilter.mightContain(binaryHash)) {
+            return false;
+        }
+        return ublDocumentRepository.existsHash(binaryHash, cutoff());
+    }
+
+    /// Records the hash as seen, returns false when it was already seen (within the window), safe for concurrent requests
+    public boolean register(String hash) {
+        byte[] binaryHash = HashUtil.fromHex(hash);
+        boolean registered = ublDocumentRepository.claimHash(binaryHash, cutoff()) > 0;
+        bloomFilter.put(binaryHash); //Also when rolled back, a false positive only costs a query
+        return registered;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    @Transactional(readOnly = true)
+    public void rebuildBloomFilter() {
+        AtomicLong count = new AtomicLong();
+        try (Stream<byte[]> hashes = ublDocumentRepository.streamAllHashes(cutoff())) {
+            hashes.forEach(hash -> {
+                bloomFilter.put(hash);
+                count.incrementAndGet();
+            });
+        }
+        bloomFilterReady = true;
+        log.info("Deduplication Bloom filter built with {} hashes", count.get());
+    }
+
+    /// Removes the hashes seen before the window, they no longer count as duplicate. The Bloom filter keeps them until the next
+    /// restart, which only costs a query for content that is seen again.
+    public int prune() {
+        if (window == null) {
+            return 0;
+        }
+        int pruned = ublDocumentRepository.deleteAllHashesSeenBefore(cutoff());
+        if (pruned > 0) {
+            log.info("Pruned {} ubl hashes older than {}", pruned, window);
+        }
+        return pruned;
+    }
+
+    private Instant cutoff() {
+        return window == null ? Instant.EPOCH : Instant.now().minus(window);
+    }
+}
@@ -0,0 +1,71 @@
+package org.letspeppol.proxy.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.letspeppol.proxy.dto.ChangeCursor;
+import org.letspeppol.proxy.dto.DocumentChangesDto;
+import org.letspeppol.proxy.dto.DocumentStatusDto;
+import org.letspeppol.proxy.model.DocumentEventType;
+import org.letspeppol.proxy.model.UblDocument;
+import org.letspeppol.proxy.model.UblDocumentEvent;
+import org.letspeppol.proxy.repository.UblDocumentEventRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+/// Append-only lifecycle events of ubl documents, read by the retrieving app as a change feed instead of polling every outstanding document
+@Slf4j
+@RequiredArgsConstructor
+@Transactional
+@Service
+public class UblDocumentEventService {
+
+    private final UblDocumentEventRepository ublDocumentEventRepository;
+
+    @Value("${document-event.retention:90d}")
+    private Duration retention;
+
+    /// Joins the transaction changing the document, the event is only visible (and a received document only announced) when the change is committed
+    public void record(UblDocument ublDocument, DocumentEventType type) {
+        ublDocumentEventRepository.save(new UblDocumentEvent(
+                null,
+                null,
+                ublDocument.getId(),
+                ublDocument.getOwnerPeppolId(),
+                type,
+                ublDocument.getScheduledOn(),
+                ublDocument.getProcessedOn(),
+                ublDocument.getProcessedStatus(),
+                Instant.now()
+        ));
+        if (type == DocumentEventType.RECEIVED) {
+            ublDocumentEventRepository.notifyReceived(ublDocument.getOwnerPeppolId());
+        }
+    }
+
+    @Transactional(readOnly = true)
+    public DocumentChangesDto findChanges(String ownerPeppolId, ChangeCursor since, int limit) {
+        ChangeCursor cursor = since != null ? since : ChangeCursor.START;
+        List<UblDocumentEvent> events = ublDocumentEventRepository.findAllAfter(ownerPeppolId, cursor.txId(), cursor.eventId(), limit);
+        if (!events.isEmpty()) {
+            UblDocumentEvent last = events.getLast();
+            cursor = new ChangeCursor(last.getTxId(), last.getId());
+        }
+        return new DocumentChangesDto(
+                cursor.toString(),
+                events.stream()
+                        .map(event -> new DocumentStatusDto(event.getDocumentId(), event.getType(), event.getScheduledOn(), event.getProcessedOn(), event.getProcessedStatus(), event.getCreatedOn()))
+                        .toList()
+        );
+    }
+
+    public void prune() {
+        int pruned = ublDocumentEventRepository.deleteAllCreatedBefore(Instant.now().minus(retention));
+        if (pruned > 0) {
+            log.info("Pruned {} document events older than {}", pruned, retention);
+        }
+    }
+}
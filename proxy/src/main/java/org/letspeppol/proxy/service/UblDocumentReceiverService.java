@@ -1,16 +1,21 @@
 package org.letspeppol.proxy.service;
 
 import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.letspeppol.proxy.dto.BackupReference;
+import org.letspeppol.proxy.dto.DocumentCursor;
 import org.letspeppol.proxy.dto.UblDocumentDto;
 import org.letspeppol.proxy.exception.DuplicateRequestException;
 import org.letspeppol.proxy.exception.NotFoundException;
+import org.letspeppol.proxy.exception.SecurityException;
 import org.letspeppol.proxy.mapper.UblDocumentMapper;
 import org.letspeppol.proxy.model.*;
 import org.letspeppol.proxy.repository.AppLinkRepository;
 import org.letspeppol.proxy.repository.UblDocumentRepository;
 import org.letspeppol.proxy.util.HashUtil;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Service;
@@ -18,8 +23,9 @@ import org.springframework.transaction.annotation.Transactional;
 import org.springframework.transaction.support.TransactionSynchronization;
 import org.springframework.transaction.support.TransactionSynchronizationManager;
 import java.time.Instant;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 
 @Slf4j
@@ -31,8 +37,15 @@ public class UblDocumentReceiverService {
     private final UblDocumentRepository ublDocumentRepository;
     private final AppLinkRepository appLinkRepository;
     private final BackupService backupService;
+    private final UblPayloadService ublPayloadService;
+    private final UblDeduplicationService ublDeduplicationService;
+    private final UblDocumentEventService ublDocumentEventService;
     private final BalanceService balanceService;
     private final Counter documentReceivedCounter;
+    private final DocumentMetrics documentMetrics;
+
+    @Value("${sapi.stream.settle-ms:5000}")
+    private long streamSettleMs;
 
     public List<UblDocumentDto> findAllNew(String ownerPeppolId, int limit) {
         var pageable = PageRequest.of(0, limit, Sort.by("createdOn").ascending());
@@ -50,11 +63,30 @@ public class UblDocumentReceiverService {
                 .toList();
     }
 
+    /// One keyset page of the new documents after the cursor, for a user (ownerPeppolId), an App (appUid) or one linked owner of an App (both)
+    public List<UblDocumentDto> findNewAfter(String ownerPeppolId, UUID appUid, DocumentCursor after, int limit) {
+        verifyLinked(ownerPeppolId, appUid);
+        var pageable = PageRequest.of(0, limit);
+        Instant before = Instant.now().minusMillis(streamSettleMs);
+        List<DocumentDirection> directions = List.of(DocumentDirection.INCOMING, DocumentDirection.OUTGOING);
+        List<UblDocument> ublDocuments = ownerPeppolId != null
+                ? ublDocumentRepository.findAllNewByOwnerPeppolIdAfter(ownerPeppolId, directions, after.createdOn(), after.id(), before, pageable)
+                : ublDocumentRepository.findAllNewByLinkedUidAfter(appUid, directions, after.createdOn(), after.id(), before, pageable);
+        return ublDocuments.stream()
+                .map(UblDocumentMapper::toDto)
+                .toList();
+    }
+
     public void createAsReceived(DocumentType documentType, String senderPeppolId, String receiverPeppolId, String ubl, AccessPoint accessPoint, String accessPointId, Runnable afterCommit) {
+        Timer.Sample sample = documentMetrics.start();
         String hash = HashUtil.sha256(ubl);
-        if (ublDocumentRepository.findByAccessPointId(accessPointId).isPresent() || !ublDocumentRepository.findAllByHash(hash).isEmpty()) {
+        if (ublDocumentRepository.existsByDirectionAndAccessPointAndAccessPointId(DocumentDirection.INCOMING, accessPoint, accessPointId) || !ublDeduplicationService.register(hash)) {
             log.error("Receiving duplicate document {} from Access Point {}", accessPointId, accessPoint);
-            afterCommit.run(); //TODO : does this make sense as AP needs to be informed we have successfully received the document ?
+            documentMetrics.duplicate(DocumentDirection.INCOMING);
+            documentMetrics.stop(sample, DocumentMetrics.RECEIVE, accessPoint, "duplicate");
+            if (afterCommit != null) {
+                afterCommit.run(); //TODO : does this make sense as AP needs to be informed we have successfully received the document ?
+            }
             throw new DuplicateRequestException("UblDocument " + accessPointId + " is already received");
         }
 
@@ -68,20 +100,32 @@ public class UblDocumentReceiverService {
                 null,
                 Instant.now(),
                 null,
-                ubl,
+                null,
                 hash,
                 0,
                 null,
                 accessPoint,
-                accessPointId //Unique
+                accessPointId, //Unique
+                null,
+                0,
+                null,
+                null,
+                null
         );
         ublDocument = ublDocumentRepository.save(ublDocument); //This is needed as it is a new
-        try {
-            backupService.backupFile(ublDocument);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        ublPayloadService.attach(ublDocument, ubl, hash);
+        ublDocumentEventService.record(ublDocument, DocumentEventType.RECEIVED);
+        backupService.backupFile(ublDocument, ubl);
         log.info("Successful received document {} from Peppol Access Point {} | balance = {} ", ublDocument.getId(), accessPoint, balanceService.decrement());
+        if (TransactionSynchronizationManager.isSynchronizationActive()) { //Timed up to the commit, a concurrent receive of the same document fails on it
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                public void afterCompletion(int status) {
+                    documentMetrics.stop(sample, DocumentMetrics.RECEIVE, accessPoint, status == STATUS_COMMITTED ? "received" : "failed");
+                }
+            });
+        } else {
+            documentMetrics.stop(sample, DocumentMetrics.RECEIVE, accessPoint, "received");
+        }
         if (afterCommit != null && TransactionSynchronizationManager.isActualTransactionActive()) {
             TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
                 public void afterCommit() {
@@ -95,6 +139,12 @@ public class UblDocumentReceiverService {
         }
     }
 
+    private void verifyLinked(String ownerPeppolId, UUID appUid) {
+        if (ownerPeppolId != null && appUid != null && !appLinkRepository.existsById(new AppLink.AppLinkId(ownerPeppolId, appUid))) {
+            throw new SecurityException("App " + appUid + " is not linked to " + ownerPeppolId);
+        }
+    }
+
     public void downloaded(List<UUID> ids, String ownerPeppolId, boolean noArchive) {
         downloaded(ids, ownerPeppolId, null, noArchive);
     }
@@ -103,32 +153,21 @@ public class UblDocumentReceiverService {
         downloaded(ids, null, appUid, noArchive);
     }
 
+    /// Flags the processed documents as downloaded with one statement, ids that are unknown, not accessible or not yet processed are skipped
     public void downloaded(List<UUID> ids, String ownerPeppolId, UUID appUid, boolean noArchive) {
-        for (UUID id : ids) {
-            Optional<UblDocument> optionalUblDocument = ublDocumentRepository.findById(id);
-            if (optionalUblDocument.isEmpty()) {
-                log.error("Document {} not found for {} when trying to flag as downloaded", id, ownerPeppolId);
-                continue;
-            }
-            UblDocument ublDocument = optionalUblDocument.get();
-            if (ownerPeppolId != null && !ublDocument.getOwnerPeppolId().equals(ownerPeppolId)) {
-                log.error("Document {} is owned by {} and not {} when trying to flag as downloaded", id, ublDocument.getOwnerPeppolId(), ownerPeppolId);
-                continue;
-            }
-            if (ownerPeppolId == null && !appLinkRepository.existsById(new AppLink.AppLinkId(ublDocument.getOwnerPeppolId(), appUid))) {
-                log.error("Document {} is owned by {} and App {} has no access when trying to flag as downloaded", id, ublDocument.getOwnerPeppolId(), appUid);
-                continue;
-            }
-            if (ublDocument.getAccessPoint() == null) {
-                log.error("Document {} is not yet processed for {} when trying to flag as downloaded", id, ownerPeppolId);
-                continue; //Ignoring unprocessed ubl documents
-            }
-            ublDocument.setDownloadCount(ublDocument.getDownloadCount() + 1);
-            if (noArchive) { //Set to No-Archive
-                ublDocument.setUbl(null);
-                backupService.clearBackupFile(ublDocument);
-            }
-            // ublDocument = ublDocumentRepository.save(ublDocument); //This can be remove due to @Transactional
+        if (ids.isEmpty()) {
+            return;
+        }
+        List<UUID> flagged = ublDocumentRepository.markDownloaded(ids, ownerPeppolId, appUid);
+        Set<UUID> flaggedIds = new HashSet<>(flagged);
+        List<UUID> skipped = ids.stream().filter(id -> !flaggedIds.contains(id)).distinct().toList();
+        if (!skipped.isEmpty()) {
+            log.error("Documents {} not found, not accessible for {} (App {}) or not yet processed when trying to flag as downloaded", skipped, ownerPeppolId, appUid);
+        }
+        if (noArchive && !flagged.isEmpty()) { //Set to No-Archive
+            List<BackupReference> backupReferences = ublDocumentRepository.findAllBackupReferencesByIdIn(flagged);
+            ublPayloadService.detachAll(flagged);
+            backupService.clearBackupFilesAfterCommit(backupReferences);
         }
     }
 
@@ -1,22 +1,35 @@
 package org.letspeppol.proxy.service;
 
+import io.micrometer.core.instrument.Timer;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.letspeppol.proxy.dto.DueCandidate;
+import org.letspeppol.proxy.dto.DueDocument;
 import org.letspeppol.proxy.dto.StatusReport;
 import org.letspeppol.proxy.model.AccessPoint;
 import org.letspeppol.proxy.model.DocumentDirection;
+import org.letspeppol.proxy.model.DocumentEventType;
 import org.letspeppol.proxy.model.UblDocument;
 import org.letspeppol.proxy.repository.UblDocumentRepository;
+import org.hibernate.Hibernate;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
 import java.util.UUID;
-import static java.lang.Math.max;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
 
 @Slf4j
 @RequiredArgsConstructor
@@ -28,122 +41,272 @@ public class UblDocumentSchedulerService {
     private final RegistryService registryService;
     private final AccessPointServiceRegistry accessPointServiceRegistry;
     private final BackupService backupService;
-    private final BalanceService balanceService;
+    private final UblPayloadService ublPayloadService;
+    private final SendBudgetService sendBudgetService;
+    private final SendQuotaService sendQuotaService;
+    private final UblDocumentStatusService ublDocumentStatusService;
+    private final AccessPointDispatcher accessPointDispatcher;
+    private final FairDueSelector fairDueSelector;
+    private final UblDocumentEventService ublDocumentEventService;
+    private final DocumentMetrics documentMetrics;
+    private final TransactionTemplate transactionTemplate;
 
-    @Value("${scheduler.send.slow-down-factor:2}")
-    private int sendSlowDownFactor;
+    @Value("${scheduler.send.batch-size:50}")
+    private int sendBatchSize;
+    @Value("${scheduler.send.interactive-window-ms:60000}")
+    private long sendInteractiveWindowMs;
+    @Value("${scheduler.send.lease-ms:300000}")
+    private long sendLeaseMs;
     @Value("${scheduler.synchronize.limit-per-interval:60}")
     private int synchronizeLimitPerInterval;
+    @Value("${scheduler.synchronize.backoff-initial-ms:60000}")
+    private long synchronizeBackoffInitialMs;
+    @Value("${scheduler.synchronize.backoff-max-ms:21600000}")
+    private long synchronizeBackoffMaxMs;
+    @Value("${scheduler.synchronize.safety-net-delay-ms:3600000}")
+    private long synchronizeSafetyNetDelayMs;
+    @Value("${scheduler.node-id:${HOSTNAME:#{T(java.util.UUID).randomUUID().toString()}}}")
+    private String nodeId;
 
+    /// Due documents are claimed for this instance and dispatched concurrently per Access Point, each document is flagged as in flight, sent and flagged as picked up without holding a transaction during the call.
+    /// Every batch takes tokens of the global send budget and of the budget per Access Point, claimed documents without a token are released for a next batch.
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public void sendDueOutgoing() {
-        List<UblDocument> ublDocuments = ublDocumentRepository.findAllByDirectionAndScheduledOnBeforeAndAccessPointIsNull(
-                DocumentDirection.OUTGOING,
-                Instant.now(),
-                PageRequest.of(
-                        0,
-                        max((int) ( balanceService.get() / sendSlowDownFactor ), 1), //Will process more as long as the balance is positive, slowing down by halving per second
-                        Sort.by("scheduledOn").ascending().and(
-                                Sort.by("createdOn").ascending()
-                        )
-                )
-        );
-        for (UblDocument ublDocument : ublDocuments) {
-            sendToAccessPoint(ublDocument);
-            System.out.print("!"); //TODO : monitoring ?
+        int budget = sendBudgetService.tryConsume(SendBudgetService.GLOBAL, sendBatchSize);
+        if (budget == 0) {
+            return;
+        }
+        List<DueDocument> dueDocuments = claimDueOutgoing(budget);
+        Map<AccessPoint, List<DueDocument>> dueDocumentsPerAccessPoint = new EnumMap<>(AccessPoint.class);
+        for (DueDocument dueDocument : dueDocuments) {
+            dueDocumentsPerAccessPoint.computeIfAbsent(registryService.getAccessPoint(dueDocument.ownerPeppolId()), accessPoint -> new ArrayList<>()).add(dueDocument);
+        }
+        List<CompletableFuture<Void>> dispatched = new ArrayList<>(dueDocuments.size());
+        List<UUID> released = new ArrayList<>();
+        for (Map.Entry<AccessPoint, List<DueDocument>> entry : dueDocumentsPerAccessPoint.entrySet()) {
+            AccessPoint accessPoint = entry.getKey();
+            List<DueDocument> documents = entry.getValue();
+            int granted = accessPoint == AccessPoint.NONE ? documents.size() : sendBudgetService.tryConsume(accessPoint, documents.size()); //Unregistered are failed without Access Point
+            for (int i = 0; i < documents.size(); i++) {
+                UUID id = documents.get(i).id();
+                if (i < granted) {
+                    dispatched.add(accessPointDispatcher.execute(accessPoint, () -> send(id, accessPoint)));
+                } else {
+                    released.add(id);
+                }
+            }
         }
-        System.out.print("."); //TODO : monitoring ?
+        if (!released.isEmpty()) {
+            transactionTemplate.executeWithoutResult(status -> ublDocumentRepository.release(released, nodeId));
+        }
+        sendBudgetService.refund(SendBudgetService.GLOBAL, budget - dueDocuments.size() + released.size());
+        AccessPointDispatcher.awaitAll(dispatched);
+    }
+
+    /// Claims are leases, when an instance dies mid-batch (or a send fails) its documents are picked up again by any instance once the lease expires.
+    /// The documents are selected fairly across owners, see [FairDueSelector].
+    private List<DueDocument> claimDueOutgoing(int limit) {
+        return transactionTemplate.execute(status -> {
+            Instant now = Instant.now();
+            List<DueCandidate> candidates = ublDocumentRepository.findAllDueCandidates(now, sendInteractiveWindowMs / 1000.0, limit);
+            List<UUID> selected = fairDueSelector.select(candidates, limit);
+            if (selected.isEmpty()) {
+                return List.of();
+            }
+            List<UUID> ids = ublDocumentRepository.lockAllDue(selected, now);
+            if (ids.isEmpty()) {
+                return List.of();
+            }
+            ublDocumentRepository.claim(ids, nodeId, now.plusMillis(sendLeaseMs));
+            return ublDocumentRepository.findAllDueByIdIn(ids);
+        });
     }
 
-    private void sendToAccessPoint(UblDocument ublDocument) {
-        AccessPoint accessPoint = registryService.getAccessPoint(ublDocument.getOwnerPeppolId());
+    /// Timed per Access Point with the outcome, `error` when the send or its transaction failed.
+    /// The claim is checked and the document flipped to in flight (Access Point set, without its id) in a short transaction, the Access Point is
+    /// called outside a transaction and the outcome is recorded in a next one. An in flight document is not due, also not once the lease expires
+    /// during a slow call, so another instance never sends it again. One that stays in flight (e.g. the instance died during the call) is failed
+    /// by the synchronization after `scheduler.send.lease-ms`, as its delivery is unknown.
+    private void send(UUID id, AccessPoint accessPoint) {
+        Timer.Sample sample = documentMetrics.start();
+        String outcome = "error";
+        try {
+            SendStep sendStep = transactionTemplate.execute(status -> ublDocumentRepository.findClaimedForUpdate(id, nodeId, Instant.now())
+                    .map(ublDocument -> startSending(ublDocument, accessPoint))
+                    .orElse(new SendStep("skipped", null)) //Lease expired and claimed by another instance, cancelled or picked up meanwhile
+            );
+            outcome = sendStep.inFlight() == null ? sendStep.outcome() : sendToAccessPoint(sendStep.inFlight(), accessPoint);
+        } catch (Exception e) {
+            log.error("Failed to send document {} to Peppol Access Point {}", id, accessPoint, e);
+        } finally {
+            documentMetrics.stop(sample, DocumentMetrics.SEND, accessPoint, outcome);
+        }
+    }
+
+    /// Outcome of the send transaction, or the document in flight when the Access Point is still to be called
+    private record SendStep(String outcome, UblDocument inFlight) {}
+
+    private SendStep startSending(UblDocument ublDocument, AccessPoint accessPoint) {
         if (accessPoint == AccessPoint.NONE) {
             pickedUp(ublDocument, accessPoint, null);
-            delivered(ublDocument, new StatusReport(false, "Proxy error : PeppolId is not registered to send"));
-            return;
+            ublDocumentStatusService.delivered(ublDocument, new StatusReport(false, "Proxy error : PeppolId is not registered to send"));
+            return new SendStep("unregistered", null);
         }
         AccessPointServiceInterface service = accessPointServiceRegistry.get(accessPoint);
         if (service == null) {
             pickedUp(ublDocument, accessPoint, null);
-            delivered(ublDocument, new StatusReport(false, "Proxy error : Peppol Access Point not active"));
-            return;
+            ublDocumentStatusService.delivered(ublDocument, new StatusReport(false, "Proxy error : Peppol Access Point not active"));
+            return new SendStep("inactive", null);
         }
         if (ublDocument.getPartnerPeppolId().equals(ublDocument.getOwnerPeppolId())) {
             String loopbackId = loopbackDocument(ublDocument);
-            log.info("Successful processed loopback document {} bypassed Peppol Access Point {} | balance = {} ", ublDocument.getId(), accessPoint, balanceService.decrement());
+            log.info("Successful processed loopback document {} bypassed Peppol Access Point {}", ublDocument.getId(), accessPoint);
             pickedUp(ublDocument, AccessPoint.LOOPBACK, loopbackId.toString());
-            return;
+            return new SendStep("loopback", null);
         }
-        String accessPointId = service.sendDocument(ublDocument);
+        ublDocument.setAccessPoint(accessPoint);
+        ublDocument.setNextCheckAt(Instant.now().plusMillis(sendLeaseMs)); //Deadline of the call, see synchronizeWithAccessPoint
+        Hibernate.initialize(ublDocument.getPayload()); //The ubl is read by the Access Point service after the transaction
+        return new SendStep(null, ublDocument);
+    }
+
+    /// Returns the outcome for monitoring
+    private String sendToAccessPoint(UblDocument ublDocument, AccessPoint accessPoint) {
+        UUID id = ublDocument.getId();
+        String accessPointId;
+        try {
+            accessPointId = accessPointServiceRegistry.get(accessPoint).sendDocument(ublDocument);
+        } catch (RuntimeException e) {
+            transactionTemplate.executeWithoutResult(status -> findInFlight(id, accessPoint).ifPresent(current -> {
+                current.setAccessPoint(null); //Due again once the lease expires
+                current.setNextCheckAt(null);
+            }));
+            throw e;
+        }
+        return transactionTemplate.execute(status -> findInFlight(id, accessPoint)
+                .map(current -> sent(current, accessPoint, accessPointId))
+                .orElseGet(() -> {
+                    log.error("Document {} was sent to Peppol Access Point {} as {} after it was failed for exceeding the send deadline", id, accessPoint, accessPointId);
+                    return "late";
+                })
+        );
+    }
+
+    /// Locked, so recording the outcome of the send and failing it by the synchronization do not overwrite each other
+    private Optional<UblDocument> findInFlight(UUID id, AccessPoint accessPoint) {
+        return ublDocumentRepository.findByIdForUpdate(id)
+                .filter(current -> current.getAccessPoint() == accessPoint && current.getAccessPointId() == null && current.getProcessedOn() == null);
+    }
+
+    private String sent(UblDocument ublDocument, AccessPoint accessPoint, String accessPointId) {
         if (accessPointId == null) {
-            ublDocument.setScheduledOn(ublDocument.getScheduledOn().plus(1, ChronoUnit.HOURS)); //Postpone 1 hour to try again
-            return;
+            Instant postponedOn = ublDocument.getScheduledOn().plus(1, ChronoUnit.HOURS); //Postpone 1 hour to try again
+            sendQuotaService.move(ublDocument.getOwnerPeppolId(), ublDocument.getPartnerPeppolId(), ublDocument.getScheduledOn(), postponedOn);
+            ublDocument.setAccessPoint(null);
+            ublDocument.setNextCheckAt(null);
+            ublDocument.setScheduledOn(postponedOn);
+            ublDocumentEventService.record(ublDocument, DocumentEventType.STATUS_CHANGED);
+            documentMetrics.postponed("access_point");
+            return "postponed";
         }
-        log.info("Successful send document {} to Peppol Access Point {} | balance = {} ", ublDocument.getId(), accessPoint, balanceService.decrement());
+        log.info("Successful send document {} to Peppol Access Point {}", ublDocument.getId(), accessPoint);
         pickedUp(ublDocument, accessPoint, accessPointId);
+        return "sent";
     }
 
+    /// Only documents whose next check is due are polled, concurrently per Access Point, documents that stay pending are checked with an exponential backoff
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public void synchronizeOutgoingDocuments() {
-        List<UblDocument> ublDocuments = ublDocumentRepository.findAllByDirectionAndProcessedOnIsNullAndAccessPointIsNotNull(
+        List<UblDocument> ublDocuments = ublDocumentRepository.findAllToSynchronize(
                 DocumentDirection.OUTGOING,
-                PageRequest.of(
-                        0,
-                        synchronizeLimitPerInterval,
-                        Sort.by("updatedOn").ascending()
-                )
+                Instant.now(),
+                PageRequest.of(0, synchronizeLimitPerInterval)
         );
+        List<CompletableFuture<Void>> dispatched = new ArrayList<>(ublDocuments.size());
         for (UblDocument ublDocument : ublDocuments) {
-            if (ublDocument.getUpdatedOn().isAfter(Instant.now().plus(1, ChronoUnit.DAYS))) {
+            if (ublDocument.getUpdatedOn() != null && ublDocument.getUpdatedOn().isBefore(Instant.now().minus(1, ChronoUnit.DAYS))) {
                 log.warn("Document {} send to Peppol Access Point {} is still not processed since {}", ublDocument.getId(), ublDocument.getAccessPoint(), ublDocument.getUpdatedOn());
             }
-            synchronizeWithAccessPoint(ublDocument);
-            System.out.print("-"); //TODO : monitoring ?
+            dispatched.add(accessPointDispatcher.execute(ublDocument.getAccessPoint(), () -> synchronize(ublDocument)));
+        }
+        AccessPointDispatcher.awaitAll(dispatched);
+    }
+
+    /// Timed per Access Point with the outcome, `unreachable` when the status could not be polled
+    private void synchronize(UblDocument ublDocument) {
+        Timer.Sample sample = documentMetrics.start();
+        String outcome = "error";
+        try {
+            StatusReport statusReport = synchronizeWithAccessPoint(ublDocument); //Polled outside a transaction, no connection is held during the call
+            outcome = transactionTemplate.execute(status -> ublDocumentRepository.findByIdForUpdate(ublDocument.getId())
+                    .filter(current -> current.getProcessedOn() == null) //Could be processed meanwhile
+                    .filter(current -> Objects.equals(current.getAccessPointId(), ublDocument.getAccessPointId())) //Or its send finished meanwhile
+                    .map(current -> {
+                        if (statusReport == null || statusReport.pending()) {
+                            postponeSynchronization(current, statusReport == null ? 0 : statusReport.attempt());
+                            return statusReport == null ? "unreachable" : "pending";
+                        }
+                        ublDocumentStatusService.delivered(current, statusReport);
+                        return statusReport.success() ? "delivered" : "failed";
+                    })
+                    .orElse("skipped")
+            );
+        } catch (Exception e) {
+            log.error("Failed to synchronize document {} with Peppol Access Point {}", ublDocument.getId(), ublDocument.getAccessPoint(), e);
+        } finally {
+            documentMetrics.stop(sample, DocumentMetrics.STATUS_POLL, ublDocument.getAccessPoint(), outcome);
         }
-        System.out.print(","); //TODO : monitoring ?
     }
 
-    private void synchronizeWithAccessPoint(UblDocument ublDocument) {
+    private StatusReport synchronizeWithAccessPoint(UblDocument ublDocument) {
 //        AccessPoint accessPoint = registryService.getAccessPoint(ublDocument.getOwnerPeppolId());
 //        if (accessPoint == AccessPoint.NONE) {
-//            delivered(ublDocument, new StatusReport(false, "Proxy error : PeppolId is no longer registered to synchronize"));
-//            return;
+//            return new StatusReport(false, "Proxy error : PeppolId is no longer registered to synchronize");
 //        }
         AccessPoint accessPoint = ublDocument.getAccessPoint(); //Take the Access Point of the document
         if (accessPoint == AccessPoint.LOOPBACK) {
             log.warn("Loopback document {} was not delivered since {}", ublDocument.getId(), ublDocument.getUpdatedOn());
-            delivered(ublDocument, new StatusReport(true, null));
-            return;
+            return new StatusReport(true, null);
+        }
+        if (ublDocument.getAccessPointId() == null) { //Still in flight after the deadline of the send
+            log.error("Sending document {} to Peppol Access Point {} did not finish in time, its delivery is unknown", ublDocument.getId(), accessPoint);
+            return new StatusReport(false, "Proxy error : Sending to Peppol Access Point was interrupted, delivery is unknown");
         }
         AccessPointServiceInterface service = accessPointServiceRegistry.get(accessPoint);
         if (service == null) {
-            delivered(ublDocument, new StatusReport(false, "Proxy error : Peppol Access Point no longer active"));
-            return;
+            return new StatusReport(false, "Proxy error : Peppol Access Point no longer active");
         }
-        StatusReport statusReport = service.getStatus(ublDocument);
-        if (statusReport == null) {
-            return;
+        try {
+            return service.getStatus(ublDocument);
+        } catch (Exception e) {
+            log.warn("Could not get status of document {} from Peppol Access Point {}, will check again later", ublDocument.getId(), accessPoint);
+            return null;
         }
-        delivered(ublDocument, statusReport);
+    }
+
+    /// Backs off exponentially with the number of checks, or with the attempts of the Access Point when it is retrying itself
+    private void postponeSynchronization(UblDocument ublDocument, int accessPointAttempt) {
+        int checkCount = ublDocument.getCheckCount() + 1;
+        int exponent = Math.min(Math.max(checkCount, accessPointAttempt), 20);
+        long delayMs = Math.min(synchronizeBackoffInitialMs << exponent, synchronizeBackoffMaxMs);
+        long jitterMs = ThreadLocalRandom.current().nextLong(delayMs / 10 + 1); //Spread checks of documents picked up in the same batch
+        ublDocument.setCheckCount(checkCount);
+        ublDocument.setNextCheckAt(Instant.now().plusMillis(delayMs + jitterMs));
     }
 
     private void pickedUp(UblDocument ublDocument, AccessPoint accessPoint, String accessPointId) {
         ublDocument.setAccessPoint(accessPoint);
         ublDocument.setAccessPointId(accessPointId);
+        ublDocument.setCheckCount(0);
+        AccessPointServiceInterface service = accessPointServiceRegistry.get(accessPoint);
+        long firstCheckMs = service != null && service.isWebhookEnabled() ? synchronizeSafetyNetDelayMs : synchronizeBackoffInitialMs; //Status webhook is expected first
+        ublDocument.setNextCheckAt(Instant.now().plusMillis(firstCheckMs));
         if (ublDocument.getDownloadCount() < 0) { //Set to No-Archive, removed once the Peppol AP received it, if it fails the End-User can send it again as owner of the data
-            ublDocument.setUbl(null);
-            ublDocument.setDownloadCount(0);
-            backupService.clearBackupFile(ublDocument);
-        }
-        // ublDocument = ublDocumentRepository.save(ublDocument); //This can be remove due to @Transactional
-    }
-
-    private void delivered(UblDocument ublDocument, StatusReport statusReport) {
-        ublDocument.setProcessedOn(Instant.now());
-        ublDocument.setProcessedStatus( statusReport.success() ? null : statusReport.statusMessage() );
-        if (ublDocument.getDownloadCount() < 0) { //Set to No-Archive
-            ublDocument.setUbl(null);
+            ublPayloadService.detach(ublDocument);
             ublDocument.setDownloadCount(0);
             backupService.clearBackupFile(ublDocument);
         }
+        ublDocumentEventService.record(ublDocument, DocumentEventType.PICKED_UP);
         // ublDocument = ublDocumentRepository.save(ublDocument); //This can be remove due to @Transactional
     }
 
@@ -158,19 +321,22 @@ public class UblDocumentSchedulerService {
                 null,
                 Instant.now(),
                 null,
-                ublDocument.getUbl(),
+                null,
                 ublDocument.getHash(),
                 0,
                 null,
                 AccessPoint.LOOPBACK,
-                ublDocument.getId().toString()
+                ublDocument.getId().toString(),
+                null,
+                0,
+                null,
+                null,
+                null
         );
         loopbackUblDocument = ublDocumentRepository.save(loopbackUblDocument);
-        try {
-            backupService.backupFile(loopbackUblDocument);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        ublDocumentEventService.record(loopbackUblDocument, DocumentEventType.RECEIVED);
+        ublPayloadService.share(ublDocument, loopbackUblDocument); //No copy of the content, both reference the same payload
+        backupService.copyBackupFile(ublDocument, loopbackUblDocument);
         return loopbackUblDocument.getId().toString();
     }
 }
@@ -2,6 +2,7 @@ package org.letspeppol.proxy.service;
 
 import io.micrometer.core.instrument.Counter;
 import lombok.RequiredArgsConstructor;
+import org.letspeppol.proxy.dto.UblContext;
 import org.letspeppol.proxy.dto.UblDocumentDto;
 import org.letspeppol.proxy.exception.BadRequestException;
 import org.letspeppol.proxy.exception.DuplicateRequestException;
@@ -9,14 +10,15 @@ import org.letspeppol.proxy.exception.NotFoundException;
 import org.letspeppol.proxy.mapper.UblDocumentMapper;
 import org.letspeppol.proxy.model.AccessPoint;
 import org.letspeppol.proxy.model.DocumentDirection;
+import org.letspeppol.proxy.model.DocumentEventType;
 import org.letspeppol.proxy.model.UblDocument;
 import org.letspeppol.proxy.repository.UblDocumentRepository;
-import org.letspeppol.proxy.util.HashUtil;
+import org.letspeppol.proxy.util.UblCodec;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import java.time.Instant;
 import java.time.LocalDate;
-import java.time.ZoneId;
 import java.time.temporal.ChronoUnit;
 import java.util.Optional;
 import java.util.UUID;
@@ -26,62 +28,117 @@ import java.util.UUID;
 @Service
 public class UblDocumentSenderService {
 
-    private static final ZoneId ZONE = ZoneId.of("Europe/Brussels");
-    private static final int MAXIMUM_RATE_PER_DAY = 8;
-    private static final int MAXIMUM_RATE_BETWEEN_PARTIES = 4;
-
     private final UblDocumentRepository ublDocumentRepository;
     private final BackupService backupService;
+    private final UblPayloadService ublPayloadService;
+    private final UblDeduplicationService ublDeduplicationService;
     private final BalanceService balanceService;
+    private final SendQuotaService sendQuotaService;
+    private final UblDocumentEventService ublDocumentEventService;
     private final Counter documentRescheduleCounter;
+    private final DocumentMetrics documentMetrics;
+
+    public UblDocumentDto createToSend(UblDocumentDto ublDocumentDto, UblContext ublContext, boolean noArchive) {
+        return UblDocumentMapper.toDto(createDocument(ublDocumentDto, ublContext, UblCodec.encode(ublDocumentDto.ubl()), noArchive), ublDocumentDto.ubl());
+    }
+
+    /// Variant for a spooled upload with the ubl encoded by [UblCodec] from the spool file, the data is shared by the payload and the backup.
+    /// The ubl is not returned, the sender already has it.
+    public UblDocumentDto createToSend(UblDocumentDto ublDocumentDto, UblContext ublContext, byte[] data, boolean noArchive) {
+        return UblDocumentMapper.toDto(createDocument(ublDocumentDto, ublContext, data, noArchive), null);
+    }
 
-    public UblDocumentDto createToSend(UblDocumentDto ublDocumentDto, boolean noArchive) {
-        String hash = HashUtil.sha256(ublDocumentDto.ubl()); //TODO : should we use HMAC ?
+    private UblDocument createDocument(UblDocumentDto ublDocumentDto, UblContext ublContext, byte[] data, boolean noArchive) {
+        String hash = ublContext.hash(); //TODO : should we use HMAC ?
+        UblDocument ublDocument = newToSend(ublDocumentDto, ublContext, data, hash, noArchive);
+        backupService.backupFile(ublDocument, data);
+        return ublDocument;
+    }
+
+    /// Fast check before the UBL is parsed and validated, new content is answered by the Bloom filter without a query.
+    /// The claim in [#createToSend] stays the authority for concurrent requests.
+    @Transactional(readOnly = true)
+    public void rejectDuplicate(String hash) {
+        if (ublDeduplicationService.isDuplicate(hash)) {
+            throw duplicate(hash);
+        }
+    }
+
+    private DuplicateRequestException duplicate(String hash) {
+        documentMetrics.duplicate(DocumentDirection.OUTGOING);
+        return new DuplicateRequestException("UblDocument seems to already send with hash " + hash + " content might be not unique");
+    }
+
+    private UblDocument newToSend(UblDocumentDto ublDocumentDto, UblContext ublContext, byte[] data, String hash, boolean noArchive) {
         UUID uuid = ublDocumentDto.id() == null ? UUID.randomUUID() : ublDocumentDto.id();
         if (ublDocumentRepository.findById(uuid).isPresent()) {
             throw new DuplicateRequestException("UblDocument " + uuid + " is already created, please use the update call");
         }
-        if (!ublDocumentRepository.findAllByHash(hash).isEmpty()) {
-            throw new DuplicateRequestException("UblDocument seems to already send with hash " + hash + " content might be not unique");
+        if (!ublDeduplicationService.register(hash)) {
+            throw duplicate(hash);
         }
         UblDocument ublDocument = new UblDocument(
                 uuid, //App can generate the uuid, because they might have used this for drafts
                 DocumentDirection.OUTGOING, //user can not overwrite this value : ublDocumentDto.direction(),
-                ublDocumentDto.type(),
+                ublDocumentDto.type() != null ? ublDocumentDto.type() : ublContext.type(), //Detected from the UBL when not given
                 ublDocumentDto.ownerPeppolId(),
                 ublDocumentDto.partnerPeppolId(),
                 Instant.now(), //setting manual because we need this value to return and @Transactional will postpone it and the return dto has null
                 calculateSchedule(ublDocumentDto),
                 null,
                 null,
-                ublDocumentDto.ubl(),
+                null,
                 hash,
                 noArchive?-1:0,
                 null,
                 null,
+                null,
+                null,
+                0,
+                null,
+                null,
                 null
         );
-        ublDocument = ublDocumentRepository.save(ublDocument); //This is needed as it is a new
-        backupService.backupFile(ublDocument);
-        return UblDocumentMapper.toDto(ublDocument);
+        try {
+            ublDocument = ublDocumentRepository.saveAndFlush(ublDocument); //Flushed, so a concurrent create of the same id fails here on the id ledger
+        } catch (DataIntegrityViolationException e) {
+            throw new DuplicateRequestException("UblDocument " + uuid + " is already created, please use the update call");
+        }
+        ublPayloadService.attach(ublDocument, data, hash);
+        return ublDocument;
+    }
+
+    public UblDocumentDto update(UUID id, UblDocumentDto ublDocumentDto, UblContext ublContext, boolean noArchive) {
+        return UblDocumentMapper.toDto(updateDocument(id, ublDocumentDto, ublContext, UblCodec.encode(ublDocumentDto.ubl()), noArchive), ublDocumentDto.ubl());
+    }
+
+    /// Variant for a spooled upload, see [#createToSend(UblDocumentDto, UblContext, byte\[\], boolean)]
+    public UblDocumentDto update(UUID id, UblDocumentDto ublDocumentDto, UblContext ublContext, byte[] data, boolean noArchive) {
+        return UblDocumentMapper.toDto(updateDocument(id, ublDocumentDto, ublContext, data, noArchive), null);
     }
 
-    public UblDocumentDto update(UUID id, UblDocumentDto ublDocumentDto, boolean noArchive) {
-        String hash = HashUtil.sha256(ublDocumentDto.ubl());
+    private UblDocument updateDocument(UUID id, UblDocumentDto ublDocumentDto, UblContext ublContext, byte[] data, boolean noArchive) {
+        String hash = ublContext.hash();
         UblDocument ublDocument = ublDocumentRepository.findById(id).orElseThrow(() -> new NotFoundException("UblDocument " + id + " does not exist"));
+        if (ublDocument.getAccessPoint() != null) {
+            throw new BadRequestException("UblDocument "+id+" is already picked up by AP");
+        }
+        sendQuotaService.release(ublDocument.getOwnerPeppolId(), ublDocument.getPartnerPeppolId(), ublDocument.getScheduledOn());
         ublDocument.setOwnerPeppolId(ublDocumentDto.ownerPeppolId());
         ublDocument.setPartnerPeppolId(ublDocumentDto.partnerPeppolId());
         ublDocument.setScheduledOn(calculateSchedule(ublDocumentDto));
-        ublDocument.setUbl(ublDocumentDto.ubl());
+        ublDeduplicationService.register(hash); //Not rejected as before, but known for later duplicate checks
+        ublPayloadService.attach(ublDocument, data, hash);
         ublDocument.setHash(hash);
         if (noArchive) {
             ublDocument.setDownloadCount(-1);
         } else if (ublDocument.getDownloadCount() < 0) {
             ublDocument.setDownloadCount(0);
         }
+        ublDocumentEventService.record(ublDocument, DocumentEventType.STATUS_CHANGED);
         // ublDocument = ublDocumentRepository.save(ublDocument); //This can be remove due to @Transactional
-        backupService.backupFile(ublDocument);
-        return UblDocumentMapper.toDto(ublDocument);
+        backupService.backupFile(ublDocument, data);
+        return ublDocument;
     }
 
     public UblDocumentDto reschedule(UUID id, UblDocumentDto ublDocumentDto) {
@@ -89,10 +146,12 @@ public class UblDocumentSenderService {
         if (ublDocument.getAccessPoint() != null) {
             throw new BadRequestException("UblDocument "+id+" is already picked up by AP");
         }
+        sendQuotaService.release(ublDocument.getOwnerPeppolId(), ublDocument.getPartnerPeppolId(), ublDocument.getScheduledOn());
         Instant calculatedSchedule = calculateSchedule(ublDocumentDto);
         if (!calculatedSchedule.equals(ublDocument.getScheduledOn())) {
             ublDocument.setScheduledOn(calculatedSchedule);
         }
+        ublDocumentEventService.record(ublDocument, DocumentEventType.STATUS_CHANGED);
         documentRescheduleCounter.increment();
         // ublDocument = ublDocumentRepository.save(ublDocument); //This can be remove due to @Transactional
         return UblDocumentMapper.toDto(ublDocument);
@@ -103,50 +162,35 @@ public class UblDocumentSenderService {
         if (ublDocument.getAccessPoint() != null) {
             throw new BadRequestException("UblDocument "+id+" is already picked up by AP");
         }
+        sendQuotaService.release(ublDocument.getOwnerPeppolId(), ublDocument.getPartnerPeppolId(), ublDocument.getScheduledOn());
         ublDocument.setAccessPoint(AccessPoint.NONE);
         if (noArchive || ublDocument.getDownloadCount() < 0) { //Set to No-Archive
-            ublDocument.setUbl(null);
+            ublPayloadService.detach(ublDocument);
             ublDocument.setDownloadCount(0);
             backupService.clearBackupFile(ublDocument);
         }
+        ublDocumentEventService.record(ublDocument, DocumentEventType.STATUS_CHANGED);
         // ublDocument = ublDocumentRepository.save(ublDocument); //This can be remove due to @Transactional
     }
 
+    /// Only counted as throttled when the balance holds the document back or the quota moves it past the requested day, not when it is scheduled later on request
     private Instant calculateSchedule(UblDocumentDto ublDocumentDto) {
-        if (balanceService.isPositive() && (ublDocumentDto.scheduledOn() == null || ublDocumentDto.scheduledOn().isBefore(Instant.now().plus(1, ChronoUnit.HOURS)))) {
+        boolean positive = balanceService.isPositive();
+        if (positive && (ublDocumentDto.scheduledOn() == null || ublDocumentDto.scheduledOn().isBefore(Instant.now().plus(1, ChronoUnit.HOURS)))) {
             return Instant.now();
         }
         LocalDate day = Optional.ofNullable(ublDocumentDto.scheduledOn())
                 .orElseGet(Instant::now)
-                .atZone(ZONE)
+                .atZone(SendQuotaService.ZONE)
                 .toLocalDate();
-        if (day.isBefore(LocalDate.now(ZONE).plusDays(1))) {
+        if (day.isBefore(LocalDate.now(SendQuotaService.ZONE).plusDays(1))) {
             day = day.plusDays(1);
         }
-        while (overMaximumRatePerDay(ublDocumentDto.ownerPeppolId(), day) ||
-                overMaximumRateBetweenParties(ublDocumentDto.ownerPeppolId(), ublDocumentDto.partnerPeppolId(), day)) {
-            day = day.plusDays(1);
+        LocalDate reserved = sendQuotaService.reserve(ublDocumentDto.ownerPeppolId(), ublDocumentDto.partnerPeppolId(), day);
+        if (!positive || reserved.isAfter(day)) {
+            documentMetrics.postponed("throttled");
         }
-        return day.atStartOfDay(ZONE).toInstant();
-    }
-
-    private boolean overMaximumRatePerDay(String ownerPeppolId, LocalDate day) {
-        return ublDocumentRepository.countByOwnerPeppolIdAndDirectionAndProcessedOnIsNullAndAccessPointIsNullAndScheduledOnBetween(
-                ownerPeppolId,
-                DocumentDirection.OUTGOING,
-                day.atStartOfDay(ZONE).toInstant(),
-                day.plusDays(1).atStartOfDay(ZONE).toInstant()
-        ) >= MAXIMUM_RATE_PER_DAY;
-    }
-
-    private boolean overMaximumRateBetweenParties(String ownerPeppolId, String partnerPeppolId, LocalDate day) {
-        return ublDocumentRepository.countByOwnerPeppolIdAndPartnerPeppolIdAndDirectionAndProcessedOnIsNullAndAccessPointIsNullAndScheduledOnBetween(
-                ownerPeppolId,
-                partnerPeppolId,
-                DocumentDirection.OUTGOING,
-                day.atStartOfDay(ZONE).toInstant(),
-                day.plusDays(1).atStartOfDay(ZONE).toInstant()
-        ) >= MAXIMUM_RATE_BETWEEN_PARTIES;
+        return reserved.atStartOfDay(SendQuotaService.ZONE).toInstant();
     }
 
 }
@@ -1,9 +1,12 @@
 package org.letspeppol.proxy.service;
 
 import lombok.RequiredArgsConstructor;
+import org.letspeppol.proxy.dto.ChangeCursor;
+import org.letspeppol.proxy.dto.DocumentChangesDto;
 import org.letspeppol.proxy.dto.UblDocumentDto;
 import org.letspeppol.proxy.exception.NotFoundException;
 import org.letspeppol.proxy.mapper.UblDocumentMapper;
+import org.letspeppol.proxy.model.UblDocument;
 import org.letspeppol.proxy.repository.UblDocumentRepository;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -16,17 +19,34 @@ import java.util.UUID;
 public class UblDocumentService {
 
     private final UblDocumentRepository ublDocumentRepository;
+    private final UblDocumentEventService ublDocumentEventService;
+    private final BackupService backupService;
 
     //TODO : find all archived
 
+    /// The ubl of a document in the cold tier is read from the backups
     public UblDocumentDto findById(UUID id, String ownerPeppolId) {
-        return UblDocumentMapper.toDto(ublDocumentRepository.findByIdAndOwnerPeppolId(id, ownerPeppolId).orElseThrow(() -> new NotFoundException("UblDocument "+id+" does not exist")));
+        UblDocument ublDocument = ublDocumentRepository.findByIdAndOwnerPeppolId(id, ownerPeppolId).orElseThrow(() -> new NotFoundException("UblDocument "+id+" does not exist"));
+        return toDto(ublDocument);
     }
 
+    /// Same as [#findById], archived documents included
     public List<UblDocumentDto> findByIds(List<UUID> ids, String ownerPeppolId) {
         return ublDocumentRepository.findByIdInAndOwnerPeppolId(ids, ownerPeppolId).stream()
-                .map(UblDocumentMapper::toDto)
+                .map(this::toDto)
                 .toList();
     }
 
+    private UblDocumentDto toDto(UblDocument ublDocument) {
+        if (ublDocument.getArchivedOn() != null && ublDocument.getPayload() == null) {
+            return UblDocumentMapper.toDto(ublDocument, backupService.readArchived(ublDocument));
+        }
+        return UblDocumentMapper.toDto(ublDocument);
+    }
+
+    @Transactional(readOnly = true)
+    public DocumentChangesDto findChanges(String ownerPeppolId, ChangeCursor since, int limit) {
+        return ublDocumentEventService.findChanges(ownerPeppolId, since, limit);
+    }
+
 }
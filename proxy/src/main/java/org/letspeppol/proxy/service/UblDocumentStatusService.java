@@ -0,0 +1,51 @@
+package org.letspeppol.proxy.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.letspeppol.proxy.dto.StatusReport;
+import org.letspeppol.proxy.model.AccessPoint;
+import org.letspeppol.proxy.model.DocumentDirection;
+import org.letspeppol.proxy.model.DocumentEventType;
+import org.letspeppol.proxy.model.UblDocument;
+import org.letspeppol.proxy.repository.UblDocumentRepository;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import java.time.Instant;
+
+@Slf4j
+@RequiredArgsConstructor
+@Transactional
+@Service
+public class UblDocumentStatusService {
+
+    private final UblDocumentRepository ublDocumentRepository;
+    private final BackupService backupService;
+    private final UblPayloadService ublPayloadService;
+    private final UblDocumentEventService ublDocumentEventService;
+
+    /// Status pushed by the Access Point (webhook), is idempotent as an already processed document is left untouched
+    public void updateStatus(AccessPoint accessPoint, String accessPointId, StatusReport statusReport) {
+        UblDocument ublDocument = ublDocumentRepository.findByDirectionAndAccessPointAndAccessPointId(DocumentDirection.OUTGOING, accessPoint, accessPointId).orElse(null);
+        if (ublDocument == null) {
+            log.info("Status update of unknown document {} from Peppol Access Point {}, synchronization will pick it up", accessPointId, accessPoint);
+            return;
+        }
+        if (ublDocument.getProcessedOn() != null || statusReport == null || statusReport.pending()) {
+            return;
+        }
+        delivered(ublDocument, statusReport);
+        log.info("Processed status update of document {} from Peppol Access Point {}", ublDocument.getId(), accessPoint);
+    }
+
+    public void delivered(UblDocument ublDocument, StatusReport statusReport) {
+        ublDocument.setProcessedOn(Instant.now());
+        ublDocument.setProcessedStatus( statusReport.success() ? null : statusReport.statusMessage() );
+        if (ublDocument.getDownloadCount() < 0) { //Set to No-Archive
+            ublPayloadService.detach(ublDocument);
+            ublDocument.setDownloadCount(0);
+            backupService.clearBackupFile(ublDocument);
+        }
+        ublDocumentEventService.record(ublDocument, DocumentEventType.PROCESSED);
+        // ublDocument = ublDocumentRepository.save(ublDocument); //This can be remove due to @Transactional
+    }
+}
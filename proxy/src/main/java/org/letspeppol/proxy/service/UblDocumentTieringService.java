@@ -0,0 +1,94 @@
+package org.letspeppol.proxy.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.letspeppol.proxy.dto.ColdCandidate;
+import org.letspeppol.proxy.repository.UblDocumentRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/// Keeps the monthly partitions of ubl_document ahead of time, moves the legacy partition into monthly partitions and moves the payload of old documents to the cold tier.
+/// The cold tier is the BackupStore, a document is only archived once its backup is acknowledged (`backed_up_on`) and its content is
+/// read back from the current store with the hash of the document, the row itself stays in its partition so the hot queries keep working on the same table.
+@Slf4j
+@RequiredArgsConstructor
+@Transactional
+@Service
+public class UblDocumentTieringService {
+
+    private final UblDocumentRepository ublDocumentRepository;
+    private final UblPayloadService ublPayloadService;
+    private final BackupService backupService;
+
+    @Value("${storage.partition.months-ahead:3}")
+    private int monthsAhead;
+    @Value("${storage.cold.age:#{null}}")
+    private Duration coldAge;
+    @Value("${storage.cold.batch-size:500}")
+    private int batchSize;
+    @Value("${storage.partition.legacy-batch-size:1000}")
+    private int legacyBatchSize;
+    private volatile boolean legacyMoved = false;
+
+    public int ensurePartitions() {
+        int created = ublDocumentRepository.ensurePartitions(monthsAhead);
+        if (created > 0) {
+            log.info("Created {} ubl document partitions", created);
+        }
+        return created;
+    }
+
+    /// Moves the rows of the legacy partition into monthly partitions in batches, resumes where it stopped after a restart
+    public int moveLegacyBatch() {
+        if (legacyMoved) {
+            return 0;
+        }
+        int moved = ublDocumentRepository.moveLegacyBatch(legacyBatchSize);
+        if (moved > 0) {
+            log.debug("Moved {} legacy ubl documents to monthly partitions", moved);
+            return moved;
+        }
+        if (ublDocumentRepository.swapLegacy(monthsAhead)) {
+            legacyMoved = true; //Only monthly partitions remain, no need to look again until restart
+            log.info("Legacy partition of ubl documents replaced by monthly partitions");
+        }
+        return 0;
+    }
+
+    /// Releases the payloads of fully processed and downloaded documents older than `storage.cold.age`, disabled when empty
+    public int archiveBatch() {
+        if (coldAge == null) {
+            return 0;
+        }
+        List<UUID> candidates = ublDocumentRepository.findAllColdCandidateIds(Instant.now().minus(coldAge), batchSize);
+        if (candidates.isEmpty()) {
+            return 0;
+        }
+        Map<Boolean, List<UUID>> readable = ublDocumentRepository.findAllColdCandidatesByIdIn(candidates).stream()
+                .collect(Collectors.partitioningBy(
+                        candidate -> backupService.hasBackup(candidate.backupReference(), candidate.hash()),
+                        Collectors.mapping(ColdCandidate::id, Collectors.toList())
+                ));
+        List<UUID> missing = readable.get(false);
+        if (!missing.isEmpty()) { //E.g. acknowledged by another store or an older content, written again by the recovery as the payload is still attached
+            log.warn("Backup of {} ubl documents not found or not matching their hash, kept in the hot tier and backed up again", missing.size());
+            ublDocumentRepository.markBackupPending(missing);
+        }
+        List<UUID> ids = readable.get(true);
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        ublPayloadService.detachAll(ids);
+        int archived = ublDocumentRepository.archiveAll(ids);
+        log.info("Moved {} ubl documents to the cold tier", archived);
+        return archived;
+    }
+}
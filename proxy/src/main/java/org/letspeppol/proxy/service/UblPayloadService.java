@@ -0,0 +1,87 @@
+package org.letspeppol.proxy.service;
+
+import jakarta.persistence.EntityManager;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.letspeppol.proxy.model.UblDocument;
+import org.letspeppol.proxy.model.UblPayload;
+import org.letspeppol.proxy.repository.UblDocumentRepository;
+import org.letspeppol.proxy.repository.UblPayloadRepository;
+import org.letspeppol.proxy.util.UblCodec;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Collection;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/// Content addressed storage of ubl, documents with the same content (e.g. loopback or re-sent documents) share one payload.
+/// Every reference is counted, so releasing a document (no-archive) only removes the content once no document needs it anymore.
+@Slf4j
+@RequiredArgsConstructor
+@Transactional
+@Service
+public class UblPayloadService {
+
+    private final UblPayloadRepository ublPayloadRepository;
+    private final UblDocumentRepository ublDocumentRepository;
+    private final EntityManager entityManager;
+
+    /// Stores the ubl when new, references the existing payload otherwise, any previous payload of the document is released
+    public void attach(UblDocument ublDocument, String ubl, String hash) {
+        attach(ublDocument, hash, () -> UblCodec.encode(ubl)); //Only compressed when not yet stored
+    }
+
+    /// Variant with the ubl already encoded by [UblCodec], e.g. compressed from a spooled upload without reading it as String
+    public void attach(UblDocument ublDocument, byte[] data, String hash) {
+        attach(ublDocument, hash, () -> data);
+    }
+
+    private void attach(UblDocument ublDocument, String hash, Supplier<byte[]> data) {
+        if (ublDocument.getPayload() != null && ublDocument.getPayload().getHash().equals(hash)) {
+            return;
+        }
+        if (ublPayloadRepository.increment(hash) == 0) {
+            ublPayloadRepository.insertOrIncrement(hash, data.get());
+        }
+        detach(ublDocument);
+        ublDocument.setPayload(entityManager.getReference(UblPayload.class, hash));
+    }
+
+    /// References the payload of the source document without reading or writing its content
+    public void share(UblDocument source, UblDocument target) {
+        if (source.getPayload() == null) {
+            attach(target, source.getUbl(), source.getHash());
+            return;
+        }
+        ublPayloadRepository.increment(source.getPayload().getHash());
+        detach(target);
+        target.setPayload(source.getPayload());
+    }
+
+    /// Releases the content of the document, e.g. for no-archive once it is no longer needed
+    public void detach(UblDocument ublDocument) {
+        if (ublDocument.getPayload() != null) {
+            ublPayloadRepository.decrement(ublDocument.getPayload().getHash());
+            ublDocument.setPayload(null);
+        }
+        ublDocument.setUbl(null); //Inline storage of rows from before the payloads
+    }
+
+    /// Set-based [#detach(UblDocument)] of the documents, without loading them
+    public void detachAll(Collection<UUID> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        ublPayloadRepository.decrementAllReferencedBy(ids);
+        ublDocumentRepository.detachAll(ids);
+    }
+
+    public int collectGarbage() {
+        int deleted = ublPayloadRepository.deleteAllUnreferenced();
+        if (deleted > 0) {
+            log.info("Removed {} unreferenced ubl payloads", deleted);
+        }
+        return deleted;
+    }
+}
@@ -0,0 +1,89 @@
+package org.letspeppol.proxy.service;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.letspeppol.proxy.dto.SpooledUbl;
+import org.letspeppol.proxy.exception.BadRequestException;
+import org.letspeppol.proxy.util.HashUtil;
+import org.letspeppol.proxy.util.UblCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.stream.Stream;
+
+/// Spools an uploaded ubl to `<backup dir>/spool` while hashing it, so a large ubl (e.g. with embedded PDFs) is read from the request once
+/// and then parsed, validated and encoded for the payload and the backup from the file, without holding it in memory as String.
+@Slf4j
+@Service
+public class UblSpoolService {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Path directory;
+    private final long maxSize;
+
+    public UblSpoolService(@Value("${backup.data.dir:#{null}}") String dataDirectory,
+                           @Value("${spring.application.name}") String applicationName,
+                           @Value("${ubl.max-size:32MB}") DataSize maxSize) {
+        this.directory = BackupStore.directory(dataDirectory, applicationName).resolve("spool");
+        this.maxSize = maxSize.toBytes();
+    }
+
+    /// Removes the spool files left behind by a stop during a request
+    @PostConstruct
+    public void clean() throws IOException {
+        Files.createDirectories(directory);
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(this::delete);
+        }
+    }
+
+    /// The SHA-256 is computed in the same pass as the copy, a body larger than `ubl.max-size` is rejected while read
+    public SpooledUbl spool(InputStream inputStream) throws IOException {
+        Path file = Files.createTempFile(directory, "ubl-", ".spool");
+        try {
+            MessageDigest digest = HashUtil.sha256Digest();
+            long size = 0;
+            try (OutputStream outputStream = Files.newOutputStream(file)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int length;
+                while ((length = inputStream.read(buffer)) != -1) {
+                    size += length;
+                    if (size > maxSize) {
+                        throw new BadRequestException("UBL larger than " + maxSize + " bytes");
+                    }
+                    digest.update(buffer, 0, length);
+                    outputStream.write(buffer, 0, length);
+                }
+            }
+            return new SpooledUbl(file, HashUtil.toHex(digest.digest()), size);
+        } catch (IOException | RuntimeException e) {
+            delete(file);
+            throw e;
+        }
+    }
+
+    /// The content in the [UblCodec] format, compressed while read from the file
+    public byte[] encode(SpooledUbl spooledUbl) throws IOException {
+        return UblCodec.encode(spooledUbl.path());
+    }
+
+    public void discard(SpooledUbl spooledUbl) {
+        delete(spooledUbl.path());
+    }
+
+    private void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Could not remove spool file {}", file, e);
+        }
+    }
+}
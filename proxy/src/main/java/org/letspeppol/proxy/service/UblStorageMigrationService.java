@@ -0,0 +1,59 @@
+package org.letspeppol.proxy.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.letspeppol.proxy.dto.LegacyUbl;
+import org.letspeppol.proxy.repository.UblDocumentRepository;
+import org.letspeppol.proxy.repository.UblPayloadRepository;
+import org.letspeppol.proxy.util.HashUtil;
+import org.letspeppol.proxy.util.UblCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
+
+/// Online migration of ubl stored inline (the `ubl` text column) to shared payloads compressed with [UblCodec],
+/// in small batches so it runs alongside normal traffic. Rows written meanwhile already use payloads, an update only
+/// applies when the row still has no payload.
+@Slf4j
+@RequiredArgsConstructor
+@Transactional
+@Service
+public class UblStorageMigrationService {
+
+    private final UblDocumentRepository ublDocumentRepository;
+    private final UblPayloadRepository ublPayloadRepository;
+
+    @Value("${storage.migration.batch-size:100}")
+    private int batchSize;
+    private volatile boolean completed = false;
+
+    public int migrateBatch() {
+        if (completed) {
+            return 0;
+        }
+        List<LegacyUbl> legacyUbls = ublDocumentRepository.findAllLegacyUbl(PageRequest.of(0, batchSize));
+        if (legacyUbls.isEmpty()) {
+            completed = true; //New rows never use inline storage, no need to look again until restart
+            log.info("Payload storage migration of ubl documents completed");
+            return 0;
+        }
+        int migrated = 0;
+        for (LegacyUbl legacyUbl : legacyUbls) {
+            String ubl = legacyUbl.ubl();
+            String hash = HashUtil.sha256(ubl); //Content address, not trusting the stored hash of rows from older versions
+            if (ublPayloadRepository.increment(hash) == 0) {
+                ublPayloadRepository.insertOrIncrement(hash, UblCodec.encode(ubl));
+            }
+            if (ublDocumentRepository.migrateToPayload(legacyUbl.id(), hash) == 0) {
+                ublPayloadRepository.decrement(hash); //Changed meanwhile
+                continue;
+            }
+            migrated++;
+        }
+        log.info("Migrated {} ubl documents to payload storage", migrated);
+        return migrated;
+    }
+}
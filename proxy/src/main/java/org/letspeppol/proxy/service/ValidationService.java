@@ -1,11 +1,14 @@
 package org.letspeppol.proxy.service;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.helger.ddd.DocumentDetails;
 import com.helger.ddd.DocumentDetailsDeterminator;
 import com.helger.ddd.model.DDDSyntaxList;
 import com.helger.ddd.model.DDDValueProviderList;
 import com.helger.diagnostics.error.IError;
 import com.helger.diver.api.coord.DVRCoordinate;
+import com.helger.io.resource.IReadableResource;
 import com.helger.io.resource.inmemory.ReadableResourceString;
 import com.helger.phive.api.execute.ValidationExecutionManager;
 import com.helger.phive.api.executorset.IValidationExecutorSet;
@@ -18,11 +21,19 @@ import com.helger.phive.peppol.PeppolValidation2025_05;
 import com.helger.phive.ubl.UBLValidation;
 import com.helger.phive.xml.source.IValidationSourceXML;
 import com.helger.phive.xml.source.ValidationSourceXML;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.letspeppol.proxy.dto.UblContext;
 import org.letspeppol.proxy.dto.ValidationErrorDto;
 import org.letspeppol.proxy.dto.ValidationResultDto;
+import org.letspeppol.proxy.util.HashUtil;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
@@ -30,17 +41,60 @@ import java.util.Locale;
 @Service
 public class ValidationService {
     private static final ValidationExecutorSetRegistry<IValidationSourceXML> REGISTRY;
+    private static final DocumentDetailsDeterminator DOCUMENT_DETAILS_DETERMINATOR; //Stateless, shared by all validations
     static {
         REGISTRY = new ValidationExecutorSetRegistry<>();
         UBLValidation.initUBLAllVersions(REGISTRY);
         EN16931Validation.initEN16931(REGISTRY);
         PeppolValidation.initStandard(REGISTRY);
+        DOCUMENT_DETAILS_DETERMINATOR = new DocumentDetailsDeterminator(
+                DDDSyntaxList.getDefaultSyntaxList(),
+                DDDValueProviderList.getDefaultValueProviderList());
+    }
+
+    /// Results by content hash and validation set, as the same UBL is often validated again (i.e. re-submission after a failure)
+    private final Cache<ValidationCacheKey, ValidationResultDto> cache;
+    private final MeterRegistry meterRegistry;
+    private final Counter failureCounter;
+
+    public ValidationService(MeterRegistry meterRegistry,
+                             @Value("${validation.cache.maximum-size:1000}") long maximumSize,
+                             @Value("${validation.cache.ttl:1h}") Duration ttl) {
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "validation", "service", "proxy");
+        this.meterRegistry = meterRegistry;
+        this.failureCounter = Counter.builder("document_validation_failures_total")
+                .description("Total # invalid UBL documents, cached results included")
+                .tag("service", "proxy")
+                .register(meterRegistry);
     }
 
     public ValidationResultDto validateUblXml(String ublXml) {
-        ReadableResourceString rr = new ReadableResourceString(ublXml, StandardCharsets.UTF_8);
-        IValidationSourceXML source = ValidationSourceXML.create(rr);
+        return validateUblXml(new ReadableResourceString(ublXml, StandardCharsets.UTF_8), HashUtil.sha256(ublXml));
+    }
+
+    public ValidationResultDto validateUblXml(IReadableResource resource, String hash) {
+        return validateUblXml(ValidationSourceXML.create(resource), hash);
+    }
+
+    /// Validates the already parsed DOM of the context, without parsing the UBL again
+    public ValidationResultDto validateUblXml(UblContext ublContext) {
+        return validateUblXml(ValidationSourceXML.create(null, ublContext.document()), ublContext.hash());
+    }
 
+    private ValidationResultDto validateUblXml(IValidationSourceXML source, String hash) {
+        ValidationResultDto result = detectAndValidate(source, hash);
+        if (!result.isValid()) {
+            failureCounter.increment();
+        }
+        return result;
+    }
+
+    private ValidationResultDto detectAndValidate(IValidationSourceXML source, String hash) {
         // Robustly get the document element for DDD detection
         org.w3c.dom.Node node = source.getNode();
         org.w3c.dom.Element docElem = null;
@@ -53,10 +107,7 @@ public class ValidationService {
             return errorResponse("Could not find document element in XML");
         }
 
-        DocumentDetailsDeterminator ddd = new DocumentDetailsDeterminator(
-                DDDSyntaxList.getDefaultSyntaxList(),
-                DDDValueProviderList.getDefaultValueProviderList());
-        DocumentDetails details = ddd.findDocumentDetails(docElem);
+        DocumentDetails details = DOCUMENT_DETAILS_DETERMINATOR.findDocumentDetails(docElem);
 
         DVRCoordinate vesId = null;
         String detectedVESID = null;
@@ -72,12 +123,25 @@ public class ValidationService {
         if (ves == null) {
             return errorResponse("Validation set not found for VES ID: " + vesId);
         }
+        final DVRCoordinate validatedVesId = vesId;
+        final String validatedDetectedVESID = detectedVESID;
+        return cache.get(new ValidationCacheKey(hash, vesId.toString()), key -> validate(ves, source, validatedVesId, validatedDetectedVESID));
+    }
 
+    /// Timed per validation set, only on a cache miss
+    private ValidationResultDto validate(IValidationExecutorSet<IValidationSourceXML> ves, IValidationSourceXML source, DVRCoordinate vesId, String detectedVESID) {
+        Timer.Sample sample = Timer.start(meterRegistry);
         final ValidationResultList results = ValidationExecutionManager.executeValidation(
                 IValidityDeterminator.createDefault(),
                 ves,
                 source
         );
+        sample.stop(Timer.builder("document_validation")
+                .description("Duration of validating one UBL document")
+                .tag("service", "proxy")
+                .tag("ves_id", vesId.toString())
+                .tag("valid", String.valueOf(results.containsNoError()))
+                .register(meterRegistry));
 
         var errorList = results.getAllErrors();
         var errors = new ArrayList<ValidationErrorDto>();
@@ -94,6 +158,9 @@ public class ValidationService {
         );
     }
 
+    private record ValidationCacheKey(String hash, String vesId) {
+    }
+
     private DVRCoordinate toDVRCoordinate(String raw) {
         if (raw == null || raw.isBlank()) return null;
         // Expected pattern group:artifact:version
@@ -0,0 +1,52 @@
+package org.letspeppol.proxy.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.function.ToDoubleFunction;
+
+/// Deficit round robin over flows of unit cost items, a flow with weight 2 is served twice as often as a flow with weight 1.
+/// Deficits and the rotation are kept between selections, so fairness holds across batches and not only within one.
+/// A flow without items is forgotten, it starts again without deficit like in the original algorithm.
+public class DeficitRoundRobin<K> {
+
+    private final Map<K, Double> deficits = new HashMap<>();
+    private final LinkedHashSet<K> ring = new LinkedHashSet<>(); //Served flows move to the end
+
+    /// Takes at most `limit` items from the queues, which are consumed
+    public synchronized <T> List<T> select(Map<K, ? extends Queue<T>> queues, ToDoubleFunction<K> weights, int limit) {
+        ring.retainAll(queues.keySet());
+        deficits.keySet().retainAll(queues.keySet());
+        ring.addAll(queues.keySet());
+        List<T> selected = new ArrayList<>(limit);
+        while (selected.size() < limit && !ring.isEmpty()) {
+            List<K> served = new ArrayList<>();
+            Iterator<K> iterator = ring.iterator();
+            while (iterator.hasNext() && selected.size() < limit) {
+                K flow = iterator.next();
+                Queue<T> queue = queues.get(flow);
+                double deficit = deficits.getOrDefault(flow, 0.0) + Math.max(weights.applyAsDouble(flow), 0.0);
+                while (deficit >= 1 && !queue.isEmpty() && selected.size() < limit) {
+                    selected.add(queue.poll());
+                    deficit -= 1;
+                }
+                iterator.remove();
+                if (queue.isEmpty()) {
+                    deficits.remove(flow);
+                } else {
+                    deficits.put(flow, deficit);
+                    served.add(flow);
+                }
+            }
+            ring.addAll(served);
+            if (served.stream().allMatch(flow -> weights.applyAsDouble(flow) <= 0)) {
+                break; //Nothing left that can ever be served
+            }
+        }
+        return selected;
+    }
+}
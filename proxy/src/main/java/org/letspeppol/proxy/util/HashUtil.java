@@ -1,23 +1,118 @@
 package org.letspeppol.proxy.util;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
 
 public class HashUtil {
 
+    private static final int HMAC_SHA256_LENGTH = 32;
+    private static final String SIGNATURE_PREFIX = "sha256=";
+    private static final int BUFFER_SIZE = 8192;
+
+    /// Hash of the UTF-8 bytes, encoded and hashed a chunk at a time so a large ubl is not copied into one byte array
     public static String sha256(String text) {
+        MessageDigest digest = sha256Digest();
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE); //Same as getBytes for lone surrogates
+        CharBuffer input = CharBuffer.wrap(text);
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        CoderResult result;
+        do {
+            result = encoder.encode(input, buffer, true);
+            update(digest, buffer);
+        } while (result.isOverflow());
+        while (encoder.flush(buffer).isOverflow()) {
+            update(digest, buffer);
+        }
+        update(digest, buffer);
+        return toHex(digest.digest());
+    }
+
+    /// Hash of the bytes of the stream, read a chunk at a time
+    public static String sha256(InputStream inputStream) throws IOException {
+        MessageDigest digest = sha256Digest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int length;
+        while ((length = inputStream.read(buffer)) != -1) {
+            digest.update(buffer, 0, length);
+        }
+        return toHex(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, ByteBuffer buffer) {
+        buffer.flip();
+        digest.update(buffer);
+        buffer.clear();
+    }
+
+    /// For hashing incrementally while streaming, same result as [#sha256(String)] for the UTF-8 bytes
+    public static MessageDigest sha256Digest() {
         try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hashBytes = digest.digest(text.getBytes(StandardCharsets.UTF_8));
-            return toHex(hashBytes);
+            return MessageDigest.getInstance("SHA-256");
         } catch (NoSuchAlgorithmException e) {
             // This should never happen with SHA-256 in a normal JVM
             throw new RuntimeException("SHA-256 not supported", e);
         }
     }
 
-    private static String toHex(byte[] bytes) {
+    public static String hmacSha256(String secret, byte[] data) {
+        return toHex(hmacSha256Bytes(secret, data));
+    }
+
+    public static byte[] hmacSha256Bytes(String secret, byte[] data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            return mac.doFinal(data);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("HmacSHA256 not supported", e);
+        }
+    }
+
+    /// Constant time check of a HMAC-SHA256 signature of the data, the signature is hex or base64 encoded with an optional `sha256=` prefix.
+    /// The decoded bytes are compared, so the encoding of the sender does not matter, an empty secret never matches.
+    public static boolean verifyHmacSha256(String secret, byte[] data, String signature) {
+        if (secret == null || secret.isEmpty() || signature == null) {
+            return false;
+        }
+        String value = signature.trim();
+        if (value.regionMatches(true, 0, SIGNATURE_PREFIX, 0, SIGNATURE_PREFIX.length())) {
+            value = value.substring(SIGNATURE_PREFIX.length());
+        }
+        byte[] actual;
+        try {
+            actual = value.length() == HMAC_SHA256_LENGTH * 2 ? fromHex(value) : Base64.getDecoder().decode(value);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return MessageDigest.isEqual(hmacSha256Bytes(secret, data), actual);
+    }
+
+    public static byte[] fromHex(String hex) {
+        if (hex == null || hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Invalid hex value");
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex, i * 2, i * 2 + 2, 16);
+        }
+        return bytes;
+    }
+
+    public static String toHex(byte[] bytes) {
         StringBuilder sb = new StringBuilder(bytes.length * 2);
         for (byte b : bytes) {
             sb.append(String.format("%02x", b));
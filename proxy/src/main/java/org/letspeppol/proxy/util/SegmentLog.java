@@ -0,0 +1,401 @@
+package org.letspeppol.proxy.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/// Append-only log of records keyed by [UUID], stored in numbered segment files (`00000000000000000001.log`) of at most `maxSegmentBytes`.
+/// A record is `[magic][body length][body][crc32c of body]` with body `[type][key][value]`, a torn or corrupt tail of the active segment
+/// is truncated when opened. The last record of a key wins, a [#TOMBSTONE] removes its value. Sealed segments get an offset index
+/// (`.idx`, 21 bytes per record) so opening does not read all values, only the active segment is scanned.
+/// The index of the live records is kept in memory as one packed long per key. Not thread-safe for writers, [#append(List)] and
+/// [#compact(double)] are expected to be called from one thread, reads may run concurrently.
+public final class SegmentLog implements Closeable {
+
+    public static final byte PUT = 0;
+    public static final byte TOMBSTONE = 1;
+
+    public record Entry(UUID key, byte type, byte[] value) {
+        public static Entry put(UUID key, byte[] value) {
+            return new Entry(key, PUT, value);
+        }
+
+        public static Entry tombstone(UUID key, byte[] value) {
+            return new Entry(key, TOMBSTONE, value);
+        }
+    }
+
+    private static final int MAGIC = 0x55424C53; //"UBLS"
+    private static final int HEADER_SIZE = 8; //magic and body length
+    private static final int KEY_SIZE = 17; //type and key
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final long TOMBSTONE_FLAG = 1L << 63;
+
+    private final Path directory;
+    private final long maxSegmentBytes;
+    private final Map<UUID, Long> index = new ConcurrentHashMap<>(); //Location of the last record per key, see #location
+    private final TreeMap<Long, int[]> counts = new TreeMap<>(); //Per segment the # live and # total records
+    private final List<IndexEntry> activeEntries = new ArrayList<>(); //Index of the active segment, written when it is sealed
+    private volatile long activeSegment;
+    private volatile long activeSize;
+    private FileChannel activeChannel;
+
+    private SegmentLog(Path directory, long maxSegmentBytes) {
+        this.directory = directory;
+        this.maxSegmentBytes = Math.min(maxSegmentBytes, Integer.MAX_VALUE);
+    }
+
+    public static SegmentLog open(Path directory, long maxSegmentBytes) throws IOException {
+        Files.createDirectories(directory);
+        SegmentLog segmentLog = new SegmentLog(directory, maxSegmentBytes);
+        segmentLog.load();
+        return segmentLog;
+    }
+
+    private void load() throws IOException {
+        List<Long> segments = listSegments();
+        for (int i = 0; i < segments.size() - 1; i++) {
+            long segment = segments.get(i);
+            if (!Files.exists(indexPath(segment))) {
+                writeIndex(segment, scanIndex(segment));
+            }
+            loadIndex(segment);
+        }
+        if (segments.isEmpty()) {
+            openActive(1);
+            return;
+        }
+        long last = segments.get(segments.size() - 1);
+        if (Files.exists(indexPath(last))) { //Sealed just before a stop
+            loadIndex(last);
+            openActive(last + 1);
+            return;
+        }
+        List<IndexEntry> entries = scanIndex(last);
+        long validSize = entries.isEmpty() ? 0 : entries.get(entries.size() - 1).end();
+        activeSegment = last;
+        activeChannel = FileChannel.open(segmentPath(last), StandardOpenOption.WRITE, StandardOpenOption.READ);
+        if (activeChannel.size() > validSize) {
+            activeChannel.truncate(validSize); //Torn write of a batch that was never acknowledged
+            activeChannel.force(true);
+        }
+        activeSize = validSize;
+        activeChannel.position(activeSize);
+        counts.put(last, new int[2]);
+        for (IndexEntry entry : entries) {
+            apply(entry.key(), location(last, entry.offset(), entry.type()));
+            activeEntries.add(entry);
+        }
+    }
+
+    /// Appends the entries and syncs them to disk once for the whole batch
+    public void append(List<Entry> entries) throws IOException {
+        for (Entry entry : entries) {
+            byte[] record = encode(entry);
+            if (activeSize > 0 && activeSize + record.length > maxSegmentBytes) {
+                seal();
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            while (buffer.hasRemaining()) {
+                activeChannel.write(buffer);
+            }
+            activeEntries.add(new IndexEntry(entry.key(), (int) activeSize, entry.type(), activeSize + record.length));
+            apply(entry.key(), location(activeSegment, activeSize, entry.type()));
+            activeSize += record.length;
+        }
+        activeChannel.force(false);
+    }
+
+    /// Whether the key has a record, a live value or a tombstone
+    public boolean contains(UUID key) {
+        return index.containsKey(key);
+    }
+
+    public Optional<Entry> get(UUID key) throws IOException {
+        Long location = index.get(key);
+        if (location == null || isTombstone(location)) {
+            return Optional.empty();
+        }
+        try (FileChannel channel = FileChannel.open(segmentPath(segment(location)), StandardOpenOption.READ);
+             DataInputStream inputStream = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(offset(location)))))) {
+            return Optional.ofNullable(readRecord(inputStream)).map(Record::entry);
+        }
+    }
+
+    /// Segment numbers in append order, a snapshot as compaction removes and adds segments
+    public synchronized List<Long> segments() {
+        return new ArrayList<>(counts.keySet());
+    }
+
+    /// Reads the live [#PUT] records of the segment, i.e. those that are not superseded by a later record of the same key
+    public void readLive(long segment, Consumer<Entry> consumer) throws IOException {
+        Path path = segmentPath(segment);
+        if (!Files.exists(path)) {
+            return; //Compacted in the meantime, its live records are appended to a later segment
+        }
+        long limit = segment == activeSegment ? activeSize : Long.MAX_VALUE;
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            long offset = 0;
+            Record record;
+            while (offset < limit && (record = readRecord(inputStream)) != null) {
+                Long location = index.get(record.entry().key());
+                if (record.entry().type() == PUT && location != null && location == location(segment, offset, PUT)) {
+                    consumer.accept(record.entry());
+                }
+                offset += record.size();
+            }
+        }
+    }
+
+    /// Rewrites the sealed segments of which the share of live records is below the ratio, their live records are appended again.
+    /// A tombstone is only dropped from the oldest segment, as any older record of its key could otherwise reappear when the index is rebuilt.
+    public int compact(double ratio) throws IOException {
+        int compacted = 0;
+        for (long segment : segments()) {
+            if (segment == activeSegment) {
+                break;
+            }
+            int[] count = counts.get(segment);
+            if (count == null || count[1] == 0 || (double) count[0] / count[1] >= ratio) {
+                continue;
+            }
+            boolean oldest = segment == counts.firstKey();
+            List<Entry> live = new ArrayList<>();
+            try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(Files.newInputStream(segmentPath(segment)), 1 << 16))) {
+                long offset = 0;
+                Record record;
+                while ((record = readRecord(inputStream)) != null) {
+                    Entry entry = record.entry();
+                    Long location = index.get(entry.key());
+                    if (location != null && location == location(segment, offset, entry.type())) {
+                        if (entry.type() == TOMBSTONE && oldest) {
+                            index.remove(entry.key());
+                        } else {
+                            live.add(entry);
+                        }
+                    }
+                    offset += record.size();
+                }
+            }
+            append(live); //Synced before the segment is removed
+            synchronized (this) {
+                counts.remove(segment);
+            }
+            Files.deleteIfExists(indexPath(segment));
+            Files.deleteIfExists(segmentPath(segment));
+            compacted++;
+        }
+        return compacted;
+    }
+
+    /// # keys with a live value
+    public long size() {
+        return index.values().stream().filter(location -> !isTombstone(location)).count();
+    }
+
+    @Override
+    public void close() throws IOException {
+        activeChannel.close();
+    }
+
+    private void seal() throws IOException {
+        activeChannel.force(true);
+        activeChannel.close();
+        writeIndex(activeSegment, activeEntries);
+        openActive(activeSegment + 1);
+    }
+
+    private void openActive(long segment) throws IOException {
+        activeSegment = segment;
+        activeChannel = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        activeSize = 0;
+        activeEntries.clear();
+        synchronized (this) {
+            counts.put(segment, new int[2]);
+        }
+        syncDirectory();
+    }
+
+    private void apply(UUID key, long location) {
+        Long previous = index.put(key, location);
+        if (previous != null) {
+            int[] previousCount = counts.get(segment(previous));
+            if (previousCount != null) {
+                previousCount[0]--;
+            }
+        }
+        int[] count = counts.get(segment(location));
+        count[0]++;
+        count[1]++;
+    }
+
+    private void loadIndex(long segment) throws IOException {
+        synchronized (this) {
+            counts.put(segment, new int[2]);
+        }
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath(segment))))) {
+            while (true) {
+                long msb;
+                try {
+                    msb = inputStream.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                UUID key = new UUID(msb, inputStream.readLong());
+                int offset = inputStream.readInt();
+                byte type = inputStream.readByte();
+                apply(key, location(segment, offset, type));
+            }
+        }
+    }
+
+    private List<IndexEntry> scanIndex(long segment) throws IOException {
+        List<IndexEntry> entries = new ArrayList<>();
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(Files.newInputStream(segmentPath(segment)), 1 << 16))) {
+            long offset = 0;
+            Record record;
+            while ((record = readRecord(inputStream)) != null) {
+                entries.add(new IndexEntry(record.entry().key(), (int) offset, record.entry().type(), offset + record.size()));
+                offset += record.size();
+            }
+        }
+        return entries;
+    }
+
+    private void writeIndex(long segment, List<IndexEntry> entries) throws IOException {
+        Path temporary = directory.resolve(name(segment) + INDEX_SUFFIX + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream outputStream = Channels.newOutputStream(channel);
+            DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(outputStream, 1 << 16));
+            for (IndexEntry entry : entries) {
+                dataOutputStream.writeLong(entry.key().getMostSignificantBits());
+                dataOutputStream.writeLong(entry.key().getLeastSignificantBits());
+                dataOutputStream.writeInt(entry.offset());
+                dataOutputStream.writeByte(entry.type());
+            }
+            dataOutputStream.flush();
+            channel.force(true);
+        }
+        Files.move(temporary, indexPath(segment), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory();
+    }
+
+    private static byte[] encode(Entry entry) {
+        byte[] value = entry.value() == null ? new byte[0] : entry.value();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + KEY_SIZE + value.length + 4);
+        buffer.putInt(MAGIC);
+        buffer.putInt(KEY_SIZE + value.length);
+        buffer.put(entry.type());
+        buffer.putLong(entry.key().getMostSignificantBits());
+        buffer.putLong(entry.key().getLeastSignificantBits());
+        buffer.put(value);
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), HEADER_SIZE, KEY_SIZE + value.length);
+        buffer.putInt((int) crc.getValue());
+        return buffer.array();
+    }
+
+    /// Null at the end of the segment or at the first torn or corrupt record
+    private static Record readRecord(DataInputStream inputStream) throws IOException {
+        try {
+            if (inputStream.readInt() != MAGIC) {
+                return null;
+            }
+            int length = inputStream.readInt();
+            if (length < KEY_SIZE) {
+                return null;
+            }
+            byte[] body = inputStream.readNBytes(length);
+            if (body.length < length) {
+                return null;
+            }
+            int expected = inputStream.readInt();
+            CRC32C crc = new CRC32C();
+            crc.update(body);
+            if ((int) crc.getValue() != expected) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(body);
+            byte type = buffer.get();
+            UUID key = new UUID(buffer.getLong(), buffer.getLong());
+            byte[] value = new byte[length - KEY_SIZE];
+            buffer.get(value);
+            return new Record(new Entry(key, type, value), HEADER_SIZE + length + 4);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private List<Long> listSegments() throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths.map(path -> path.getFileName().toString())
+                    .filter(name -> name.endsWith(SEGMENT_SUFFIX))
+                    .map(name -> Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            //Not supported on every platform
+        }
+    }
+
+    private Path segmentPath(long segment) {
+        return directory.resolve(name(segment) + SEGMENT_SUFFIX);
+    }
+
+    private Path indexPath(long segment) {
+        return directory.resolve(name(segment) + INDEX_SUFFIX);
+    }
+
+    private static String name(long segment) {
+        return String.format("%020d", segment);
+    }
+
+    private static long location(long segment, long offset, byte type) {
+        return (type == TOMBSTONE ? TOMBSTONE_FLAG : 0) | (segment << 32) | offset;
+    }
+
+    private static long segment(long location) {
+        return (location & ~TOMBSTONE_FLAG) >>> 32;
+    }
+
+    private static long offset(long location) {
+        return location & 0xFFFFFFFFL;
+    }
+
+    private static boolean isTombstone(long location) {
+        return (location & TOMBSTONE_FLAG) != 0;
+    }
+
+    private record Record(Entry entry, int size) {}
+
+    private record IndexEntry(UUID key, int offset, byte type, long end) {}
+}
@@ -0,0 +1,139 @@
+package org.letspeppol.proxy.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/// Storage format of the ubl, the first byte is the version of the encoding followed by the payload:
+/// - `0x00` raw UTF-8, used when compressing does not make it smaller
+/// - `0x01` deflate (zlib) compressed UTF-8
+public final class UblCodec {
+
+    public static final byte RAW = 0x00;
+    public static final byte DEFLATE = 0x01;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private UblCodec() {
+    }
+
+    public static byte[] encode(String ubl) {
+        if (ubl == null) {
+            return null;
+        }
+        byte[] raw = ubl.getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(raw.length / 4 + 16);
+            outputStream.write(DEFLATE);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                outputStream.write(buffer, 0, deflater.deflate(buffer));
+            }
+            if (outputStream.size() < raw.length + 1) {
+                return outputStream.toByteArray();
+            }
+        } finally {
+            deflater.end();
+        }
+        byte[] encoded = new byte[raw.length + 1];
+        encoded[0] = RAW;
+        System.arraycopy(raw, 0, encoded, 1, raw.length);
+        return encoded;
+    }
+
+    /// Streaming variant of [#encode(String)] for a spooled ubl, the file is compressed while read and only the encoded bytes are held in memory
+    public static byte[] encode(Path file) throws IOException {
+        long size = Files.size(file);
+        if (size > Integer.MAX_VALUE - 16) {
+            throw new IllegalArgumentException("Ubl of " + size + " bytes is too large to store");
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream((int) (size / 4) + 16);
+            outputStream.write(DEFLATE);
+            try (DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(outputStream, deflater, BUFFER_SIZE)) {
+                inputStream.transferTo(deflaterOutputStream);
+            }
+            if (outputStream.size() < size + 1) {
+                return outputStream.toByteArray();
+            }
+        } finally {
+            deflater.end();
+        }
+        byte[] encoded = new byte[(int) size + 1];
+        encoded[0] = RAW;
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            if (inputStream.readNBytes(encoded, 1, (int) size) != size) {
+                throw new IOException("Ubl file " + file + " changed while encoding");
+            }
+        }
+        return encoded;
+    }
+
+    public static String decode(byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        checkVersion(data);
+        return switch (data[0]) {
+            case RAW -> new String(data, 1, data.length - 1, StandardCharsets.UTF_8);
+            case DEFLATE -> new String(inflate(data), StandardCharsets.UTF_8);
+            default -> throw new IllegalArgumentException("Unknown ubl encoding version " + data[0]);
+        };
+    }
+
+    /// The UTF-8 bytes of the ubl as stream, e.g. to write, hash or parse it without decoding it into a String
+    public static InputStream inputStream(byte[] data) {
+        checkVersion(data);
+        return switch (data[0]) {
+            case RAW -> new ByteArrayInputStream(data, 1, data.length - 1);
+            case DEFLATE -> new InflaterInputStream(new ByteArrayInputStream(data, 1, data.length - 1), new Inflater(), BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    inf.end(); //Not ended by close when given
+                }
+            };
+            default -> throw new IllegalArgumentException("Unknown ubl encoding version " + data[0]);
+        };
+    }
+
+    private static void checkVersion(byte[] data) {
+        if (data.length == 0) {
+            throw new IllegalArgumentException("Empty ubl data without version");
+        }
+    }
+
+    private static byte[] inflate(byte[] data) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, 1, data.length - 1);
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length * 6);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated ubl data");
+                }
+                outputStream.write(buffer, 0, length);
+            }
+            return outputStream.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt ubl data", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -1,18 +1,27 @@
 package org.letspeppol.proxy.util;
 
+import com.helger.io.resource.IReadableResource;
 import org.letspeppol.proxy.dto.PeppolParties;
+import org.letspeppol.proxy.dto.UblContext;
+import org.letspeppol.proxy.dto.UblHeader;
 //import org.letspeppol.proxy.dto.UblDto;
 //import org.letspeppol.proxy.model.DocumentType;
 import org.w3c.dom.Document;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringReader;
 import java.math.BigDecimal;
 import java.time.Instant;
@@ -22,18 +31,51 @@ import java.util.Currency;
 
 public final class UblParser {
 
-    private static Document prepareDomDocument(String xml) throws ParserConfigurationException, IOException, SAXException {
+    //Builders and XPath are not thread-safe but expensive to create, so reused per thread
+    private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDER = ThreadLocal.withInitial(() -> {
+        try {
+            return newDocumentBuilder();
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final ThreadLocal<XPath> XPATH = ThreadLocal.withInitial(() -> XPathFactory.newInstance().newXPath());
+    private static final XMLInputFactory XML_INPUT_FACTORY; //Thread-safe once configured
+    static {
+        XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false); //Forbids DOCTYPE and DTD processing
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false); //Disables resolving external entities
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, false); //Large text (attachments) is not joined in memory
+    }
+
+    private static final String SUPPLIER_PARTY = "AccountingSupplierParty";
+    private static final String CUSTOMER_PARTY = "AccountingCustomerParty";
+    private static final String PARTY = "Party";
+    private static final String ENDPOINT_ID = "EndpointID";
+    private static final String EMBEDDED_BINARY_OBJECT = "EmbeddedDocumentBinaryObject";
+
+    private static DocumentBuilder newDocumentBuilder() throws ParserConfigurationException {
         DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
         documentBuilderFactory.setNamespaceAware(true); //Safety if forgotten to add local-name()
         documentBuilderFactory.setFeature(javax.xml.XMLConstants.FEATURE_SECURE_PROCESSING, true); //Sets protective limits and disables risky stuff
         documentBuilderFactory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true); //Forbids DOCTYPE and DTD processing
         documentBuilderFactory.setFeature("http://xml.org/sax/features/external-general-entities", false); //Disables resolving external general entities
         documentBuilderFactory.setFeature("http://xml.org/sax/features/external-parameter-entities", false); //Disables resolving external parameter entities
-        return documentBuilderFactory.newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+        return documentBuilderFactory.newDocumentBuilder();
+    }
+
+    private static Document prepareDomDocument(InputSource inputSource) throws IOException, SAXException {
+        DocumentBuilder documentBuilder = DOCUMENT_BUILDER.get();
+        try {
+            return documentBuilder.parse(inputSource);
+        } finally {
+            documentBuilder.reset();
+        }
     }
 
     private static PeppolParties getPeppolParties(Document document) throws XPathExpressionException {
-        XPath xp = XPathFactory.newInstance().newXPath();
+        XPath xp = XPATH.get();
         String senderId = xp.evaluate("normalize-space((/*/*[local-name()='AccountingSupplierParty']/*[local-name()='Party']/*[local-name()='EndpointID'])[1])", document).trim();
         String senderScheme = xp.evaluate("normalize-space((/*/*[local-name()='AccountingSupplierParty']/*[local-name()='Party']/*[local-name()='EndpointID'])[1]/@schemeID)", document).trim();
         if (senderId.isEmpty()) {
@@ -51,7 +93,98 @@ public final class UblParser {
         return new PeppolParties(senderPeppolId, receiverPeppolId);
     }
 
+    /// Single forward pass over the UBL for the root element and the EndpointID of supplier and customer, the same values
+    /// as the XPath expressions of [#parsePeppolParties(String)]. Stops as soon as both parties are found and skips the
+    /// content of embedded attachments (EmbeddedDocumentBinaryObject) without materializing it.
+    public static UblHeader extractHeader(InputStream inputStream) throws XMLStreamException {
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(inputStream);
+        try {
+            String rootElement = null;
+            String[] path = new String[4];
+            int depth = 0;
+            String senderPeppolId = null;
+            String receiverPeppolId = null;
+            while (reader.hasNext() && (senderPeppolId == null || receiverPeppolId == null)) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                    continue;
+                }
+                if (event != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                depth++;
+                String localName = reader.getLocalName();
+                if (depth == 1) {
+                    rootElement = localName;
+                }
+                if (EMBEDDED_BINARY_OBJECT.equals(localName)) {
+                    skipElement(reader);
+                    depth--;
+                    continue;
+                }
+                if (depth > path.length) {
+                    continue;
+                }
+                path[depth - 1] = localName;
+                if (depth == 4 && ENDPOINT_ID.equals(localName) && PARTY.equals(path[2])) {
+                    boolean supplier = SUPPLIER_PARTY.equals(path[1]);
+                    boolean customer = CUSTOMER_PARTY.equals(path[1]);
+                    if ((supplier && senderPeppolId == null) || (customer && receiverPeppolId == null)) {
+                        String scheme = normalizeSpace(reader.getAttributeValue(null, "schemeID"));
+                        String id = normalizeSpace(reader.getElementText()); //Moves to the end element
+                        depth--;
+                        String peppolId = scheme.isEmpty() ? id : scheme + ":" + id;
+                        if (supplier) {
+                            senderPeppolId = id.isEmpty() ? "" : peppolId;
+                        } else {
+                            receiverPeppolId = id.isEmpty() ? "" : peppolId;
+                        }
+                    }
+                }
+            }
+            if (senderPeppolId == null || senderPeppolId.isEmpty()) {
+                throw new RuntimeException("AccountingSupplierParty not found");
+            }
+            if (receiverPeppolId == null || receiverPeppolId.isEmpty()) {
+                throw new RuntimeException("AccountingCustomerParty not found");
+            }
+            return new UblHeader(rootElement, new PeppolParties(senderPeppolId, receiverPeppolId));
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static String normalizeSpace(String value) {
+        return value == null ? "" : value.replaceAll("[ \\t\\r\\n]+", " ").trim();
+    }
+
+    /// Parses the UBL once into a context with everything needed to validate, authorize and create the document,
+    /// the parties come from the streaming pass, the DOM is only built for validation
+    public static UblContext parseContext(IReadableResource ubl, String hash) throws ParserConfigurationException, IOException, SAXException, XMLStreamException {
+        UblHeader ublHeader;
+        try (InputStream inputStream = ubl.getInputStream()) {
+            ublHeader = extractHeader(inputStream);
+        }
+        try (InputStream inputStream = ubl.getInputStream()) {
+            Document document = prepareDomDocument(new InputSource(inputStream));
+            return new UblContext(document, ublHeader.type(), ublHeader.parties(), hash);
+        }
+    }
+
     public static PeppolParties parsePeppolParties(String xml) throws ParserConfigurationException, IOException, SAXException, XPathExpressionException {
-        return getPeppolParties(prepareDomDocument(xml));
+        return getPeppolParties(prepareDomDocument(new InputSource(new StringReader(xml))));
     }
 }
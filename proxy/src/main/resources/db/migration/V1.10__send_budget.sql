@@ -0,0 +1,9 @@
+-- Token buckets throttling outgoing documents, shared by all proxy instances and kept across restarts.
+-- Tokens are refilled lazily from refilled_on when consumed, capacity and refill rate are configured by the proxy at startup.
+CREATE TABLE send_budget (
+    name                text PRIMARY KEY,
+    tokens              double precision NOT NULL,
+    capacity            double precision NOT NULL,
+    refill_per_second   double precision NOT NULL,
+    refilled_on         timestamp with time zone NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
@@ -0,0 +1,2 @@
+-- Fair selection of due outgoing documents takes the oldest due documents per owner
+CREATE INDEX idx_ubl_document_due_owner ON ubl_document(owner_peppol_id, scheduled_on, created_on) WHERE direction = 'OUTGOING' AND access_point IS NULL;
@@ -0,0 +1,18 @@
+-- Ledger of throttled outgoing documents per owner, partner and day (Europe/Brussels), replaces counting ubl_document per day.
+-- Maintained by the proxy when a document is scheduled on a later day, rescheduled or cancelled, past days are pruned.
+CREATE TABLE send_quota (
+    owner_peppol_id     text NOT NULL,
+    day                 date NOT NULL,
+    partner_peppol_id   text NOT NULL,
+    count               integer NOT NULL,
+    PRIMARY KEY (owner_peppol_id, day, partner_peppol_id)
+);
+
+INSERT INTO send_quota (owner_peppol_id, day, partner_peppol_id, count)
+SELECT owner_peppol_id, (scheduled_on AT TIME ZONE 'Europe/Brussels')::date, partner_peppol_id, count(*)
+FROM ubl_document
+WHERE direction = 'OUTGOING'
+  AND access_point IS NULL
+  AND processed_on IS NULL
+  AND scheduled_on >= CURRENT_DATE
+GROUP BY 1, 2, 3;
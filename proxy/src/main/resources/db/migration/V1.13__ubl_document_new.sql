@@ -0,0 +1,2 @@
+-- Keyset streaming of new (not yet downloaded) documents per owner
+CREATE INDEX idx_ubl_document_new ON ubl_document(owner_peppol_id, created_on, id) WHERE download_count = 0;
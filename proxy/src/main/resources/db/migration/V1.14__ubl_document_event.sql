@@ -0,0 +1,17 @@
+-- Append-only lifecycle events of ubl documents, the change feed of the retrieving app.
+-- tx_id is the transaction of the event, the feed only returns events of transactions older than every running transaction
+-- (pg_snapshot_xmin) ordered by (tx_id, id), so a cursor never passes an event that is committed later.
+CREATE TABLE ubl_document_event (
+    id                  bigserial PRIMARY KEY,
+    tx_id               bigint NOT NULL DEFAULT cast(cast(pg_current_xact_id() AS text) AS bigint),
+    document_id         uuid NOT NULL,
+    owner_peppol_id     text NOT NULL,
+    type                text NOT NULL,
+    scheduled_on        timestamp with time zone,
+    processed_on        timestamp with time zone,
+    processed_status    text,
+    created_on          timestamp with time zone NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE INDEX idx_ubl_document_event_owner ON ubl_document_event(owner_peppol_id, tx_id, id);
+CREATE INDEX idx_ubl_document_event_created_on ON ubl_document_event(created_on);
@@ -0,0 +1,6 @@
+-- Durability acknowledgement of the write-behind backup, null while the backup file is pending
+ALTER TABLE ubl_document ADD COLUMN backed_up_on timestamp with time zone;
+
+UPDATE ubl_document SET backed_up_on = created_on;
+
+CREATE INDEX idx_ubl_document_backup_pending ON ubl_document(created_on) WHERE backed_up_on IS NULL;
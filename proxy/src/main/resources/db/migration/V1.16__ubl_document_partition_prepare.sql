@@ -0,0 +1,36 @@
+-- First step of the range partitioning of ubl_document by created_on month (V1.16 - V1.19), every step keeps the table available.
+-- The existing table becomes the legacy partition of everything up to its bound, no row is copied. It is not split in monthly partitions:
+-- the documents up to the bound get no partition pruning, only the months after it get their own partition (see ensure_ubl_document_partitions).
+-- This step only changes the catalog, the scans are done by the next steps without blocking the writes.
+
+-- Received access point ids, replaces the unique index idx_ubl_document_incoming_access_point_id as a unique constraint of a
+-- partitioned table has to contain created_on. Kept by a trigger from now on, the existing ids are added by V1.17.
+CREATE TABLE ubl_document_received (
+    access_point        access_point NOT NULL,
+    access_point_id     text NOT NULL,
+    PRIMARY KEY (access_point, access_point_id)
+);
+
+CREATE FUNCTION ubl_document_claim_received() RETURNS trigger AS $$
+BEGIN
+    IF NEW.direction = 'INCOMING' AND NEW.access_point IS NOT NULL AND NEW.access_point_id IS NOT NULL THEN
+        INSERT INTO ubl_document_received (access_point, access_point_id) VALUES (NEW.access_point, NEW.access_point_id);
+    END IF;
+    RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER ubl_document_claim_received BEFORE INSERT ON ubl_document
+    FOR EACH ROW EXECUTE FUNCTION ubl_document_claim_received();
+
+-- Documents of which the payload is moved to the cold tier, the content is only kept in the backups
+ALTER TABLE ubl_document ADD COLUMN archived_on timestamp with time zone;
+
+-- Bound of the legacy partition, the end of next month so the writes until the partitioning is finished stay within it.
+-- Not valid yet, validated by V1.17 so the attach does not have to scan the table.
+DO $$
+BEGIN
+    EXECUTE format('ALTER TABLE ubl_document ADD CONSTRAINT ubl_document_legacy_bound CHECK (created_on < %L) NOT VALID',
+                   date_trunc('month', now()) + interval '2 months');
+END;
+$$;
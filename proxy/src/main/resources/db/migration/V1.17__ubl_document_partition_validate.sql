@@ -0,0 +1,10 @@
+-- Second step of the partitioning (see V1.16), both scans only take locks that let the reads and writes continue
+
+-- Received access point ids from before the trigger, the unique index idx_ubl_document_incoming_access_point_id still guards them meanwhile
+INSERT INTO ubl_document_received (access_point, access_point_id)
+SELECT access_point, access_point_id
+FROM ubl_document
+WHERE direction = 'INCOMING' AND access_point IS NOT NULL AND access_point_id IS NOT NULL
+ON CONFLICT DO NOTHING;
+
+ALTER TABLE ubl_document VALIDATE CONSTRAINT ubl_document_legacy_bound;
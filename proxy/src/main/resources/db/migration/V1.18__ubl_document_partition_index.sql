@@ -0,0 +1,8 @@
+-- Third step of the partitioning (see V1.16), run outside a transaction to build the indexes concurrently.
+-- A failed build leaves an invalid index behind, drop it before the migration is repaired and run again.
+
+-- Becomes the primary key (id, created_on) of the legacy partition
+CREATE UNIQUE INDEX CONCURRENTLY ubl_document_legacy_pkey ON ubl_document(id, created_on);
+
+-- Same definition as on the partitioned table, attaching the legacy partition reuses it
+CREATE INDEX CONCURRENTLY idx_ubl_document_legacy_cold ON ubl_document(created_on) WHERE archived_on IS NULL AND payload_hash IS NOT NULL;
@@ -0,0 +1,84 @@
+-- Last step of the partitioning (see V1.16), only changes the catalog: the primary key uses the index built by V1.18 and the
+-- validated bound lets the attach skip the scan of the legacy partition. The locks are held briefly, no row is read.
+
+-- The ledger ubl_document_received replaces the unique index of the received access point ids
+DROP INDEX idx_ubl_document_incoming_access_point_id;
+
+-- The existing table becomes the legacy partition, with the primary key (id, created_on)
+ALTER TABLE ubl_document
+    DROP CONSTRAINT ubl_document_pkey,
+    ADD CONSTRAINT ubl_document_legacy_pkey PRIMARY KEY USING INDEX ubl_document_legacy_pkey;
+ALTER TABLE ubl_document RENAME TO ubl_document_legacy;
+ALTER INDEX idx_ubl_document_owner_peppol_id RENAME TO idx_ubl_document_legacy_owner_peppol_id;
+ALTER INDEX idx_ubl_document_all_new RENAME TO idx_ubl_document_legacy_all_new;
+ALTER INDEX idx_ubl_document_due RENAME TO idx_ubl_document_legacy_due;
+ALTER INDEX idx_ubl_document_next_check RENAME TO idx_ubl_document_legacy_next_check;
+ALTER INDEX idx_ubl_document_access_point_id RENAME TO idx_ubl_document_legacy_access_point_id;
+ALTER INDEX idx_ubl_document_payload_hash RENAME TO idx_ubl_document_legacy_payload_hash;
+ALTER INDEX idx_ubl_document_due_owner RENAME TO idx_ubl_document_legacy_due_owner;
+ALTER INDEX idx_ubl_document_new RENAME TO idx_ubl_document_legacy_new;
+ALTER INDEX idx_ubl_document_backup_pending RENAME TO idx_ubl_document_legacy_backup_pending;
+
+-- Moves to the partitioned table, cloned to every partition
+DROP TRIGGER ubl_document_claim_received ON ubl_document_legacy;
+
+-- Without the bound of the legacy partition, it only applies to that partition
+CREATE TABLE ubl_document (LIKE ubl_document_legacy INCLUDING DEFAULTS INCLUDING STORAGE) PARTITION BY RANGE (created_on);
+ALTER TABLE ubl_document ADD PRIMARY KEY (id, created_on);
+ALTER TABLE ubl_document ADD FOREIGN KEY (payload_hash) REFERENCES ubl_payload(hash); --Matches the foreign key of the legacy partition, reused when attached
+
+-- Same definitions as the existing indexes, attaching the legacy partition reuses them instead of building them again
+CREATE INDEX idx_ubl_document_owner_peppol_id ON ubl_document(owner_peppol_id);
+CREATE INDEX idx_ubl_document_all_new ON ubl_document(owner_peppol_id, download_count, direction, created_on DESC);
+CREATE INDEX idx_ubl_document_due ON ubl_document(scheduled_on, created_on) WHERE direction = 'OUTGOING' AND access_point IS NULL;
+CREATE INDEX idx_ubl_document_next_check ON ubl_document(next_check_at NULLS FIRST) WHERE direction = 'OUTGOING' AND processed_on IS NULL AND access_point IS NOT NULL;
+CREATE INDEX idx_ubl_document_access_point_id ON ubl_document(access_point_id);
+CREATE INDEX idx_ubl_document_payload_hash ON ubl_document(payload_hash);
+CREATE INDEX idx_ubl_document_due_owner ON ubl_document(owner_peppol_id, scheduled_on, created_on) WHERE direction = 'OUTGOING' AND access_point IS NULL;
+CREATE INDEX idx_ubl_document_new ON ubl_document(owner_peppol_id, created_on, id) WHERE download_count = 0;
+CREATE INDEX idx_ubl_document_backup_pending ON ubl_document(created_on) WHERE backed_up_on IS NULL;
+CREATE INDEX idx_ubl_document_cold ON ubl_document(created_on) WHERE archived_on IS NULL AND payload_hash IS NOT NULL;
+
+CREATE TRIGGER ubl_document_claim_received BEFORE INSERT ON ubl_document
+    FOR EACH ROW EXECUTE FUNCTION ubl_document_claim_received();
+
+-- The partition bound is the validated check constraint of V1.16, so the legacy rows are not scanned. The constraint is redundant afterwards.
+DO $$
+DECLARE
+    bound timestamp with time zone;
+BEGIN
+    SELECT substring(pg_get_constraintdef(oid) FROM '''([^'']+)''')::timestamp with time zone INTO STRICT bound
+    FROM pg_constraint
+    WHERE conrelid = 'ubl_document_legacy'::regclass AND conname = 'ubl_document_legacy_bound';
+    EXECUTE format('ALTER TABLE ubl_document ATTACH PARTITION ubl_document_legacy FOR VALUES FROM (MINVALUE) TO (%L)', bound);
+END;
+$$;
+ALTER TABLE ubl_document_legacy DROP CONSTRAINT ubl_document_legacy_bound;
+
+-- Safety net when the partitions are not created in time, a month with rows here can only get its partition once they are moved
+CREATE TABLE ubl_document_default PARTITION OF ubl_document DEFAULT;
+
+-- Creates the monthly partitions from the current up to months_ahead months, returns the # created partitions
+CREATE FUNCTION ensure_ubl_document_partitions(months_ahead integer) RETURNS integer AS $$
+DECLARE
+    month_start timestamp with time zone;
+    created integer := 0;
+BEGIN
+    FOR i IN 0..months_ahead LOOP
+        month_start := date_trunc('month', now()) + make_interval(months => i);
+        BEGIN
+            EXECUTE format('CREATE TABLE %I PARTITION OF ubl_document FOR VALUES FROM (%L) TO (%L)',
+                           'ubl_document_' || to_char(month_start, 'YYYY_MM'), month_start, month_start + interval '1 month');
+            created := created + 1;
+        EXCEPTION
+            WHEN duplicate_table OR invalid_object_definition THEN
+                NULL; --Already created or covered by the legacy partition
+            WHEN check_violation THEN
+                RAISE WARNING 'Partition of % not created, the default partition has rows of that month', to_char(month_start, 'YYYY-MM');
+        END;
+    END LOOP;
+    RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+SELECT ensure_ubl_document_partitions(3);
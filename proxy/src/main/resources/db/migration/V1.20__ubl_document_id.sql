@@ -0,0 +1,16 @@
+-- Document ids, a unique constraint of the partitioned ubl_document has to contain created_on so the primary key (id, created_on)
+-- no longer keeps the ids unique. Claimed by the insert trigger from now on (like ubl_document_received), the existing ids are added by V1.21.
+CREATE TABLE ubl_document_id (
+    id                  uuid PRIMARY KEY
+);
+
+-- Same trigger, the existing partitions keep using it
+CREATE OR REPLACE FUNCTION ubl_document_claim_received() RETURNS trigger AS $$
+BEGIN
+    INSERT INTO ubl_document_id (id) VALUES (NEW.id);
+    IF NEW.direction = 'INCOMING' AND NEW.access_point IS NOT NULL AND NEW.access_point_id IS NOT NULL THEN
+        INSERT INTO ubl_document_received (access_point, access_point_id) VALUES (NEW.access_point, NEW.access_point_id);
+    END IF;
+    RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
@@ -0,0 +1,5 @@
+-- Document ids from before the trigger of V1.20, only reads the table so the writes continue meanwhile
+INSERT INTO ubl_document_id (id)
+SELECT id
+FROM ubl_document
+ON CONFLICT DO NOTHING;
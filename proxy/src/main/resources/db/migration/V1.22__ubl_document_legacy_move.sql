@@ -0,0 +1,152 @@
+-- Moves the rows of the legacy partition (see V1.16 - V1.19) online into monthly partitions, driven in batches by the proxy
+-- (UblDocumentTieringService.moveLegacyBatch) so it can stop and resume at any time:
+--   1. a table is prepared per month of the legacy rows, not attached yet, with the bound of its month as validated check constraint
+--   2. the legacy rows are copied by id in batches, a trigger keeps every copied row in sync with the writes to the legacy partition
+--   3. the swap detaches and drops the legacy partition and attaches the monthly tables, only the catalog is changed under the lock
+-- Columns added to ubl_document are to be added to the monthly tables as well while the move is not finished.
+
+CREATE TABLE ubl_document_legacy_move (
+    singleton           boolean PRIMARY KEY DEFAULT true CHECK (singleton),
+    prepared            boolean NOT NULL DEFAULT false,
+    copied_id           uuid, --Cursor of the copy, every legacy row up to this id is copied
+    copied              bigint NOT NULL DEFAULT 0,
+    completed           boolean NOT NULL DEFAULT false --Copied up to the end once prepared, later inserts are kept in sync by the trigger
+);
+INSERT INTO ubl_document_legacy_move DEFAULT VALUES;
+
+-- The table of the month of a legacy row, null while not prepared
+CREATE FUNCTION ubl_document_legacy_month(created_on timestamp with time zone) RETURNS regclass AS $$
+    SELECT to_regclass('ubl_document_' || to_char(date_trunc('month', created_on), 'YYYY_MM'));
+$$ LANGUAGE sql STABLE;
+
+-- Keeps the prepared monthly tables in sync with the writes to the legacy partition, a row copied concurrently is overwritten
+CREATE FUNCTION ubl_document_legacy_mirror() RETURNS trigger AS $$
+DECLARE
+    target regclass;
+    assignments text;
+BEGIN
+    IF TG_OP = 'DELETE' THEN
+        target := ubl_document_legacy_month(OLD.created_on);
+        IF target IS NOT NULL THEN
+            EXECUTE format('DELETE FROM %s WHERE id = $1 AND created_on = $2', target) USING OLD.id, OLD.created_on;
+        END IF;
+        RETURN NULL;
+    END IF;
+    target := ubl_document_legacy_month(NEW.created_on);
+    IF target IS NULL THEN
+        RETURN NULL;
+    END IF;
+    SELECT string_agg(format('%1$I = EXCLUDED.%1$I', attname), ', ' ORDER BY attnum) INTO assignments
+    FROM pg_attribute
+    WHERE attrelid = 'ubl_document'::regclass AND attnum > 0 AND NOT attisdropped;
+    EXECUTE format('INSERT INTO %s SELECT ($1).* ON CONFLICT (id, created_on) DO UPDATE SET %s', target, assignments) USING NEW;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER ubl_document_legacy_mirror AFTER INSERT OR UPDATE OR DELETE ON ubl_document_legacy
+    FOR EACH ROW EXECUTE FUNCTION ubl_document_legacy_mirror();
+
+-- One step of the move, returns the # prepared tables or copied rows, 0 once every legacy row is copied and the swap can be done
+CREATE FUNCTION move_ubl_document_legacy(batch_size integer) RETURNS integer AS $$
+DECLARE
+    state ubl_document_legacy_move;
+    bound timestamp with time zone;
+    month_start timestamp with time zone;
+    target text;
+    index_definition text;
+    created integer := 0;
+    ids uuid[];
+BEGIN
+    IF to_regclass('ubl_document_legacy') IS NULL THEN
+        RETURN 0; --Already swapped
+    END IF;
+    SELECT * INTO STRICT state FROM ubl_document_legacy_move FOR UPDATE; --One instance at a time
+    IF NOT state.prepared THEN
+        SELECT substring(pg_get_expr(relpartbound, oid) FROM 'TO \(''([^'']+)''\)')::timestamp with time zone INTO STRICT bound
+        FROM pg_class
+        WHERE oid = 'ubl_document_legacy'::regclass;
+        SELECT date_trunc('month', min(created_on)) INTO month_start FROM ubl_document_legacy;
+        WHILE month_start < bound LOOP
+            target := 'ubl_document_' || to_char(month_start, 'YYYY_MM');
+            IF to_regclass(target) IS NULL THEN
+                EXECUTE format('CREATE TABLE %I (LIKE ubl_document INCLUDING DEFAULTS INCLUDING STORAGE)', target);
+                EXECUTE format('ALTER TABLE %I ADD PRIMARY KEY (id, created_on)', target);
+                EXECUTE format('ALTER TABLE %I ADD FOREIGN KEY (payload_hash) REFERENCES ubl_payload(hash)', target);
+                EXECUTE format('ALTER TABLE %I ADD CONSTRAINT %I CHECK (created_on >= %L AND created_on < %L)',
+                               target, target || '_bound', month_start, least(month_start + interval '1 month', bound));
+                FOR index_definition IN
+                    SELECT pg_get_indexdef(indexrelid) FROM pg_index WHERE indrelid = 'ubl_document'::regclass AND NOT indisprimary
+                LOOP
+                    EXECUTE regexp_replace(index_definition, ' INDEX \S+ ON ONLY \S+ ', format(' INDEX ON %I ', target));
+                END LOOP;
+                created := created + 1;
+            END IF;
+            month_start := month_start + interval '1 month';
+        END LOOP;
+        -- Waits for the writes that did not see the new tables yet, so every later copy reads them
+        LOCK TABLE ubl_document_legacy IN SHARE MODE;
+        UPDATE ubl_document_legacy_move SET prepared = true;
+        RETURN greatest(created, 1);
+    END IF;
+
+    SELECT array_agg(id ORDER BY id) INTO ids
+    FROM (
+        SELECT id FROM ubl_document_legacy
+        WHERE state.copied_id IS NULL OR id > state.copied_id
+        ORDER BY id
+        LIMIT batch_size
+    ) batch;
+    IF ids IS NULL THEN
+        UPDATE ubl_document_legacy_move SET completed = true;
+        RETURN 0;
+    END IF;
+    FOR month_start IN SELECT DISTINCT date_trunc('month', created_on) FROM ubl_document_legacy WHERE id = ANY(ids) LOOP
+        EXECUTE format('INSERT INTO %s SELECT * FROM ubl_document_legacy WHERE id = ANY($1) AND created_on >= $2 AND created_on < $3 ON CONFLICT DO NOTHING',
+                       ubl_document_legacy_month(month_start))
+            USING ids, month_start, month_start + interval '1 month';
+    END LOOP;
+    UPDATE ubl_document_legacy_move SET copied_id = ids[array_length(ids, 1)], copied = copied + array_length(ids, 1);
+    RETURN array_length(ids, 1);
+END;
+$$ LANGUAGE plpgsql;
+
+-- Replaces the legacy partition by the monthly tables once every row is copied, false when not yet copied or the table is busy.
+-- The lock is only waited for briefly, the reads and writes are blocked while it is held.
+CREATE FUNCTION swap_ubl_document_legacy(months_ahead integer) RETURNS boolean AS $$
+DECLARE
+    state ubl_document_legacy_move;
+    monthly record;
+BEGIN
+    IF to_regclass('ubl_document_legacy') IS NULL THEN
+        RETURN true;
+    END IF;
+    SELECT * INTO STRICT state FROM ubl_document_legacy_move FOR UPDATE;
+    IF NOT state.completed THEN
+        RETURN false;
+    END IF;
+    BEGIN
+        SET LOCAL lock_timeout = '5s';
+        LOCK TABLE ubl_document IN ACCESS EXCLUSIVE MODE;
+        LOCK TABLE ubl_document_legacy IN ACCESS EXCLUSIVE MODE;
+    EXCEPTION
+        WHEN lock_not_available THEN
+            RETURN false;
+    END;
+    ALTER TABLE ubl_document DETACH PARTITION ubl_document_legacy;
+    FOR monthly IN
+        SELECT c.relname, substring(pg_get_constraintdef(k.oid) FROM '>= ''([^'']+)''') AS from_value,
+               substring(pg_get_constraintdef(k.oid) FROM '< ''([^'']+)''') AS to_value
+        FROM pg_constraint k
+        JOIN pg_class c ON c.oid = k.conrelid
+        WHERE k.conname = c.relname || '_bound' AND c.relname ~ '^ubl_document_\d{4}_\d{2}$' AND NOT c.relispartition
+          AND c.relnamespace = (SELECT relnamespace FROM pg_class WHERE oid = 'ubl_document'::regclass)
+    LOOP
+        EXECUTE format('ALTER TABLE ubl_document ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)', monthly.relname, monthly.from_value, monthly.to_value);
+        EXECUTE format('ALTER TABLE %I DROP CONSTRAINT %I', monthly.relname, monthly.relname || '_bound');
+    END LOOP;
+    DROP TABLE ubl_document_legacy;
+    PERFORM ensure_ubl_document_partitions(months_ahead);
+    RETURN true;
+END;
+$$ LANGUAGE plpgsql;
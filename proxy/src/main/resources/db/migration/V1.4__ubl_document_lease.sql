@@ -0,0 +1,5 @@
+-- Claiming of due outgoing documents, so multiple proxy instances can send without picking up the same document
+ALTER TABLE ubl_document ADD COLUMN claimed_by text;
+ALTER TABLE ubl_document ADD COLUMN lease_until timestamp with time zone;
+
+CREATE INDEX idx_ubl_document_due ON ubl_document(scheduled_on, created_on) WHERE direction = 'OUTGOING' AND access_point IS NULL;
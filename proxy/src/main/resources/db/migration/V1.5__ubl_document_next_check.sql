@@ -0,0 +1,5 @@
+-- Adaptive status synchronization of outgoing documents
+ALTER TABLE ubl_document ADD COLUMN next_check_at timestamp with time zone;
+ALTER TABLE ubl_document ADD COLUMN check_count integer NOT NULL DEFAULT 0;
+
+CREATE INDEX idx_ubl_document_next_check ON ubl_document(next_check_at NULLS FIRST) WHERE direction = 'OUTGOING' AND processed_on IS NULL AND access_point IS NOT NULL;
@@ -0,0 +1,4 @@
+-- Webhooks and polling can both deliver the same inbound document, the database has the final word on duplicates
+CREATE UNIQUE INDEX idx_ubl_document_incoming_access_point_id ON ubl_document (access_point, access_point_id) WHERE direction = 'INCOMING';
+-- Status webhooks look up outgoing documents by the id the Access Point assigned
+CREATE INDEX idx_ubl_document_access_point_id ON ubl_document (access_point_id);
@@ -0,0 +1,14 @@
+-- Content addressed ubl storage shared by ubl documents with the same content, reference counted for no-archive release
+CREATE TABLE ubl_payload (
+    hash                text PRIMARY KEY,
+    data                bytea NOT NULL,
+    ref_count           integer NOT NULL DEFAULT 0,
+    created_on          timestamp with time zone NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+-- Already compressed by the application (see UblCodec)
+ALTER TABLE ubl_payload ALTER COLUMN data SET STORAGE EXTERNAL;
+
+ALTER TABLE ubl_document ADD COLUMN payload_hash text REFERENCES ubl_payload(hash);
+
+CREATE INDEX idx_ubl_document_payload_hash ON ubl_document(payload_hash);
+CREATE INDEX idx_ubl_payload_unreferenced ON ubl_payload(hash) WHERE ref_count <= 0;
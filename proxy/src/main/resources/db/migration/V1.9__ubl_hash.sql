@@ -0,0 +1,14 @@
+-- Deduplication ledger of every seen ubl hash as 32 bytes, the primary key makes the claim atomic across proxy instances.
+-- A unique index on ubl_document.hash is not possible as loopback and updated documents legitimately share content.
+CREATE TABLE ubl_hash (
+    hash                bytea PRIMARY KEY,
+    seen_on             timestamp with time zone NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+INSERT INTO ubl_hash (hash, seen_on)
+SELECT decode(hash, 'hex'), max(created_on)
+FROM ubl_document
+WHERE hash ~ '^[0-9a-f]{64}$'
+GROUP BY hash;
+
+CREATE INDEX idx_ubl_hash_seen_on ON ubl_hash(seen_on);
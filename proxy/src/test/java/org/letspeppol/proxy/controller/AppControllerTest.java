@@ -31,6 +31,8 @@ class AppControllerTest {
                 null,
                 null,
                 null,
+                null,
+                null,
                 jwtDecoder
         );
         Jwt appJwt = jwt(AccountType.APP, sponsorPeppolId, appUid);
@@ -0,0 +1,125 @@
+package org.letspeppol.proxy.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.letspeppol.proxy.exception.BadRequestException;
+import org.letspeppol.proxy.model.DocumentType;
+import org.letspeppol.proxy.service.ScradaService;
+import org.letspeppol.proxy.util.HashUtil;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ScradaControllerTest {
+
+    private static final String SECRET = "webhook-secret";
+    private static final String SIGNATURE_HEADER = "X-Scrada-Signature";
+
+    private final ScradaService scradaService = mock(ScradaService.class);
+    private final ScradaController controller = controller();
+
+    @Test
+    void acceptsHexSignature() throws Exception {
+        byte[] body = body();
+
+        assertThat(controller.outboundStatus(headers(HashUtil.hmacSha256(SECRET, body)), body).getStatusCode()).isEqualTo(HttpStatus.NO_CONTENT);
+        verify(scradaService).updateStatus(any(), any());
+    }
+
+    @Test
+    void acceptsBase64Signature() throws Exception {
+        byte[] body = body();
+        String signature = Base64.getEncoder().encodeToString(HashUtil.hmacSha256Bytes(SECRET, body));
+
+        assertThat(controller.outboundStatus(headers(signature), body).getStatusCode()).isEqualTo(HttpStatus.NO_CONTENT);
+    }
+
+    @Test
+    void rejectsForgedSignature() throws Exception {
+        byte[] body = body();
+
+        assertThat(controller.outboundStatus(headers(HashUtil.hmacSha256("other-secret", body)), body).getStatusCode()).isEqualTo(HttpStatus.UNAUTHORIZED);
+        assertThat(controller.outboundStatus(headers(HashUtil.hmacSha256(SECRET, "{}".getBytes(StandardCharsets.UTF_8))), body).getStatusCode()).isEqualTo(HttpStatus.UNAUTHORIZED);
+        assertThat(controller.outboundStatus(headers("not a signature"), body).getStatusCode()).isEqualTo(HttpStatus.UNAUTHORIZED);
+        assertThat(controller.outboundStatus(new HttpHeaders(), body).getStatusCode()).isEqualTo(HttpStatus.UNAUTHORIZED);
+        verify(scradaService, never()).updateStatus(any(), any());
+    }
+
+    @Test
+    void rejectsForgedInboundDocument() {
+        byte[] body = "<Invoice/>".getBytes(StandardCharsets.UTF_8);
+
+        assertThat(controller.inboundDocument(headers(HashUtil.hmacSha256("other-secret", body)), body).getStatusCode()).isEqualTo(HttpStatus.UNAUTHORIZED);
+        verify(scradaService, never()).receiveDocument(any());
+    }
+
+    @Test
+    void acceptsInboundDocumentMatchingTheUbl() throws Exception {
+        byte[] body = ubl();
+
+        assertThat(controller.inboundDocument(inboundHeaders(body, "iso6523-actorid-upis::0208:0705969661", "0208:1023290711"), body).getStatusCode()).isEqualTo(HttpStatus.NO_CONTENT);
+        verify(scradaService).receiveDocument(argThat(ublDocument -> ublDocument.getType() == DocumentType.INVOICE));
+    }
+
+    @Test
+    void rejectsInboundDocumentWithHeadersNotInTheUbl() throws Exception {
+        byte[] body = ubl();
+
+        assertThatThrownBy(() -> controller.inboundDocument(inboundHeaders(body, "0208:0000000000", "0208:1023290711"), body)).isInstanceOf(BadRequestException.class);
+        assertThatThrownBy(() -> controller.inboundDocument(inboundHeaders(body, "0208:0705969661", "0208:0000000000"), body)).isInstanceOf(BadRequestException.class);
+        HttpHeaders creditNote = inboundHeaders(body, "0208:0705969661", "0208:1023290711");
+        creditNote.set(ScradaController.DOCUMENT_TYPE_VALUE_HEADER, "credit-note");
+        assertThatThrownBy(() -> controller.inboundDocument(creditNote, body)).isInstanceOf(BadRequestException.class);
+        verify(scradaService, never()).receiveDocument(any());
+    }
+
+    private ScradaController controller() {
+        when(scradaService.isWebhookEnabled()).thenReturn(true);
+        when(scradaService.toDocumentType(any())).thenReturn(DocumentType.CREDIT_NOTE);
+        when(scradaService.toDocumentType(ScradaService.INVOICES_VALUE)).thenReturn(DocumentType.INVOICE);
+        ScradaController scradaController = new ScradaController(scradaService, new ObjectMapper());
+        ReflectionTestUtils.setField(scradaController, "webhookSecret", SECRET);
+        ReflectionTestUtils.setField(scradaController, "signatureHeader", SIGNATURE_HEADER);
+        return scradaController;
+    }
+
+    private byte[] body() {
+        return ("{\"id\":\"" + UUID.randomUUID() + "\",\"status\":\"Processed\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] ubl() throws IOException {
+        try (InputStream inputStream = getClass().getResourceAsStream("/ubl/invoice.xml")) {
+            return inputStream.readAllBytes();
+        }
+    }
+
+    private HttpHeaders inboundHeaders(byte[] body, String receiverId, String senderId) {
+        HttpHeaders headers = headers(HashUtil.hmacSha256(SECRET, body));
+        headers.set(ScradaController.DOCUMENT_ID_HEADER, UUID.randomUUID().toString());
+        headers.set(ScradaController.DOCUMENT_TYPE_VALUE_HEADER, ScradaService.INVOICES_VALUE);
+        headers.set(ScradaController.RECEIVER_ID_HEADER, receiverId);
+        headers.set(ScradaController.SENDER_ID_HEADER, senderId);
+        return headers;
+    }
+
+    private HttpHeaders headers(String signature) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(SIGNATURE_HEADER, signature);
+        return headers;
+    }
+}
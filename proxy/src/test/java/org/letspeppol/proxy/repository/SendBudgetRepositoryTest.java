@@ -0,0 +1,110 @@
+package org.letspeppol.proxy.repository;
+
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.letspeppol.proxy.PostgresIntegrationTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+import static org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase.Replace.NONE;
+
+/// Runs in one transaction per test, so `now()` is the same for every statement and the refill only depends on `refilled_on`
+@DataJpaTest
+@AutoConfigureTestDatabase(replace = NONE)
+class SendBudgetRepositoryTest extends PostgresIntegrationTest {
+
+    private static final String BUCKET = "TEST";
+
+    @Autowired private SendBudgetRepository sendBudgetRepository;
+    @Autowired private EntityManager em;
+
+    @BeforeEach
+    void configureBucket() {
+        sendBudgetRepository.configure(BUCKET, 10, 1);
+    }
+
+    @Test
+    void newBucketStartsFull() {
+        assertThat(sendBudgetRepository.available(BUCKET)).isEqualTo(10.0);
+        assertThat(sendBudgetRepository.consume(BUCKET, 4)).isEqualTo(4);
+        assertThat(sendBudgetRepository.available(BUCKET)).isEqualTo(6.0);
+    }
+
+    @Test
+    void refillsSinceLastConsumption() {
+        setBucket(0, 5);
+
+        assertThat(sendBudgetRepository.consume(BUCKET, 8)).isEqualTo(5);
+        assertThat(sendBudgetRepository.available(BUCKET)).isEqualTo(0.0);
+    }
+
+    @Test
+    void refillStopsAtCapacity() {
+        setBucket(2, 3600);
+
+        assertThat(sendBudgetRepository.consume(BUCKET, 20)).isEqualTo(10);
+    }
+
+    @Test
+    void grantsWholeTokensOnly() {
+        setBucket(3.5, 0);
+
+        assertThat(sendBudgetRepository.consume(BUCKET, 5)).isEqualTo(3);
+        assertThat(sendBudgetRepository.available(BUCKET)).isCloseTo(0.5, within(1e-9));
+        assertThat(sendBudgetRepository.consume(BUCKET, 1)).isZero();
+    }
+
+    @Test
+    void topUpAboveCapacityIsKeptAndNotCapped() {
+        setBucket(10, 0);
+
+        sendBudgetRepository.add(BUCKET, 50);
+
+        assertThat(sendBudgetRepository.available(BUCKET)).isEqualTo(60.0);
+        assertThat(sendBudgetRepository.consume(BUCKET, 55)).isEqualTo(55);
+        assertThat(sendBudgetRepository.available(BUCKET)).isEqualTo(5.0);
+    }
+
+    @Test
+    void topUpIsNotLostByRefill() {
+        setBucket(60, 3600);
+
+        assertThat(sendBudgetRepository.available(BUCKET)).isEqualTo(60.0); //Refill never lowers tokens above capacity
+        assertThat(sendBudgetRepository.consume(BUCKET, 100)).isEqualTo(60);
+    }
+
+    @Test
+    void negativeBalanceGrantsNothingUntilRefilled() {
+        setBucket(-5, 3);
+
+        assertThat(sendBudgetRepository.consume(BUCKET, 1)).isZero();
+        assertThat(sendBudgetRepository.available(BUCKET)).isEqualTo(-2.0);
+    }
+
+    @Test
+    void reconfigureKeepsTokens() {
+        setBucket(4, 0);
+
+        sendBudgetRepository.configure(BUCKET, 100, 2);
+
+        assertThat(sendBudgetRepository.available(BUCKET)).isEqualTo(4.0);
+    }
+
+    @Test
+    void unknownBucketGrantsNull() {
+        assertThat(sendBudgetRepository.consume("UNKNOWN", 1)).isNull();
+        assertThat(sendBudgetRepository.available("UNKNOWN")).isNull();
+    }
+
+    private void setBucket(double tokens, long refilledSecondsAgo) {
+        em.createNativeQuery("update send_budget set tokens = :tokens, refilled_on = now() - :seconds * interval '1 second' where name = :name")
+                .setParameter("tokens", tokens)
+                .setParameter("seconds", refilledSecondsAgo)
+                .setParameter("name", BUCKET)
+                .executeUpdate();
+    }
+}
@@ -0,0 +1,76 @@
+package org.letspeppol.proxy.repository;
+
+import org.junit.jupiter.api.Test;
+import org.letspeppol.proxy.PostgresIntegrationTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+
+import java.time.LocalDate;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase.Replace.NONE;
+
+@DataJpaTest
+@AutoConfigureTestDatabase(replace = NONE)
+class SendQuotaRepositoryTest extends PostgresIntegrationTest {
+
+    private static final String OWNER = "0208:0000000001";
+    private static final String PARTNER = "0208:0000000002";
+    private static final String OTHER_PARTNER = "0208:0000000003";
+    private static final LocalDate FROM = LocalDate.of(2030, 1, 1);
+
+    @Autowired private UblDocumentRepository ublDocumentRepository;
+
+    @Test
+    void emptyLedgerIsFreeFromTheFirstDay() {
+        assertThat(findFirstFreeSendDay(PARTNER, 10)).contains(0);
+    }
+
+    @Test
+    void skipsDaysFullForTheOwner() {
+        reserve(FROM, PARTNER, 4);
+        reserve(FROM, OTHER_PARTNER, 4);
+        reserve(FROM.plusDays(1), OTHER_PARTNER, 4);
+        reserve(FROM.plusDays(1), "0208:0000000004", 4);
+
+        assertThat(findFirstFreeSendDay(PARTNER, 10)).contains(2);
+    }
+
+    @Test
+    void skipsDaysFullForThePairOnly() {
+        reserve(FROM, PARTNER, 4);
+        reserve(FROM.plusDays(1), OTHER_PARTNER, 4);
+
+        assertThat(findFirstFreeSendDay(PARTNER, 10)).contains(1);
+        assertThat(findFirstFreeSendDay(OTHER_PARTNER, 10)).contains(0);
+    }
+
+    @Test
+    void takesTheFirstGapBetweenFullDays() {
+        reserve(FROM, PARTNER, 4);
+        reserve(FROM.plusDays(2), PARTNER, 4);
+        reserve(FROM.plusDays(3), PARTNER, 4);
+
+        assertThat(findFirstFreeSendDay(PARTNER, 10)).contains(1);
+    }
+
+    @Test
+    void nothingFreeWithinTheHorizon() {
+        reserve(FROM, PARTNER, 4);
+        reserve(FROM.plusDays(1), PARTNER, 4);
+
+        assertThat(findFirstFreeSendDay(PARTNER, 1)).isEmpty();
+    }
+
+    private void reserve(LocalDate day, String partnerPeppolId, int count) {
+        for (int i = 0; i < count; i++) {
+            ublDocumentRepository.reserveSendQuota(OWNER, partnerPeppolId, day);
+        }
+    }
+
+    private Optional<Integer> findFirstFreeSendDay(String partnerPeppolId, int horizonDays) {
+        return ublDocumentRepository.findFirstFreeSendDay(OWNER, partnerPeppolId, FROM, horizonDays, 8, 4);
+    }
+}
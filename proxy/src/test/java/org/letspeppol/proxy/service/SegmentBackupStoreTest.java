@@ -0,0 +1,83 @@
+package org.letspeppol.proxy.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.letspeppol.proxy.dto.BackupEntry;
+import org.letspeppol.proxy.dto.BackupReference;
+import org.letspeppol.proxy.model.DocumentDirection;
+import org.letspeppol.proxy.util.UblCodec;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SegmentBackupStoreTest {
+
+    private static final String APPLICATION = "proxy";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void filesAreImportedOnFirstOpen() throws IOException {
+        BackupEntry live = entry("<Invoice>live</Invoice>");
+        BackupEntry cleared = entry("<Invoice>cleared</Invoice>");
+        FileBackupStore fileBackupStore = new FileBackupStore(directory.toString(), APPLICATION);
+        fileBackupStore.write(List.of(live, cleared, new BackupEntry(cleared.id(), cleared.ownerPeppolId(), cleared.direction(), cleared.createdOn(), null, null)));
+
+        SegmentBackupStore segmentBackupStore = open();
+        try {
+            assertThat(segmentBackupStore.read(reference(live))).contains(live.ubl());
+            assertThat(segmentBackupStore.read(reference(cleared))).isEmpty();
+            assertThat(live(segmentBackupStore)).containsExactly(live.id());
+        } finally {
+            segmentBackupStore.close();
+        }
+    }
+
+    @Test
+    void clearedInTheSegmentsIsNotImportedAgain() throws IOException {
+        BackupEntry entry = entry("<Invoice>file</Invoice>");
+        SegmentBackupStore segmentBackupStore = open();
+        try {
+            segmentBackupStore.write(List.of(BackupEntry.cleared(reference(entry))));
+        } finally {
+            segmentBackupStore.close();
+        }
+        new FileBackupStore(directory.toString(), APPLICATION).write(List.of(entry));
+        Files.delete(directory.resolve("backup").resolve(APPLICATION).resolve("segments.imported")); //E.g. segments from before the import
+
+        segmentBackupStore = open();
+        try {
+            assertThat(segmentBackupStore.read(reference(entry))).isEmpty();
+        } finally {
+            segmentBackupStore.close();
+        }
+    }
+
+    private SegmentBackupStore open() throws IOException {
+        return new SegmentBackupStore(directory.toString(), APPLICATION, 1024 * 1024, 0.5);
+    }
+
+    private static BackupEntry entry(String ubl) {
+        return new BackupEntry(UUID.randomUUID(), "0208:0123456789", DocumentDirection.INCOMING, Instant.parse("2025-03-01T10:00:00Z"), null, UblCodec.encode(ubl));
+    }
+
+    private static BackupReference reference(BackupEntry entry) {
+        return new BackupReference(entry.id(), entry.ownerPeppolId(), entry.direction(), entry.createdOn());
+    }
+
+    private static List<UUID> live(SegmentBackupStore segmentBackupStore) throws IOException {
+        List<UUID> ids = new ArrayList<>();
+        for (BackupStore.Part part : segmentBackupStore.parts()) {
+            part.read(entry -> ids.add(entry.id()));
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,69 @@
+package org.letspeppol.proxy.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BloomFilterTest {
+
+    @Test
+    void addedHashesAreNeverMissed() {
+        BloomFilter bloomFilter = new BloomFilter(10_000, 0.01);
+        List<byte[]> hashes = hashes("added", 10_000);
+
+        hashes.forEach(bloomFilter::put);
+
+        assertThat(hashes).allMatch(bloomFilter::mightContain);
+    }
+
+    @Test
+    void falsePositiveRateStaysNearTheConfiguredRate() {
+        BloomFilter bloomFilter = new BloomFilter(10_000, 0.01);
+        hashes("added", 10_000).forEach(bloomFilter::put);
+
+        long falsePositives = hashes("other", 100_000).stream().filter(bloomFilter::mightContain).count();
+
+        assertThat(falsePositives).isLessThan(2_000); //1% expected, a margin for the rounding of the bit and hash counts
+    }
+
+    @Test
+    void emptyFilterContainsNothing() {
+        BloomFilter bloomFilter = new BloomFilter(1_000, 0.01);
+
+        assertThat(hashes("other", 1_000)).noneMatch(bloomFilter::mightContain);
+    }
+
+    @Test
+    void concurrentPutsAreNotLost() throws Exception {
+        BloomFilter bloomFilter = new BloomFilter(40_000, 0.01);
+        List<List<byte[]>> batches = IntStream.range(0, 4).mapToObj(thread -> hashes("thread-" + thread, 10_000)).toList();
+        ExecutorService executorService = Executors.newFixedThreadPool(batches.size());
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (List<byte[]> batch : batches) {
+                futures.add(executorService.submit(() -> batch.forEach(bloomFilter::put)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdown();
+        }
+
+        assertThat(batches).allSatisfy(batch -> assertThat(batch).allMatch(bloomFilter::mightContain));
+    }
+
+    private static List<byte[]> hashes(String prefix, int count) {
+        return IntStream.range(0, count)
+                .mapToObj(i -> HashUtil.sha256Digest().digest((prefix + i).getBytes(StandardCharsets.UTF_8)))
+                .toList();
+    }
+}
@@ -0,0 +1,40 @@
+package org.letspeppol.proxy.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.letspeppol.proxy.dto.ChangeCursor;
+import org.letspeppol.proxy.exception.BadRequestException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ChangeCursorTest {
+
+    @Test
+    void writtenCursorIsReadAgain() {
+        ChangeCursor cursor = new ChangeCursor(4_294_967_296L + 812, 1_234_567);
+
+        assertThat(cursor.toString()).isEqualTo("4294968108_1234567");
+        assertThat(ChangeCursor.valueOf(cursor.toString())).isEqualTo(cursor);
+    }
+
+    @Test
+    void startIsReadAgain() {
+        assertThat(ChangeCursor.START.toString()).isEqualTo("0_0");
+        assertThat(ChangeCursor.valueOf("0_0")).isEqualTo(ChangeCursor.START);
+    }
+
+    @Test
+    void largestTransactionIdIsReadAgain() {
+        ChangeCursor cursor = new ChangeCursor(Long.MAX_VALUE, Long.MAX_VALUE);
+
+        assertThat(ChangeCursor.valueOf(cursor.toString())).isEqualTo(cursor);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"", "_", "12", "12_", "_34", "12_34_56", "a_1", "1_b", "2026-03-01T10:15:30Z_00000000-0000-0000-0000-000000000000"})
+    void invalidCursorIsRejected(String cursor) {
+        assertThatThrownBy(() -> ChangeCursor.valueOf(cursor)).isInstanceOf(BadRequestException.class);
+    }
+}
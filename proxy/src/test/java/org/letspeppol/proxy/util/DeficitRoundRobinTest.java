@@ -0,0 +1,63 @@
+package org.letspeppol.proxy.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DeficitRoundRobinTest {
+
+    @Test
+    void bulkFlowDoesNotStarveSmallFlows() {
+        Map<String, Queue<String>> queues = queues(Map.of("bulk", 1000, "small", 2, "tiny", 1));
+
+        List<String> selected = new DeficitRoundRobin<String>().select(queues, flow -> 1.0, 6);
+
+        assertThat(selected).hasSize(6).contains("small-0", "small-1", "tiny-0");
+    }
+
+    @Test
+    void weightsShareTheBatch() {
+        Map<String, Queue<String>> queues = queues(Map.of("heavy", 100, "light", 100));
+
+        List<String> selected = new DeficitRoundRobin<String>().select(queues, flow -> flow.equals("heavy") ? 3.0 : 1.0, 40);
+
+        assertThat(selected.stream().filter(item -> item.startsWith("heavy"))).hasSize(30);
+        assertThat(selected.stream().filter(item -> item.startsWith("light"))).hasSize(10);
+    }
+
+    @Test
+    void fairnessHoldsAcrossSelections() {
+        DeficitRoundRobin<String> deficitRoundRobin = new DeficitRoundRobin<>();
+        Map<String, Queue<String>> queues = queues(Map.of("a", 100, "b", 100, "c", 100));
+
+        for (int i = 0; i < 30; i++) {
+            deficitRoundRobin.select(queues, flow -> 1.0, 1);
+        }
+
+        assertThat(queues.values()).allSatisfy(queue -> assertThat(queue).hasSize(90));
+    }
+
+    @Test
+    void fractionalWeightAccumulatesDeficit() {
+        Map<String, Queue<String>> queues = queues(Map.of("full", 100, "half", 100));
+
+        List<String> selected = new DeficitRoundRobin<String>().select(queues, flow -> flow.equals("half") ? 0.5 : 1.0, 30);
+
+        assertThat(selected.stream().filter(item -> item.startsWith("half"))).hasSize(10);
+    }
+
+    private static Map<String, Queue<String>> queues(Map<String, Integer> sizes) {
+        Map<String, Queue<String>> queues = new LinkedHashMap<>();
+        sizes.forEach((flow, size) -> queues.put(flow, IntStream.range(0, size)
+                .mapToObj(i -> flow + "-" + i)
+                .collect(ArrayDeque::new, ArrayDeque::add, ArrayDeque::addAll)));
+        return queues;
+    }
+}
@@ -0,0 +1,45 @@
+package org.letspeppol.proxy.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.letspeppol.proxy.dto.DocumentCursor;
+import org.letspeppol.proxy.dto.UblDocumentDto;
+import org.letspeppol.proxy.exception.BadRequestException;
+import org.letspeppol.proxy.model.DocumentDirection;
+import org.letspeppol.proxy.model.DocumentType;
+
+import java.time.Instant;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class DocumentCursorTest {
+
+    @Test
+    void writtenCursorIsReadAgain() {
+        DocumentCursor cursor = new DocumentCursor(Instant.parse("2026-03-01T10:15:30.123456Z"), UUID.randomUUID());
+
+        assertThat(cursor.toString()).isEqualTo("2026-03-01T10:15:30.123456Z_" + cursor.id());
+        assertThat(DocumentCursor.valueOf(cursor.toString())).isEqualTo(cursor);
+    }
+
+    @Test
+    void startIsReadAgain() {
+        assertThat(DocumentCursor.valueOf(DocumentCursor.START.toString())).isEqualTo(DocumentCursor.START);
+    }
+
+    @Test
+    void cursorOfDocumentIsItsPosition() {
+        UblDocumentDto ublDocumentDto = new UblDocumentDto(UUID.randomUUID(), DocumentDirection.INCOMING, DocumentType.INVOICE, "0208:0123456789", "0208:1029545627", Instant.now(), null, null, null, null);
+
+        assertThat(DocumentCursor.of(ublDocumentDto)).isEqualTo(new DocumentCursor(ublDocumentDto.createdOn(), ublDocumentDto.id()));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"", "_", "2026-03-01T10:15:30Z", "2026-03-01T10:15:30Z_", "2026-03-01T10:15:30Z_not-a-uuid", "yesterday_00000000-0000-0000-0000-000000000000", "00000000-0000-0000-0000-000000000000"})
+    void invalidCursorIsRejected(String cursor) {
+        assertThatThrownBy(() -> DocumentCursor.valueOf(cursor)).isInstanceOf(BadRequestException.class);
+    }
+}
@@ -0,0 +1,123 @@
+package org.letspeppol.proxy.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SegmentLogTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void lastRecordWinsAndTombstoneRemoves() throws IOException {
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        try (SegmentLog segmentLog = SegmentLog.open(directory, 1024)) {
+            segmentLog.append(List.of(put(first, "v1"), put(second, "v1")));
+            segmentLog.append(List.of(put(first, "v2"), SegmentLog.Entry.tombstone(second, new byte[0])));
+
+            assertThat(value(segmentLog, first)).isEqualTo("v2");
+            assertThat(segmentLog.get(second)).isEmpty();
+            assertThat(live(segmentLog)).containsExactly("v2");
+        }
+    }
+
+    @Test
+    void indexIsRebuiltWhenOpenedAgain() throws IOException {
+        List<UUID> keys = new ArrayList<>();
+        try (SegmentLog segmentLog = SegmentLog.open(directory, 256)) {
+            for (int i = 0; i < 50; i++) {
+                UUID key = UUID.randomUUID();
+                keys.add(key);
+                segmentLog.append(List.of(put(key, "value-" + i)));
+            }
+            segmentLog.append(List.of(SegmentLog.Entry.tombstone(keys.getFirst(), new byte[0])));
+            assertThat(segmentLog.segments()).hasSizeGreaterThan(1);
+        }
+
+        try (SegmentLog segmentLog = SegmentLog.open(directory, 256)) {
+            assertThat(segmentLog.size()).isEqualTo(49);
+            assertThat(segmentLog.get(keys.getFirst())).isEmpty();
+            assertThat(value(segmentLog, keys.getLast())).isEqualTo("value-49");
+        }
+    }
+
+    @Test
+    void tornTailIsTruncated() throws IOException {
+        UUID key = UUID.randomUUID();
+        try (SegmentLog segmentLog = SegmentLog.open(directory, 1024)) {
+            segmentLog.append(List.of(put(key, "durable")));
+        }
+        Files.write(lastSegment(), new byte[]{0x55, 0x42, 0x4C}, StandardOpenOption.APPEND);
+
+        try (SegmentLog segmentLog = SegmentLog.open(directory, 1024)) {
+            assertThat(value(segmentLog, key)).isEqualTo("durable");
+            segmentLog.append(List.of(put(key, "appended")));
+        }
+        try (SegmentLog segmentLog = SegmentLog.open(directory, 1024)) {
+            assertThat(value(segmentLog, key)).isEqualTo("appended");
+        }
+    }
+
+    @Test
+    void compactionKeepsLiveRecordsOnly() throws IOException {
+        List<UUID> keys = new ArrayList<>();
+        try (SegmentLog segmentLog = SegmentLog.open(directory, 256)) {
+            for (int i = 0; i < 30; i++) {
+                UUID key = UUID.randomUUID();
+                keys.add(key);
+                segmentLog.append(List.of(put(key, "value-" + i)));
+            }
+            for (int i = 0; i < 30; i += 3) {
+                segmentLog.append(List.of(SegmentLog.Entry.tombstone(keys.get(i), new byte[0])));
+            }
+            for (int i = 1; i < 30; i += 3) {
+                segmentLog.append(List.of(put(keys.get(i), "updated-" + i)));
+            }
+            int segments = segmentLog.segments().size();
+
+            assertThat(segmentLog.compact(0.9)).isPositive();
+            assertThat(segmentLog.segments().size()).isLessThan(segments);
+            assertThat(live(segmentLog)).hasSize(20).contains("updated-1", "value-2");
+        }
+        try (SegmentLog segmentLog = SegmentLog.open(directory, 256)) {
+            assertThat(segmentLog.size()).isEqualTo(20);
+            assertThat(segmentLog.get(keys.getFirst())).isEmpty();
+            assertThat(value(segmentLog, keys.get(1))).isEqualTo("updated-1");
+        }
+    }
+
+    private static SegmentLog.Entry put(UUID key, String value) {
+        return SegmentLog.Entry.put(key, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String value(SegmentLog segmentLog, UUID key) throws IOException {
+        return new String(segmentLog.get(key).orElseThrow().value(), StandardCharsets.UTF_8);
+    }
+
+    private static List<String> live(SegmentLog segmentLog) throws IOException {
+        List<String> values = new ArrayList<>();
+        for (long segment : segmentLog.segments()) {
+            segmentLog.readLive(segment, entry -> values.add(new String(entry.value(), StandardCharsets.UTF_8)));
+        }
+        return values;
+    }
+
+    private Path lastSegment() throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths.filter(path -> path.toString().endsWith(".log")).sorted().toList().getLast();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.letspeppol.proxy.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class UblCodecTest {
+
+    @ParameterizedTest
+    @ValueSource(strings = {"invoice.xml", "credit-note.xml", "invoice-attachment.xml"})
+    void ublIsCompressedAndDecodedAgain(String file) throws IOException {
+        String ubl = read(file);
+
+        byte[] encoded = UblCodec.encode(ubl);
+
+        assertThat(encoded[0]).isEqualTo(UblCodec.DEFLATE);
+        assertThat(encoded.length).isLessThan(ubl.getBytes(StandardCharsets.UTF_8).length);
+        assertThat(UblCodec.decode(encoded)).isEqualTo(ubl);
+    }
+
+    @Test
+    void contentThatDoesNotShrinkIsStoredRaw() {
+        String ubl = "<Invoice/>"; //Too short to gain from the zlib header and checksum
+
+        byte[] encoded = UblCodec.encode(ubl);
+
+        assertThat(encoded[0]).isEqualTo(UblCodec.RAW);
+        assertThat(encoded.length).isEqualTo(ubl.getBytes(StandardCharsets.UTF_8).length + 1);
+        assertThat(UblCodec.decode(encoded)).isEqualTo(ubl);
+    }
+
+    @Test
+    void emptyAndMultiByteContentRoundTrip() {
+        assertThat(UblCodec.decode(UblCodec.encode(""))).isEmpty();
+        assertThat(UblCodec.decode(UblCodec.encode("<Note>Caf\u00e9 \u20ac 10 \u2014 \u2713</Note>"))).isEqualTo("<Note>Caf\u00e9 \u20ac 10 \u2014 \u2713</Note>");
+        assertThat(UblCodec.encode(null)).isNull();
+        assertThat(UblCodec.decode(null)).isNull();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"invoice-attachment.xml", "<Invoice/>", "<Note>Caf\u00e9 \u20ac 10</Note>"})
+    void spooledFileIsEncodedLikeTheString(String content, @TempDir Path directory) throws IOException {
+        String ubl = content.endsWith(".xml") ? read(content) : content;
+        Path file = Files.writeString(directory.resolve("ubl.spool"), ubl, StandardCharsets.UTF_8);
+
+        byte[] encoded = UblCodec.encode(file);
+
+        assertThat(encoded[0]).isEqualTo(UblCodec.encode(ubl)[0]);
+        assertThat(UblCodec.decode(encoded)).isEqualTo(ubl);
+        try (InputStream inputStream = UblCodec.inputStream(encoded)) {
+            assertThat(inputStream.readAllBytes()).isEqualTo(ubl.getBytes(StandardCharsets.UTF_8));
+        }
+        try (InputStream inputStream = UblCodec.inputStream(encoded)) {
+            assertThat(HashUtil.sha256(inputStream)).isEqualTo(HashUtil.sha256(ubl));
+        }
+    }
+
+    @Test
+    void rawVersionIsReadWithoutInflating() {
+        byte[] raw = "\0<Invoice/>".getBytes(StandardCharsets.UTF_8);
+
+        assertThat(UblCodec.decode(raw)).isEqualTo("<Invoice/>");
+    }
+
+    @Test
+    void invalidDataIsRejected() throws IOException {
+        byte[] encoded = UblCodec.encode(read("invoice.xml"));
+
+        assertThatThrownBy(() -> UblCodec.decode(new byte[0])).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> UblCodec.decode(new byte[]{0x7f, 1, 2})).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> UblCodec.decode(Arrays.copyOf(encoded, encoded.length / 2))).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> UblCodec.decode(new byte[]{UblCodec.DEFLATE, 1, 2, 3})).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private String read(String file) throws IOException {
+        try (InputStream inputStream = getClass().getResourceAsStream("/ubl/" + file)) {
+            return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.letspeppol.proxy.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.letspeppol.proxy.dto.PeppolParties;
+import org.letspeppol.proxy.dto.UblHeader;
+import org.letspeppol.proxy.model.DocumentType;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class UblParserTest {
+
+    @ParameterizedTest
+    @ValueSource(strings = {"invoice.xml", "credit-note.xml", "invoice-attachment.xml", "invoice-no-scheme.xml", "invoice-prefixed.xml"})
+    void extractHeaderEqualsXPathParser(String file) throws Exception {
+        String ubl = read(file);
+
+        PeppolParties expected = UblParser.parsePeppolParties(ubl);
+        UblHeader actual = UblParser.extractHeader(new ByteArrayInputStream(ubl.getBytes(StandardCharsets.UTF_8)));
+
+        assertThat(actual.parties()).isEqualTo(expected);
+    }
+
+    @Test
+    void extractHeaderDetectsDocumentType() throws Exception {
+        assertThat(header("invoice.xml").type()).isEqualTo(DocumentType.INVOICE);
+        assertThat(header("invoice-prefixed.xml").type()).isEqualTo(DocumentType.INVOICE);
+        assertThat(header("credit-note.xml").type()).isEqualTo(DocumentType.CREDIT_NOTE);
+    }
+
+    @Test
+    void extractHeaderWithoutScheme() throws Exception {
+        assertThat(header("invoice-no-scheme.xml").parties().sender()).isEqualTo("1023290711");
+    }
+
+    @Test
+    void extractHeaderStopsOnceBothPartiesAreFound() throws Exception {
+        String ubl = read("invoice.xml");
+        String truncated = ubl.substring(0, ubl.indexOf("</cac:AccountingCustomerParty>")); //Not well-formed beyond this point
+
+        UblHeader header = UblParser.extractHeader(new ByteArrayInputStream(truncated.getBytes(StandardCharsets.UTF_8)));
+
+        assertThat(header.parties()).isEqualTo(new PeppolParties("0208:1023290711", "0208:0705969661"));
+    }
+
+    @Test
+    void extractHeaderWithoutCustomerFails() throws Exception {
+        String ubl = read("invoice.xml").replaceAll("(?s)<cac:AccountingCustomerParty>.*</cac:AccountingCustomerParty>", "");
+
+        assertThatThrownBy(() -> UblParser.extractHeader(new ByteArrayInputStream(ubl.getBytes(StandardCharsets.UTF_8))))
+                .hasMessage("AccountingCustomerParty not found");
+    }
+
+    private UblHeader header(String file) throws Exception {
+        try (InputStream inputStream = getClass().getResourceAsStream("/ubl/" + file)) {
+            return UblParser.extractHeader(inputStream);
+        }
+    }
+
+    private String read(String file) throws IOException {
+        try (InputStream inputStream = getClass().getResourceAsStream("/ubl/" + file)) {
+            return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}